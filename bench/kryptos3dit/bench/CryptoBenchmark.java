@@ -0,0 +1,144 @@
+package kryptos3dit.bench;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import kryptos3dit.crypto.AES256;
+import kryptos3dit.crypto.AES256CTR;
+import kryptos3dit.crypto.AES256CTRSession;
+import kryptos3dit.crypto.AES256Engine;
+import kryptos3dit.crypto.AES256TTable;
+import kryptos3dit.crypto.ExpandedKey;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the hot paths of the crypto package: key expansion,
+ * single block encryption and AES256CTR throughput on buffers of 1 KB to 1 GB.
+ * Run through build/bench.py, which adds the GC profiler so that the
+ * allocation rate is reported next to the timings.
+ * @author Jaideep
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms3g", "-Xmx3g" })
+public class CryptoBenchmark {
+
+    /**
+     * A fixed key and block, so that runs are comparable.
+     */
+    @State(Scope.Thread)
+    public static class BlockState {
+
+        char[] key = new char[32];
+        char[] block = new char[16];
+        byte[] blockBytes = new byte[16];
+        ExpandedKey expandedKey;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(42);
+            for (int i = 0; i < key.length; ++i) {
+                key[i] = (char) random.nextInt(256);
+            }
+            for (int i = 0; i < block.length; ++i) {
+                block[i] = (char) random.nextInt(256);
+            }
+            random.nextBytes(blockBytes);
+            expandedKey = new ExpandedKey(key);
+        }
+    }
+
+    /**
+     * A buffer of {@code size} random bytes and an AES256CTR running on {@code engine},
+     * with a session around it.
+     */
+    @State(Scope.Thread)
+    public static class BufferState {
+
+        @Param({ "1024", "65536", "1048576", "67108864", "1073741824" })
+        int size;
+
+        @Param({ "TTABLE", "JCE", "BITSLICED", "BYTEWISE" })
+        String engine;
+
+        byte[] data;
+        AES256CTR ob;
+        AES256CTRSession session;
+
+        @Setup(Level.Trial)
+        public void setup() throws NoSuchAlgorithmException {
+            data = new byte[size];
+            new Random(42).nextBytes(data);
+            ob = new AES256CTR("kryptos3dit-benchmark");
+            ob.setEngine(AES256Engine.valueOf(engine));
+            session = new AES256CTRSession(ob);
+        }
+    }
+
+    /**
+     * Counts the bytes encrypted, so that JMH reports bytes per second
+     * next to operations per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    public ExpandedKey keyExpansion(BlockState state) {
+        return new ExpandedKey(state.key);
+    }
+
+    @Benchmark
+    public char[] blockBytewise(BlockState state) {
+        AES256.encrypt(state.block, state.expandedKey);
+        return state.block;
+    }
+
+    @Benchmark
+    public char[] blockBytewiseWithKeyExpansion(BlockState state) {
+        AES256.encrypt(state.block, state.key);
+        return state.block;
+    }
+
+    @Benchmark
+    public byte[] blockTTable(BlockState state) {
+        AES256TTable.encrypt(state.blockBytes, 0, state.blockBytes, 0, state.expandedKey);
+        return state.blockBytes;
+    }
+
+    @Benchmark
+    public byte[] ctr(BufferState state, Bytes counter) {
+        AES256CTR.encrypt(state.ob, state.data);
+        counter.bytes += state.size;
+        return state.data;
+    }
+
+    @Benchmark
+    public byte[] ctrSession(BufferState state, Bytes counter) {
+        state.session.encrypt(state.data);
+        counter.bytes += state.size;
+        return state.data;
+    }
+}
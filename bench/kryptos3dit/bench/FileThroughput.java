@@ -0,0 +1,418 @@
+package kryptos3dit.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import kryptos3dit.crypto.AES256CTR;
+import kryptos3dit.crypto.AES256Engine;
+import kryptos3dit.crypto.AsyncEncryptor;
+
+/**
+ * End-to-end file encryption benchmark. Generates synthetic files, encrypts
+ * and decrypts them through every file mode of AES256CTR, checks that the
+ * round trip gives back the original, and writes a CSV and a JSON report with
+ * wall time, MB/s, peak RSS and GC activity.
+ *
+ * Every case runs in its own JVM so that the peak RSS and GC numbers belong
+ * to that case only.
+ *
+ * Usage: java kryptos3dit.bench.FileThroughput [options]
+ *   --sizes 1M,64M,1G       File sizes, with K/M/G suffixes (up to 16G and more)
+ *   --content random,compressible
+ *   --modes MEMORY,STREAMING,PARALLEL,MAPPED,PIPELINED,JOURNALED,DIRECT,ASYNC
+ *   --engine JCE            Engine from AES256Engine, default is AES256Engine.select()
+ *   --threads 8             Threads for the parallel, pipelined and async modes
+ *   --dir /tmp              Where the synthetic files are created
+ *   --out report            Writes report.csv and report.json
+ *   --jvm "-Xmx4g"          Extra options for the JVM running each case
+ * @author Jaideep
+ */
+public final class FileThroughput {
+
+    /**
+     * The file modes of AES256CTR which are measured.
+     */
+    enum Mode {
+
+        MEMORY {
+            @Override
+            void run(AES256CTR ob, String path, int threads) throws Exception {
+                AES256CTR.encrypt(ob, path);
+            }
+        },
+        STREAMING {
+            @Override
+            void run(AES256CTR ob, String path, int threads) throws Exception {
+                AES256CTR.encryptStreaming(ob, path);
+            }
+        },
+        PARALLEL {
+            @Override
+            void run(AES256CTR ob, String path, int threads) throws Exception {
+                AES256CTR.encryptParallel(ob, path, threads);
+            }
+        },
+        MAPPED {
+            @Override
+            void run(AES256CTR ob, String path, int threads) throws Exception {
+                AES256CTR.encryptMapped(ob, path);
+            }
+        },
+        PIPELINED {
+            @Override
+            void run(AES256CTR ob, String path, int threads) throws Exception {
+                AES256CTR.encryptPipelined(ob, path, Math.max(1, threads - 2), AES256CTR.DEFAULT_CHUNK_SIZE);
+            }
+        },
+        JOURNALED {
+            @Override
+            void run(AES256CTR ob, String path, int threads) throws Exception {
+                AES256CTR.encryptJournaled(ob, path);
+            }
+        },
+        DIRECT {
+            @Override
+            void run(AES256CTR ob, String path, int threads) throws Exception {
+                AES256CTR.encryptDirect(ob, path);
+            }
+        },
+        ASYNC {
+            @Override
+            void run(AES256CTR ob, String path, int threads) throws Exception {
+                ExecutorService ioPool = Executors.newFixedThreadPool(threads);
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                try {
+                    new AsyncEncryptor(ioPool, pool).encrypt(ob, Paths.get(path)).get();
+                } finally {
+                    ioPool.shutdown();
+                    pool.shutdown();
+                }
+            }
+        };
+
+        abstract void run(AES256CTR ob, String path, int threads) throws Exception;
+    }
+
+    private static final String[] COLUMNS = {
+        "mode", "content", "engine", "size_bytes", "encrypt_ms", "decrypt_ms",
+        "encrypt_mb_s", "decrypt_mb_s", "peak_rss_kb", "gc_count", "gc_ms", "round_trip_ok"
+    };
+
+    private static final String RESULT = "RESULT ";
+
+    /**
+     * Parses a size such as 512K, 16M or 2G.
+     * @param text  The size.
+     * @return      The size in bytes.
+     */
+    static long parseSize(String text) {
+
+        String t = text.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (t.endsWith("K")) {
+            unit = 1L << 10;
+        } else if (t.endsWith("M")) {
+            unit = 1L << 20;
+        } else if (t.endsWith("G")) {
+            unit = 1L << 30;
+        }
+        if (unit != 1) {
+            t = t.substring(0, t.length() - 1);
+        }
+        return Long.parseLong(t) * unit;
+    }
+
+    /**
+     * Writes a synthetic file. Random content is incompressible, compressible
+     * content repeats a short text with a running line number, like a log file.
+     * @param path      Where to write the file.
+     * @param size      The size of the file in bytes.
+     * @param content   "random" or "compressible".
+     * @throws IOException
+     */
+    static void generate(Path path, long size, String content) throws IOException {
+
+        byte[] buffer = new byte[1 << 20];
+        Random random = new Random(size);
+        long line = 0;
+
+        try (OutputStream out = Files.newOutputStream(path)) {
+            for (long written = 0; written < size; ) {
+                if (content.equals("random")) {
+                    random.nextBytes(buffer);
+                } else {
+                    int i = 0;
+                    while (i < buffer.length) {
+                        byte[] text = ("frame " + (line++) + " ok, exposure 1/60, iso 400\n")
+                                .getBytes(StandardCharsets.US_ASCII);
+                        int n = Math.min(text.length, buffer.length - i);
+                        System.arraycopy(text, 0, buffer, i, n);
+                        i += n;
+                    }
+                }
+                int n = (int) Math.min(buffer.length, size - written);
+                out.write(buffer, 0, n);
+                written += n;
+            }
+        }
+    }
+
+    /**
+     * @return The CRC-32 of a file, read in 1 MB pieces.
+     * @throws IOException
+     */
+    static long checksum(Path path) throws IOException {
+
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 20];
+        try (InputStream in = Files.newInputStream(path)) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @return The peak resident set size of this process in KB, from
+     *         /proc/self/status, or -1 where that is not available.
+     */
+    static long peakRssKb() {
+
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    /**
+     * @return {count, milliseconds} of all garbage collections so far.
+     */
+    static long[] gcTotals() {
+
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] { count, time };
+    }
+
+    /**
+     * Runs a single case in this JVM and prints its result line.
+     * @throws Exception
+     */
+    static void runCase(Mode mode, String content, String engine, long size, int threads, Path dir)
+            throws Exception {
+
+        Path path = Files.createTempFile(dir, "kryptos3dit-bench", ".bin");
+        try {
+            generate(path, size, content);
+            final long original = checksum(path);
+
+            AES256CTR ob = new AES256CTR("kryptos3dit-benchmark");
+            if (!engine.isEmpty()) {
+                ob.setEngine(AES256Engine.valueOf(engine));
+            }
+
+            long[] gcBefore = gcTotals();
+            long start = System.nanoTime();
+            mode.run(ob, path.toString(), threads);
+            long encryptNanos = System.nanoTime() - start;
+            long[] gcAfter = gcTotals();
+
+            final long encrypted = checksum(path);
+
+            long[] gcBefore2 = gcTotals();
+            start = System.nanoTime();
+            mode.run(ob, path.toString(), threads);
+            long decryptNanos = System.nanoTime() - start;
+            long[] gcAfter2 = gcTotals();
+
+            boolean ok = checksum(path) == original && (size == 0 || encrypted != original);
+
+            String[] values = {
+                mode.name(), content, ob.getEngine().getName(), Long.toString(size),
+                format(encryptNanos / 1e6), format(decryptNanos / 1e6),
+                format(megabytesPerSecond(size, encryptNanos)), format(megabytesPerSecond(size, decryptNanos)),
+                Long.toString(peakRssKb()),
+                Long.toString(gcAfter[0] - gcBefore[0] + gcAfter2[0] - gcBefore2[0]),
+                Long.toString(gcAfter[1] - gcBefore[1] + gcAfter2[1] - gcBefore2[1]),
+                Boolean.toString(ok)
+            };
+            System.out.println(RESULT + String.join(",", values));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : (bytes / 1048576.0) / (nanos / 1e9);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    /**
+     * Runs a case in a new JVM with the same classpath and returns its result line.
+     * @return  The comma separated values, or null if the case failed.
+     * @throws Exception
+     */
+    static String fork(List<String> jvmOptions, Mode mode, String content, String engine,
+            long size, int threads, Path dir) throws Exception {
+
+        List<String> command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(FileThroughput.class.getName());
+        command.addAll(Arrays.asList("--child", mode.name(), content, engine,
+                Long.toString(size), Integer.toString(threads), dir.toString()));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String result = null;
+        try (InputStream in = process.getInputStream()) {
+            String output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            for (String line : output.split("\\R")) {
+                if (line.startsWith(RESULT)) {
+                    result = line.substring(RESULT.length());
+                } else if (!line.isEmpty()) {
+                    System.err.println("  " + line);
+                }
+            }
+        }
+        process.waitFor();
+        return result;
+    }
+
+    /**
+     * Writes the results as CSV and as a JSON array of objects.
+     * @throws IOException
+     */
+    static void writeReport(String out, List<String[]> rows) throws IOException {
+
+        try (BufferedWriter csv = Files.newBufferedWriter(Paths.get(out + ".csv"))) {
+            csv.write(String.join(",", COLUMNS));
+            csv.newLine();
+            for (String[] row : rows) {
+                csv.write(String.join(",", row));
+                csv.newLine();
+            }
+        }
+
+        try (BufferedWriter json = Files.newBufferedWriter(Paths.get(out + ".json"))) {
+            json.write("[\n");
+            for (int r = 0; r < rows.size(); ++r) {
+                json.write("  {");
+                for (int c = 0; c < COLUMNS.length; ++c) {
+                    String value = rows.get(r)[c];
+                    boolean text = c < 3;
+                    json.write((c == 0 ? "" : ", ") + "\"" + COLUMNS[c] + "\": "
+                            + (text ? "\"" + value + "\"" : value));
+                }
+                json.write(r + 1 < rows.size() ? "},\n" : "}\n");
+            }
+            json.write("]\n");
+        }
+    }
+
+    /**
+     * Runs every combination of size, content and mode and writes the report.
+     * @param args See the class description.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length > 0 && args[0].equals("--child")) {
+            runCase(Mode.valueOf(args[1]), args[2], args[3], Long.parseLong(args[4]),
+                    Integer.parseInt(args[5]), Paths.get(args[6]));
+            return;
+        }
+
+        String sizes = "1M,16M,256M";
+        String contents = "random,compressible";
+        String modes = "";
+        String engine = "";
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+        String out = "file_throughput";
+        List<String> jvmOptions = new ArrayList<String>();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--sizes": sizes = args[i + 1]; break;
+                case "--content": contents = args[i + 1]; break;
+                case "--modes": modes = args[i + 1]; break;
+                case "--engine": engine = args[i + 1]; break;
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                case "--dir": dir = Paths.get(args[i + 1]); break;
+                case "--out": out = args[i + 1]; break;
+                case "--jvm": jvmOptions.addAll(Arrays.asList(args[i + 1].trim().split("\\s+"))); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        List<Mode> modeList = new ArrayList<Mode>();
+        if (modes.isEmpty()) {
+            modeList.addAll(Arrays.asList(Mode.values()));
+        } else {
+            for (String m : modes.split(",")) {
+                modeList.add(Mode.valueOf(m.trim().toUpperCase(Locale.ROOT)));
+            }
+        }
+
+        List<String[]> rows = new ArrayList<String[]>();
+        for (String sizeText : sizes.split(",")) {
+            long size = parseSize(sizeText);
+            for (String content : contents.split(",")) {
+                for (Mode mode : modeList) {
+
+                    // The in-memory mode holds the whole file in one byte[]
+                    if (mode == Mode.MEMORY && size > Integer.MAX_VALUE - 8) {
+                        continue;
+                    }
+
+                    System.out.println(mode + " " + content + " " + sizeText + "...");
+                    String result = fork(jvmOptions, mode, content.trim(), engine, size, threads, dir);
+                    if (result == null) {
+                        System.out.println("  FAILED");
+                        continue;
+                    }
+                    String[] row = result.split(",");
+                    System.out.println("  encrypt " + row[6] + " MB/s, decrypt " + row[7]
+                            + " MB/s, peak RSS " + row[8] + " KB, round trip " + row[11]);
+                    rows.add(row);
+                }
+            }
+        }
+
+        writeReport(out, rows);
+        System.out.println("Report written to " + out + ".csv and " + out + ".json");
+    }
+}
@@ -0,0 +1,69 @@
+import json
+import os
+import sys
+import subprocess
+
+# Usage:
+#   py bench.py [JMH options]         e.g. py bench.py CryptoBenchmark.ctr -p size=1048576
+#   py bench.py files [options]       e.g. py bench.py files --sizes 1M,1G,16G --dir D:\scratch
+# The results are written to ..\output\bench\
+
+output = os.path.join("..", "output", "bench")
+classes = os.path.join(output, "classes")
+os.makedirs(classes, exist_ok=True)
+
+crypto = os.path.join("..", "src", "kryptos3dit", "crypto")
+bench = os.path.join("..", "bench", "kryptos3dit", "bench")
+
+# The SIMD kernel of the keystream XOR needs the incubating Vector API (JDK 16+),
+# without it VectorXor is left out and the scalar kernel is measured
+vector = subprocess.run(["java", "--add-modules", "jdk.incubator.vector", "-version"],
+                        stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL).returncode == 0
+modules = ["--add-modules", "jdk.incubator.vector"] if vector else []
+
+def java_files(top):
+    return [os.path.join(root, name) for root, dirs, files in os.walk(top)
+            for name in files if name.endswith(".java") and (vector or name != "VectorXor.java")]
+
+# End-to-end file benchmark, needs no dependencies
+
+if len(sys.argv) > 1 and sys.argv[1] == "files":
+    sources = java_files(crypto) + [os.path.join(bench, "FileThroughput.java")]
+    result = subprocess.run(["javac"] + modules + ["-d", classes] + sources)
+    if result.returncode != 0:
+        sys.exit(result.returncode)
+
+    report = os.path.join(output, "file_throughput")
+    subprocess.run(["java"] + modules + ["-cp", classes, "kryptos3dit.bench.FileThroughput",
+                    "--out", report] + sys.argv[2:])
+    print("Done!")
+    sys.exit()
+
+# Check for dependencies
+
+file = open("bench_depend.json")
+data = json.load(file)
+file.close()
+
+jars = []
+for name in data["list"]:
+    path = os.path.join("lib", name)
+    if os.path.exists(path) == False:
+        print("You need to get ", name)
+        sys.exit()
+    jars.append(path)
+
+# Compile the crypto package and the benchmarks
+
+classpath = os.pathsep.join(jars)
+result = subprocess.run(["javac"] + modules + ["-cp", classpath, "-d", classes] + java_files(crypto) + java_files(bench))
+if result.returncode != 0:
+    sys.exit(result.returncode)
+
+# Run the benchmarks with the GC profiler, which reports the allocation rate
+
+report = os.path.join(output, "crypto.json")
+subprocess.run(["java"] + modules + ["-cp", os.pathsep.join([classes, classpath]), "org.openjdk.jmh.Main",
+                "-prof", "gc", "-rf", "json", "-rff", report] + sys.argv[1:])
+
+print("Done! Results in", report)
\ No newline at end of file
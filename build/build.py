@@ -27,6 +27,15 @@ subprocess.run(javac + "ui\\" + "homepageController.java" + end_at, shell=True)
 subprocess.run(javac + "ui\\" + "encryptionController.java" + end_at, shell=True)
 subprocess.run(javac + "ui\\" + "UifxmlController.java" + end_at, shell=True)
 
+# The SIMD kernel of the keystream XOR needs the incubating Vector API (JDK 16+).
+# Nothing refers to it by type, so without the module it is left out and the
+# scalar kernel is used.
+vector = subprocess.run("java --add-modules jdk.incubator.vector -version", shell=True,
+                        stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL).returncode == 0
+modules = "--add-modules jdk.incubator.vector " if vector else ""
+if vector:
+    subprocess.run("javac " + modules + "-cp ..\\src ..\\src\\kryptos3dit\\crypto\\VectorXor.java" + end_at, shell=True)
+
 # Copy manifest.txt file to src\ for .jar creation
 copy_manifest = "copy manifest.txt ..\\src"
 subprocess.run(copy_manifest, shell=True)
@@ -59,6 +68,11 @@ subprocess.run(copy_jar, shell=True)
 copy_launcher = "copy launcher.bat ..\\output"
 subprocess.run(copy_launcher, shell=True)
 
+# Both launchers read the module option from vector.args, empty without the Vector API
+args = open("..\\output\\vector.args", "w")
+args.write(modules)
+args.close()
+
 # Make temp folder in output
 make_temp = "mkdir ..\\output\\temp"
 
@@ -66,4 +80,37 @@ make_temp = "mkdir ..\\output\\temp"
 del_files = "del ..\\src\\app.jar && del ..\\src\\manifest.txt"
 subprocess.run(del_files, shell=True)
 
+# Headless CLI, built without JavaFX into its own jar
+
+cli_classes = "..\\output\\cli"
+javac_cli = "javac -cp ..\\src -d " + cli_classes + " ..\\src\\kryptos3dit\\cli\\Cli.java"
+subprocess.run(javac_cli, shell=True)
+if vector:
+    subprocess.run("javac " + modules + "-cp " + cli_classes + " -d " + cli_classes
+                   + " ..\\src\\kryptos3dit\\crypto\\VectorXor.java", shell=True)
+
+jar_cli = "jar cvfm ..\\output\\cli.jar manifest_cli.txt -C " + cli_classes + " kryptos3dit"
+subprocess.run(jar_cli, shell=True)
+subprocess.run("rmdir /Q /S " + cli_classes, shell=True)
+
+# AppCDS: training runs list the classes each command loads, the list is
+# dumped into cli.jsa which the launcher maps at startup (JDK 11+).
+# Without the archive the launcher still works.
+training = "..\\output\\temp\\training"
+subprocess.run("mkdir ..\\output\\temp", shell=True)
+subprocess.run("copy ..\\src\\kryptos3dit\\ui\\images\\Logo.png " + training + ".png", shell=True)
+java_list = "java -Xshare:off " + modules + "-XX:DumpLoadedClassList="
+subprocess.run(java_list + training + "1.lst -jar ..\\output\\cli.jar filter sepia "
+               + training + ".png " + training + ".png", shell=True)
+subprocess.run(java_list + training + "2.lst -jar ..\\output\\cli.jar encrypt -p training "
+               + training + ".png", shell=True)
+subprocess.run("copy /B " + training + "1.lst+" + training + "2.lst " + training + ".lst", shell=True)
+subprocess.run("java -Xshare:dump " + modules + "-XX:SharedClassListFile=" + training + ".lst "
+               + "-XX:SharedArchiveFile=..\\output\\cli.jsa -cp ..\\output\\cli.jar", shell=True)
+subprocess.run("del " + training + "*", shell=True)
+
+# Copy CLI launcher to output
+copy_cli_launcher = "copy kryptos3dit.bat ..\\output"
+subprocess.run(copy_cli_launcher, shell=True)
+
 print("Done!")
\ No newline at end of file
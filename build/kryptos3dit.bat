@@ -0,0 +1,9 @@
+@ECHO OFF
+REM Headless CLI, see kryptos3dit.cli.Cli. Uses the AppCDS archive when the build made one,
+REM and the Vector API when vector.args holds its module.
+IF EXIST "%~dp0cli.jsa" (
+    java @"%~dp0vector.args" -XX:SharedArchiveFile="%~dp0cli.jsa" -Xshare:auto -jar "%~dp0cli.jar" %*
+) ELSE (
+    java @"%~dp0vector.args" -jar "%~dp0cli.jar" %*
+)
+EXIT /B %ERRORLEVEL%
@@ -1,2 +1,2 @@
 @ECHO OFF
-start javaw --module-path lib\javafx-sdk-11.0.2\lib --add-modules javafx.base,javafx.media,javafx.graphics,javafx.swing,javafx.controls,javafx.fxml,javafx.web -jar app.jar
+start javaw @vector.args --module-path lib\javafx-sdk-11.0.2\lib --add-modules javafx.base,javafx.media,javafx.graphics,javafx.swing,javafx.controls,javafx.fxml,javafx.web -jar app.jar
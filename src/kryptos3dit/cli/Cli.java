@@ -0,0 +1,476 @@
+package kryptos3dit.cli;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.AEADBadTagException;
+import javax.imageio.ImageIO;
+import kryptos3dit.crypto.AES256CTR;
+import kryptos3dit.crypto.BatchEncryptor;
+import kryptos3dit.crypto.BatchResult;
+import kryptos3dit.crypto.Container;
+import kryptos3dit.filters.Filters;
+
+/**
+ * Headless command-line entry point. It only uses the crypto and filters
+ * packages, so it never loads JavaFX and starts in a fraction of the time
+ * of {@link kryptos3dit.Main}.
+ * <pre>
+ * kryptos3dit encrypt [options] FILE|-
+ * kryptos3dit decrypt [options] FILE|-
+ * kryptos3dit rekey   [options] FILE
+ * kryptos3dit batch   encrypt|decrypt|rekey [options] DIR [GLOB]
+ * kryptos3dit filter  NAME [VALUE] IN|- OUT|-
+ * </pre>
+ * A file is encrypted in place into a {@link Container}, {@code -} reads
+ * standard input and writes the result to standard output. {@code --legacy}
+ * writes the headerless format of {@link AES256CTR} instead, decryption
+ * recognises both. The password is given with {@code -p} or the
+ * {@value #PASSWORD_VARIABLE} environment variable, the new password of
+ * {@code rekey} with {@code -n} or {@value #NEW_PASSWORD_VARIABLE}.
+ * @author  Jaideep
+ */
+public final class Cli {
+
+    /**
+     * The environment variable read when no password is given with {@code -p}.
+     */
+    public static final String PASSWORD_VARIABLE = "KRYPTOS3DIT_PASSWORD";
+
+    /**
+     * The environment variable read by {@code rekey} when no new password is given with {@code -n}.
+     */
+    public static final String NEW_PASSWORD_VARIABLE = "KRYPTOS3DIT_NEW_PASSWORD";
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+        "Usage:",
+        "  kryptos3dit encrypt [-p PASSWORD] [--legacy [-m MODE]] FILE|-",
+        "  kryptos3dit decrypt [-p PASSWORD] [--legacy [-m MODE]] FILE|-",
+        "  kryptos3dit rekey   [-p PASSWORD] [-n NEW_PASSWORD] [--legacy [-m MODE]] FILE",
+        "  kryptos3dit batch   encrypt|decrypt|rekey [-p PASSWORD] [-n NEW_PASSWORD]",
+        "                      [-t THREADS] [--legacy] DIR [GLOB]",
+        "  kryptos3dit filter  NAME [VALUE] IN|- OUT|-",
+        "",
+        "Files are encrypted in place, - means standard input / output.",
+        "The password can also be set in " + PASSWORD_VARIABLE + ", the new password of",
+        "rekey in " + NEW_PASSWORD_VARIABLE + ". rekey reads and writes the file once.",
+        "Exit status: 0 done, 1 error, 2 usage, 3 wrong password, 4 modified file.",
+        "--legacy uses the headerless format, which has no password check and gives",
+        "every file of one password the same keystream. Its modes: streaming (default),",
+        "parallel, mapped, pipelined, journaled (resumes an interrupted run when started",
+        "again), direct (bypasses the page cache)",
+        "Filters: mirror, flip, rotate DEG, edges, brighten 0-1, darken 0-1, grayscale,",
+        "         sepia, negative, watermark TEXT, blur N, posterize, pixelate N, sharpen N");
+
+    private Cli() {
+    }
+
+    /**
+     * Thrown for a wrong command line, the message is shown with the usage.
+     */
+    private static final class UsageException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UsageException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Runs one command and exits with 0 on success, 1 on an error, 2 on
+     * a wrong command line, 3 on a wrong password and 4 on a container
+     * which was modified.
+     * @param args  The command and its arguments.
+     */
+    public static void main(String[] args) {
+
+        // Filters use java.awt, never start a display connection
+        System.setProperty("java.awt.headless", "true");
+
+        try {
+            run(args);
+        } catch (UsageException e) {
+            System.err.println("kryptos3dit: " + e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        } catch (InvalidKeyException e) {
+            System.err.println("kryptos3dit: wrong password, nothing was changed");
+            System.exit(3);
+        } catch (AEADBadTagException e) {
+            System.err.println("kryptos3dit: the file was modified or damaged, nothing was decrypted");
+            System.exit(4);
+        } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+            System.err.println("kryptos3dit: " + e);
+            System.exit(1);
+        }
+    }
+
+    private static void run(String[] args) throws
+            UsageException, IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException {
+
+        if (args.length == 0) {
+            throw new UsageException("missing command");
+        }
+
+        String password = System.getenv(PASSWORD_VARIABLE);
+        String newPassword = System.getenv(NEW_PASSWORD_VARIABLE);
+        String mode = "streaming";
+        boolean legacy = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> operands = new ArrayList<>();
+
+        for (int i = 1; i < args.length; ++i) {
+            switch (args[i]) {
+                case "-p":
+                case "--password":
+                    password = value(args, ++i);
+                    break;
+                case "-n":
+                case "--new-password":
+                    newPassword = value(args, ++i);
+                    break;
+                case "-m":
+                case "--mode":
+                    mode = value(args, ++i);
+                    break;
+                case "--legacy":
+                    legacy = true;
+                    break;
+                case "-t":
+                case "--threads":
+                    threads = number(value(args, ++i));
+                    break;
+                default:
+                    operands.add(args[i]);
+            }
+        }
+
+        switch (args[0]) {
+            case "encrypt":
+            case "decrypt":
+                expect(operands, 1, 1);
+                if (legacy) {
+                    // Decryption is the same operation as encryption in CTR mode
+                    crypt(new AES256CTR(requirePassword(password)), mode, operands.get(0));
+                } else if (!mode.equals("streaming")) {
+                    throw new UsageException("-m needs --legacy");
+                } else if (args[0].equals("encrypt")) {
+                    encrypt(requirePassword(password), operands.get(0));
+                } else {
+                    decrypt(requirePassword(password), operands.get(0));
+                }
+                break;
+            case "rekey":
+                expect(operands, 1, 1);
+                if (legacy) {
+                    rekey(new AES256CTR(requirePassword(password)),
+                            new AES256CTR(requireNewPassword(newPassword)), mode, operands.get(0));
+                } else if (!mode.equals("streaming")) {
+                    throw new UsageException("-m needs --legacy");
+                } else {
+                    Container.rekey(requirePassword(password), requireNewPassword(newPassword),
+                            Paths.get(operands.get(0)), null);
+                }
+                break;
+            case "batch":
+                expect(operands, 2, 3);
+                if (threads < 1) {
+                    throw new UsageException("threads must be positive");
+                }
+                batch(operands.get(0), requirePassword(password), newPassword, legacy, Paths.get(operands.get(1)),
+                        operands.size() > 2 ? operands.get(2) : null, threads);
+                break;
+            case "filter":
+                expect(operands, 3, 4);
+                filter(operands);
+                break;
+            case "-h":
+            case "--help":
+            case "help":
+                System.out.println(USAGE);
+                break;
+            default:
+                throw new UsageException("unknown command " + args[0]);
+        }
+    }
+
+    private static String value(String[] args, int i) throws UsageException {
+        if (i >= args.length) {
+            throw new UsageException(args[i - 1] + " needs a value");
+        }
+        return args[i];
+    }
+
+    private static int number(String text) throws UsageException {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new UsageException("not a number: " + text);
+        }
+    }
+
+    private static void expect(List<String> operands, int min, int max) throws UsageException {
+        if (operands.size() < min || operands.size() > max) {
+            throw new UsageException("wrong number of arguments");
+        }
+    }
+
+    private static String requirePassword(String password) throws UsageException {
+        if (password == null || password.isEmpty()) {
+            throw new UsageException("no password, use -p or " + PASSWORD_VARIABLE);
+        }
+        return password;
+    }
+
+    private static String requireNewPassword(String password) throws UsageException {
+        if (password == null || password.isEmpty()) {
+            throw new UsageException("no new password, use -n or " + NEW_PASSWORD_VARIABLE);
+        }
+        return password;
+    }
+
+    /**
+     * Encrypts a file in place into a container, or standard input to
+     * standard output.
+     */
+    private static void encrypt(String password, String path) throws IOException, NoSuchAlgorithmException {
+
+        if (path.equals("-")) {
+            Container.encrypt(password, System.in, System.out);
+        } else {
+            Container.encrypt(password, Paths.get(path), null);
+        }
+    }
+
+    /**
+     * Decrypts a container or a headerless file in place, or standard input
+     * to standard output.
+     */
+    private static void decrypt(String password, String path) throws
+            IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException {
+
+        if (path.equals("-")) {
+            Container.decrypt(password, System.in, System.out);
+        } else {
+            Container.decrypt(password, Paths.get(path), null);
+        }
+    }
+
+    /**
+     * Encrypts a file in place in the headerless format with the chosen mode,
+     * or standard input to standard output.
+     */
+    private static void crypt(AES256CTR ob, String mode, String path) throws UsageException, IOException {
+
+        if (path.equals("-")) {
+            crypt(ob, System.in, System.out);
+            return;
+        }
+
+        switch (mode) {
+            case "streaming":
+                AES256CTR.encryptStreaming(ob, path);
+                break;
+            case "parallel":
+                AES256CTR.encryptParallel(ob, path);
+                break;
+            case "mapped":
+                AES256CTR.encryptMapped(ob, path);
+                break;
+            case "pipelined":
+                AES256CTR.encryptPipelined(ob, path);
+                break;
+            case "journaled":
+                if (AES256CTR.hasJournal(path)) {
+                    System.err.println("kryptos3dit: resuming " + path);
+                }
+                AES256CTR.encryptJournaled(ob, path);
+                break;
+            case "direct":
+                if (!AES256CTR.encryptDirect(ob, path)) {
+                    System.err.println("kryptos3dit: no direct I/O on this file system, used streaming");
+                }
+                break;
+            default:
+                throw new UsageException("unknown mode " + mode);
+        }
+    }
+
+    /**
+     * Changes the key of a headerless file in place with the chosen mode.
+     */
+    private static void rekey(AES256CTR from, AES256CTR to, String mode, String path) throws
+            UsageException, IOException {
+
+        switch (mode) {
+            case "streaming":
+                AES256CTR.rekey(from, to, path);
+                break;
+            case "parallel":
+                AES256CTR.rekeyParallel(from, to, path, ForkJoinPool.commonPool());
+                break;
+            case "journaled":
+                if (AES256CTR.hasJournal(path)) {
+                    System.err.println("kryptos3dit: resuming " + path);
+                }
+                AES256CTR.rekeyJournaled(from, to, path, AES256CTR.DEFAULT_JOURNAL_CHUNK_SIZE, null);
+                break;
+            default:
+                throw new UsageException("rekey has no mode " + mode);
+        }
+    }
+
+    /**
+     * Encrypts a stream chunk by chunk. Every chunk but the last is full, so
+     * the chunks line up with the positions of the stream.
+     */
+    private static void crypt(AES256CTR ob, InputStream in, OutputStream out) throws IOException {
+
+        final byte[] chunk = new byte[AES256CTR.DEFAULT_CHUNK_SIZE];
+        long position = 0;
+        int n;
+
+        while ((n = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+            AES256CTR.encrypt(ob, chunk, 0, n, position);
+            out.write(chunk, 0, n);
+            position += n;
+        }
+        out.flush();
+    }
+
+    /**
+     * Runs a batch over the files of a directory. Files become containers,
+     * with --legacy they are encrypted in the headerless format instead,
+     * where encrypting and decrypting are the same.
+     */
+    private static void batch(String operation, String password, String newPassword, boolean legacy, Path root,
+            String glob, int threads) throws UsageException, IOException, NoSuchAlgorithmException {
+
+        BatchResult result;
+        switch (operation) {
+            case "encrypt":
+                result = legacy ? BatchEncryptor.encryptLegacy(new AES256CTR(password), root, glob, threads)
+                        : BatchEncryptor.encrypt(password, root, glob, threads);
+                break;
+            case "decrypt":
+                result = legacy ? BatchEncryptor.encryptLegacy(new AES256CTR(password), root, glob, threads)
+                        : BatchEncryptor.decrypt(password, root, glob, threads);
+                break;
+            case "rekey":
+                result = legacy ? BatchEncryptor.rekeyLegacy(new AES256CTR(password),
+                                new AES256CTR(requireNewPassword(newPassword)), root, glob, threads)
+                        : BatchEncryptor.rekey(password, requireNewPassword(newPassword), root, glob, threads);
+                break;
+            default:
+                throw new UsageException("unknown batch operation " + operation);
+        }
+        for (Map.Entry<Path, Exception> failure : result.getFailures().entrySet()) {
+            System.err.println("kryptos3dit: " + failure.getKey() + ": " + failure.getValue());
+        }
+        System.err.println(result);
+        if (!result.getFailures().isEmpty()) {
+            throw new IOException(result.getFailures().size() + " files failed");
+        }
+    }
+
+    /**
+     * Applies one filter to an image and writes the result as a PNG.
+     */
+    private static void filter(List<String> operands) throws UsageException, IOException {
+
+        final String name = operands.get(0);
+        final String value = operands.size() == 4 ? operands.get(1) : null;
+        final String in = operands.get(operands.size() - 2);
+        final String out = operands.get(operands.size() - 1);
+
+        BufferedImage image = in.equals("-") ? ImageIO.read(System.in) : ImageIO.read(new File(in));
+        if (image == null) {
+            throw new IOException("not an image: " + in);
+        }
+
+        BufferedImage output;
+        switch (name) {
+            case "mirror":
+                output = Filters.mirror(image, false);
+                break;
+            case "flip":
+                output = Filters.mirror(image, true);
+                break;
+            case "rotate":
+                output = Filters.rotate(image, decimal(name, value));
+                break;
+            case "edges":
+                output = Filters.detectEdges(image);
+                break;
+            case "brighten":
+                output = Filters.brighten(image, decimal(name, value));
+                break;
+            case "darken":
+                output = Filters.darken(image, decimal(name, value));
+                break;
+            case "grayscale":
+                output = Filters.grayscale(image);
+                break;
+            case "sepia":
+                output = Filters.sepia(image);
+                break;
+            case "negative":
+                output = Filters.negative(image);
+                break;
+            case "watermark":
+                output = Filters.addWatermark(image, required(name, value));
+                break;
+            case "blur":
+                output = Filters.gaussianBlur(image, number(required(name, value)));
+                break;
+            case "posterize":
+                output = Filters.posterize(image);
+                break;
+            case "pixelate":
+                output = Filters.pixelate(image, number(required(name, value)));
+                break;
+            case "sharpen":
+                output = Filters.sharpen(image, number(required(name, value)));
+                break;
+            default:
+                throw new UsageException("unknown filter " + name);
+        }
+
+        // The filters return null for a value out of range
+        if (output == null) {
+            throw new UsageException("value out of range for " + name + ": " + value);
+        }
+
+        if (out.equals("-")) {
+            ImageIO.write(output, "png", System.out);
+            System.out.flush();
+        } else {
+            ImageIO.write(output, "png", new File(out));
+        }
+    }
+
+    private static String required(String name, String value) throws UsageException {
+        if (value == null) {
+            throw new UsageException(name + " needs a value");
+        }
+        return value;
+    }
+
+    private static double decimal(String name, String value) throws UsageException {
+        try {
+            return Double.parseDouble(required(name, value));
+        } catch (NumberFormatException e) {
+            throw new UsageException("not a number: " + value);
+        }
+    }
+}
@@ -16,9 +16,21 @@ public final class AES256 {
      * @return Nothing  The data gets encrypted.
      */
     public static void encrypt(char[] state, char[] key) {
-        
-        // Step 1: Key Expansion
-        char[][] keys = Helpers.keyExpansion(key);
+
+        encrypt(state, new ExpandedKey(key));
+    }
+
+    /**
+     * This method performs AES-256 encryption on 16 bytes of data using
+     * a key schedule which has already been expanded.
+     * @param state     The 16 byte data block stored as char[16].
+     * @param key       The expanded key, see {@link ExpandedKey}.
+     * @return Nothing  The data gets encrypted.
+     */
+    public static void encrypt(char[] state, ExpandedKey key) {
+
+        // Step 1: Key Expansion (done once, in ExpandedKey)
+        char[][] keys = key.getRoundKeys();
 
         // Step 2: Intial Round Key Addtion
         Helpers.addRoundKey(state, keys[0]);
@@ -36,4 +48,23 @@ public final class AES256 {
         Helpers.shiftRows(state);
         Helpers.addRoundKey(state, keys[ROUND_COUNT]);
     }
+
+    /**
+     * This method performs AES-256 encryption on 16 bytes of data held in a byte[].
+     * @param block     The array holding the data block.
+     * @param off       Index of the first byte of the block.
+     * @param key       The expanded key, see {@link ExpandedKey}.
+     * @return Nothing  The 16 bytes starting at {@code block[off]} get encrypted.
+     */
+    public static void encrypt(byte[] block, int off, ExpandedKey key) {
+
+        char[] state = new char[16];
+        for (int i = 0; i < state.length; ++i) {
+            state[i] = (char) Byte.toUnsignedInt(block[off + i]);
+        }
+        encrypt(state, key);
+        for (int i = 0; i < state.length; ++i) {
+            block[off + i] = (byte) state[i];
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,279 @@
+package kryptos3dit.crypto;
+
+import java.util.Arrays;
+
+/**
+ * This class implements AES-256 encryption on 64 blocks at a time using
+ * bitslicing: the state of a batch is stored as 128 longs, one per bit of
+ * each of the 16 byte positions, and bit {@code k} of every long belongs to
+ * block {@code k}. Every step of a round then becomes a fixed sequence of
+ * 64-bit boolean operations which work on all blocks at once:
+ * SubBytes is the 113 gate circuit of Boyar and Peralta, ShiftRows only
+ * renames byte positions, and MixColumns and AddRoundKey are XORs.
+ * No table is indexed and no branch is taken on key or data, so unlike
+ * {@link AES256} and {@link AES256TTable} the running time and the memory
+ * accesses do not depend on secrets, which keeps cache timing attacks from
+ * other processes on the same host out.
+ * A batch costs the same whatever the number of blocks in it, so this
+ * engine pays off on wide batches such as the keystream of CTR.
+ * It produces exactly the same output as {@link AES256}.
+ * Details: https://eprint.iacr.org/2011/332.pdf (S-box circuit)
+ * @author  Jaideep
+ */
+public final class AES256Bitsliced {
+
+    /**
+     * The number of blocks encrypted together, one per bit of a long.
+     */
+    public static final int BATCH = 64;
+
+    private static final int ROUND_COUNT = 14;
+
+    // SHIFTED[4 * c + r] is the first plane of the byte which ShiftRows moves to row r of column c
+    private static final int[] SHIFTED = new int[16];
+
+    static {
+        for (int c = 0; c < 4; ++c) {
+            for (int r = 0; r < 4; ++r) {
+                SHIFTED[4 * c + r] = 8 * (4 * ((c + r) & 3) + r);
+            }
+        }
+    }
+
+    // The state and a scratch copy, 2 * 128 longs, reused by every call of a thread
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[256]);
+
+    private AES256Bitsliced() {
+    }
+
+    /**
+     * This method performs AES-256 encryption on consecutive blocks, in
+     * batches of {@value #BATCH}. The input and output may be the same array.
+     * @param in        The array holding the plain blocks.
+     * @param inOff     Index of the first byte of the first plain block.
+     * @param out       The array receiving the encrypted blocks.
+     * @param outOff    Index of the first byte of the first encrypted block.
+     * @param blocks    The number of blocks.
+     * @param key       The expanded key, see {@link ExpandedKey}.
+     * @return Nothing  The {@code 16 * blocks} bytes starting at {@code out[outOff]} get written.
+     */
+    public static void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks, ExpandedKey key) {
+
+        final long[] rk = key.getBitslicedRoundKeys();
+        final long[] scratch = SCRATCH.get();
+        for (int done = 0; done < blocks; done += BATCH) {
+            final int n = Math.min(BATCH, blocks - done);
+            load(in, inOff + 16 * done, n, scratch);
+            encryptBatch(scratch, rk);
+            store(scratch, n, out, outOff + 16 * done);
+        }
+    }
+
+    /**
+     * Spreads the bits of every round key over masks, all ones where the
+     * key bit is set and all zeros elsewhere, for {@link ExpandedKey}.
+     * @param roundKeys The 15 round keys, each stored as char[16].
+     * @return          15 * 128 masks, in the order of the bitsliced state.
+     */
+    static long[] sliceRoundKeys(char[][] roundKeys) {
+
+        long[] sliced = new long[128 * roundKeys.length];
+        for (int r = 0; r < roundKeys.length; ++r) {
+            for (int i = 0; i < 16; ++i) {
+                for (int j = 0; j < 8; ++j) {
+                    sliced[128 * r + 8 * i + j] = -(long) ((roundKeys[r][i] >>> j) & 1);
+                }
+            }
+        }
+        return sliced;
+    }
+
+    /**
+     * Runs the 14 rounds on the state held in {@code q[0..128]}, using
+     * {@code q[128..256]} as scratch.
+     */
+    private static void encryptBatch(long[] q, long[] rk) {
+
+        for (int k = 0; k < 128; ++k) {
+            q[k] ^= rk[k];
+        }
+        for (int round = 1; round < ROUND_COUNT; ++round) {
+            for (int i = 0; i < 128; i += 8) {
+                subBytes(q, i);
+            }
+            for (int c = 0; c < 16; c += 4) {
+                mixColumn(q, c);
+            }
+            addRoundKey(q, rk, 128 * round);
+        }
+        for (int i = 0; i < 128; i += 8) {
+            subBytes(q, i);
+        }
+        for (int p = 0; p < 16; ++p) {
+            System.arraycopy(q, SHIFTED[p], q, 128 + 8 * p, 8);
+        }
+        addRoundKey(q, rk, 128 * ROUND_COUNT);
+    }
+
+    /**
+     * Moves the scratch half of q back into the state, adding a round key.
+     */
+    private static void addRoundKey(long[] q, long[] rk, int off) {
+        for (int k = 0; k < 128; ++k) {
+            q[k] = q[128 + k] ^ rk[off + k];
+        }
+    }
+
+    /**
+     * ShiftRows and MixColumns for one column, written to the scratch half of q.
+     * Row r of the result is {@code xtime(a ^ b) ^ b ^ c ^ d} where a, b, c, d
+     * are rows r, r+1, r+2, r+3 of the shifted column.
+     * @param q     The state followed by the scratch half.
+     * @param col   4 times the column number.
+     */
+    private static void mixColumn(long[] q, int col) {
+
+        for (int r = 0; r < 4; ++r) {
+            final int a = SHIFTED[col + r];
+            final int b = SHIFTED[col + ((r + 1) & 3)];
+            final int c = SHIFTED[col + ((r + 2) & 3)];
+            final int d = SHIFTED[col + ((r + 3) & 3)];
+            final int o = 128 + 8 * (col + r);
+
+            // xtime shifts the planes up by one and folds bit 7 into 0x1b,
+            // everything is read before the first store
+            final long e0 = q[a] ^ q[b], e1 = q[a + 1] ^ q[b + 1], e2 = q[a + 2] ^ q[b + 2];
+            final long e3 = q[a + 3] ^ q[b + 3], e4 = q[a + 4] ^ q[b + 4], e5 = q[a + 5] ^ q[b + 5];
+            final long e6 = q[a + 6] ^ q[b + 6], e7 = q[a + 7] ^ q[b + 7];
+            final long f0 = q[b] ^ q[c] ^ q[d], f1 = q[b + 1] ^ q[c + 1] ^ q[d + 1];
+            final long f2 = q[b + 2] ^ q[c + 2] ^ q[d + 2], f3 = q[b + 3] ^ q[c + 3] ^ q[d + 3];
+            final long f4 = q[b + 4] ^ q[c + 4] ^ q[d + 4], f5 = q[b + 5] ^ q[c + 5] ^ q[d + 5];
+            final long f6 = q[b + 6] ^ q[c + 6] ^ q[d + 6], f7 = q[b + 7] ^ q[c + 7] ^ q[d + 7];
+            q[o] = e7 ^ f0;
+            q[o + 1] = e0 ^ e7 ^ f1;
+            q[o + 2] = e1 ^ f2;
+            q[o + 3] = e2 ^ e7 ^ f3;
+            q[o + 4] = e3 ^ e7 ^ f4;
+            q[o + 5] = e4 ^ f5;
+            q[o + 6] = e5 ^ f6;
+            q[o + 7] = e6 ^ f7;
+        }
+    }
+
+    /**
+     * The AES S-box on the 8 planes {@code q[o..o+8]}, bit 0 first, as the
+     * circuit of Boyar and Peralta: a linear layer, the inversion in GF(2^8)
+     * with 32 ANDs and a second linear layer.
+     */
+    private static void subBytes(long[] q, int o) {
+
+        final long x0 = q[o + 7], x1 = q[o + 6], x2 = q[o + 5], x3 = q[o + 4];
+        final long x4 = q[o + 3], x5 = q[o + 2], x6 = q[o + 1], x7 = q[o];
+
+        // Top linear layer
+        final long y14 = x3 ^ x5, y13 = x0 ^ x6, y9 = x0 ^ x3, y8 = x0 ^ x5;
+        final long t0 = x1 ^ x2, y1 = t0 ^ x7, y4 = y1 ^ x3, y12 = y13 ^ y14;
+        final long y2 = y1 ^ x0, y5 = y1 ^ x6, y3 = y5 ^ y8, t1 = x4 ^ y12;
+        final long y15 = t1 ^ x5, y20 = t1 ^ x1, y6 = y15 ^ x7, y10 = y15 ^ t0;
+        final long y11 = y20 ^ y9, y7 = x7 ^ y11, y17 = y10 ^ y11, y19 = y10 ^ y8;
+        final long y16 = t0 ^ y11, y21 = y13 ^ y16, y18 = x0 ^ y16;
+
+        // Non-linear section
+        final long t2 = y12 & y15, t3 = y3 & y6, t4 = t3 ^ t2, t5 = y4 & x7;
+        final long t6 = t5 ^ t2, t7 = y13 & y16, t8 = y5 & y1, t9 = t8 ^ t7;
+        final long t10 = y2 & y7, t11 = t10 ^ t7, t12 = y9 & y11, t13 = y14 & y17;
+        final long t14 = t13 ^ t12, t15 = y8 & y10, t16 = t15 ^ t12, t17 = t4 ^ t14;
+        final long t18 = t6 ^ t16, t19 = t9 ^ t14, t20 = t11 ^ t16, t21 = t17 ^ y20;
+        final long t22 = t18 ^ y19, t23 = t19 ^ y21, t24 = t20 ^ y18;
+
+        final long t25 = t21 ^ t22, t26 = t21 & t23, t27 = t24 ^ t26, t28 = t25 & t27;
+        final long t29 = t28 ^ t22, t30 = t23 ^ t24, t31 = t22 ^ t26, t32 = t31 & t30;
+        final long t33 = t32 ^ t24, t34 = t23 ^ t33, t35 = t27 ^ t33, t36 = t24 & t35;
+        final long t37 = t36 ^ t34, t38 = t27 ^ t36, t39 = t29 & t38, t40 = t25 ^ t39;
+
+        final long t41 = t40 ^ t37, t42 = t29 ^ t33, t43 = t29 ^ t40, t44 = t33 ^ t37;
+        final long t45 = t42 ^ t41;
+        final long z0 = t44 & y15, z1 = t37 & y6, z2 = t33 & x7, z3 = t43 & y16;
+        final long z4 = t40 & y1, z5 = t29 & y7, z6 = t42 & y11, z7 = t45 & y17;
+        final long z8 = t41 & y10, z9 = t44 & y12, z10 = t37 & y3, z11 = t33 & y4;
+        final long z12 = t43 & y13, z13 = t40 & y5, z14 = t29 & y2, z15 = t42 & y9;
+        final long z16 = t45 & y14, z17 = t41 & y8;
+
+        // Bottom linear layer
+        final long t46 = z15 ^ z16, t47 = z10 ^ z11, t48 = z5 ^ z13, t49 = z9 ^ z10;
+        final long t50 = z2 ^ z12, t51 = z2 ^ z5, t52 = z7 ^ z8, t53 = z0 ^ z3;
+        final long t54 = z6 ^ z7, t55 = z16 ^ z17, t56 = z12 ^ t48, t57 = t50 ^ t53;
+        final long t58 = z4 ^ t46, t59 = z3 ^ t54, t60 = t46 ^ t57, t61 = z14 ^ t57;
+        final long t62 = t52 ^ t58, t63 = t49 ^ t58, t64 = z4 ^ t59, t65 = t61 ^ t62;
+        final long t66 = z1 ^ t63, t67 = t64 ^ t65;
+        final long s3 = t53 ^ t66;
+
+        q[o + 7] = t59 ^ t63;
+        q[o + 6] = t64 ^ ~s3;
+        q[o + 5] = t55 ^ ~t67;
+        q[o + 4] = s3;
+        q[o + 3] = t51 ^ t66;
+        q[o + 2] = t47 ^ t65;
+        q[o + 1] = t56 ^ ~t62;
+        q[o] = t48 ^ ~t60;
+    }
+
+    /**
+     * Converts up to 64 blocks into the bitsliced state, eight blocks at a
+     * time: byte i of eight blocks forms an 8x8 bit matrix which
+     * {@link #transpose} turns into 8 bits of each of the planes of byte i.
+     */
+    private static void load(byte[] in, int inOff, int blocks, long[] q) {
+
+        Arrays.fill(q, 0, 128, 0);
+        for (int g = 0; 8 * g < blocks; ++g) {
+            final int count = Math.min(8, blocks - 8 * g);
+            for (int i = 0; i < 16; ++i) {
+                long x = 0;
+                for (int m = 0; m < count; ++m) {
+                    x |= (long) (in[inOff + 16 * (8 * g + m) + i] & 0xff) << (8 * m);
+                }
+                x = transpose(x);
+                for (int j = 0; j < 8; ++j) {
+                    q[8 * i + j] |= ((x >>> (8 * j)) & 0xff) << (8 * g);
+                }
+            }
+        }
+    }
+
+    /**
+     * The inverse of {@link #load}.
+     */
+    private static void store(long[] q, int blocks, byte[] out, int outOff) {
+
+        for (int g = 0; 8 * g < blocks; ++g) {
+            final int count = Math.min(8, blocks - 8 * g);
+            for (int i = 0; i < 16; ++i) {
+                long x = 0;
+                for (int j = 0; j < 8; ++j) {
+                    x |= ((q[8 * i + j] >>> (8 * g)) & 0xff) << (8 * j);
+                }
+                x = transpose(x);
+                for (int m = 0; m < count; ++m) {
+                    out[outOff + 16 * (8 * g + m) + i] = (byte) (x >>> (8 * m));
+                }
+            }
+        }
+    }
+
+    /**
+     * Transposes an 8x8 bit matrix, byte r holding row r: bit c of byte r
+     * moves to bit r of byte c.
+     * Details: Hacker's Delight, section 7-3.
+     */
+    private static long transpose(long x) {
+
+        long t = (x ^ (x >>> 7)) & 0x00AA00AA00AA00AAL;
+        x ^= t ^ (t << 7);
+        t = (x ^ (x >>> 14)) & 0x0000CCCC0000CCCCL;
+        x ^= t ^ (t << 14);
+        t = (x ^ (x >>> 28)) & 0x00000000F0F0F0F0L;
+        x ^= t ^ (t << 28);
+        return x;
+    }
+}
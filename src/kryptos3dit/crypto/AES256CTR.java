@@ -1,16 +1,23 @@
 package kryptos3dit.crypto;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.ReadOnlyBufferException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class implements AES-256 encryption/decryption on an
@@ -20,9 +27,39 @@ import java.security.NoSuchAlgorithmException;
  * @author  Jaideep
  */
 public final class AES256CTR {
+
+    /**
+     * The default number of bytes processed at a time by the streaming mode.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * The default size of the window mapped into memory by the memory-mapped mode.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+
+    /**
+     * The default chunk size of the journaled mode, every chunk is written
+     * twice and forced to disk.
+     */
+    public static final int DEFAULT_JOURNAL_CHUNK_SIZE = 1 << 22;
+
+    /**
+     * The default number of bytes transferred at a time by the direct I/O mode,
+     * which gets no read-ahead from the operating system.
+     */
+    public static final int DEFAULT_DIRECT_CHUNK_SIZE = 1 << 23;
+
+    /**
+     * The smallest and largest ranges handed to one thread by the parallel mode.
+     */
+    private static final long MIN_SEGMENT_SIZE = 1 << 16;
+    private static final long MAX_SEGMENT_SIZE = 1 << 23;
     
-    private final char[] key;
-    private final char[] nonce;
+    private final byte[] nonce;
+    private final ExpandedKey schedule;
+    private final boolean gcmCounter;
+    private CipherEngine engine = AES256Engine.select();
 
     /**
      * WARNING: This constructor is only for testing purposes.
@@ -31,8 +68,10 @@ public final class AES256CTR {
      */
     public AES256CTR(char[] key) {
         super();
-        this.key = key;
-        this.nonce = new char[] {' '};
+        this.nonce = new byte[16];
+        this.nonce[0] = ' ';
+        this.schedule = new ExpandedKey(key);
+        this.gcmCounter = false;
     }
 
     /**
@@ -44,65 +83,751 @@ public final class AES256CTR {
         
         super();
         
-        byte[] keyByte = MessageDigest.getInstance("SHA-256").digest(
-            password.getBytes(StandardCharsets.UTF_8)
-        );
+        byte[] keyByte = deriveKey(password);
 
-        byte[] nonceByte = MessageDigest.getInstance("SHA-256").digest(
-            keyByte
-        );
-        
-        char[] keyChar = new char[keyByte.length];
-        for (int i = 0; i < keyByte.length; ++i) {
-            keyChar[i] = (char) Byte.toUnsignedInt(keyByte[i]);
+        this.nonce = deriveNonce(keyByte);
+        this.schedule = new ExpandedKey(keyByte);
+        this.gcmCounter = false;
+    }
+
+    /**
+     * This constructor takes the key and nonce directly, for callers which
+     * manage their own keys.
+     * @param key       The 256-bit key stored as byte[32].
+     * @param nonce     The nonce stored as byte[16].
+     * @throws IllegalArgumentException If the key or nonce has the wrong length.
+     */
+    public AES256CTR(byte[] key, byte[] nonce) throws IllegalArgumentException {
+
+        super();
+
+        if (nonce == null || nonce.length != 16) {
+            throw new IllegalArgumentException("nonce must be 16 bytes long");
         }
+        this.nonce = nonce.clone();
+        this.schedule = new ExpandedKey(key);
+        this.gcmCounter = false;
+    }
+
+    /**
+     * Builds an instance around a key and nonce derived earlier, for
+     * {@link KeyCache}. Neither is copied, both may be shared with other
+     * instances and must not change.
+     * @param schedule  The expanded key.
+     * @param nonce     The nonce stored as byte[16].
+     */
+    AES256CTR(ExpandedKey schedule, byte[] nonce) {
+
+        super();
+
+        this.nonce = nonce;
+        this.schedule = schedule;
+        this.gcmCounter = false;
+    }
+
+    /**
+     * Builds the CTR part of GCM, see {@link AES256GCM}. The counter blocks are
+     * the 96-bit IV followed by a 32-bit big-endian counter, block 0 of the
+     * stream using counter 2 as the counter 1 block is kept for the tag.
+     * @param schedule  The expanded key, shared with the caller.
+     * @param iv        The IV stored as byte[12].
+     * @param engine    The block cipher implementation to use.
+     */
+    AES256CTR(ExpandedKey schedule, byte[] iv, CipherEngine engine) {
+
+        super();
+
+        this.nonce = Arrays.copyOf(iv, 16);
+        this.schedule = schedule;
+        this.gcmCounter = true;
+        this.engine = engine;
+    }
 
-        char[] nonceChar = new char[16];
-        for (int i = 0; i < nonceChar.length; ++i) {
-            nonceChar[i] = (char) Byte.toUnsignedInt(nonceByte[i]);
+    /**
+     * Derives the 256-bit key from a password, as SHA-256 of its UTF-8 bytes.
+     * Every format of this package uses the same key for the same password.
+     * @param password  The password.
+     * @return          The key stored as byte[32].
+     * @throws NoSuchAlgorithmException
+     */
+    static byte[] deriveKey(String password) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Derives the nonce of the headerless format from the key, as the first
+     * 16 bytes of SHA-256 of the key.
+     * @param key   The key stored as byte[32].
+     * @return      The nonce stored as byte[16].
+     * @throws NoSuchAlgorithmException
+     */
+    static byte[] deriveNonce(byte[] key) throws NoSuchAlgorithmException {
+        return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(key), 16);
+    }
+
+    /**
+     * @return The block cipher implementation used by this instance.
+     */
+    public CipherEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Selects the block cipher implementation. All engines give the same output,
+     * the default is the one picked by {@link AES256Engine#select()}.
+     * @param engine    The engine to use for the following encryptions.
+     */
+    public void setEngine(CipherEngine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine must not be null");
         }
+        this.engine = engine;
+    }
 
-        this.key = keyChar;
-        this.nonce = nonceChar;
+    /**
+     * @return The expanded key of this instance.
+     */
+    ExpandedKey getSchedule() {
+        return schedule;
     }
 
     /**
-     * This method performs bitwise-XOR on two 128-bit long data.
-     * This is required to generate the cyphertext (Output_of_AES256 XOR Plaintext)
-     * @param img       The image file loaded in char[].
-     * @param state     The encrypted state matrix char[16] from AES-256.
-     * @param blockNum  The block number which is being XORed.
-     * @return Nothing  The specific block in that image gets encrypted.
+     * This method builds the input to AES256 for a block, (Nonce XOR BlockNumber),
+     * without allocating. The low 32 bits of the block number go into bytes 0-3,
+     * big-endian, as in the first version of this class, and the high 32 bits
+     * into bytes 4-7, so the counter never wraps and files below 64 GB encrypt
+     * the same as before. Instances built for {@link AES256GCM} use the GCM
+     * counter layout instead.
+     * @param blockNum  The block number.
+     * @param out       The array receiving the counter block.
+     * @param off       Index of the first byte of the counter block in out.
+     * @return Nothing  The 16 bytes starting at {@code out[off]} get written.
      */
-    private static void XOR(char[] img, final char[] state, final int blockNum) {
-        final int blockStartIndex = state.length * blockNum;
-        for (int i = blockStartIndex; i < blockStartIndex + state.length && i < img.length; ++i) {
-                img[i] = (char) (img[i] ^ state[i % state.length]);
+    void counterBlock(long blockNum, byte[] out, int off) {
+
+        if (gcmCounter) {
+            final int counter = (int) (blockNum + 2);
+            System.arraycopy(nonce, 0, out, off, 12);
+            out[off + 12] = (byte) (counter >>> 24);
+            out[off + 13] = (byte) (counter >>> 16);
+            out[off + 14] = (byte) (counter >>> 8);
+            out[off + 15] = (byte) counter;
+            return;
         }
+
+        final int low = (int) blockNum;
+        final int high = (int) (blockNum >>> 32);
+        System.arraycopy(nonce, 0, out, off, 16);
+        out[off] ^= (low >>> 24);
+        out[off + 1] ^= (low >>> 16);
+        out[off + 2] ^= (low >>> 8);
+        out[off + 3] ^= low;
+        out[off + 4] ^= (high >>> 24);
+        out[off + 5] ^= (high >>> 16);
+        out[off + 6] ^= (high >>> 8);
+        out[off + 7] ^= high;
     }
 
     /**
-     * This method performs bitwise-XOR on two 128-bit long data.
-     * This is required to generate input to AES256 (Nonce XOR BlockNumber)
-     * @param nonce     First 128-bit data of type char[16].
-     * @param blockNum  Second 128-bit data of type char[16].
-     * @return          The output string after performing bitwise-XOR
-     * @throws  ReadOnlyBufferException
-     * @throws  BufferOverflowException
+     * This method performs encryption on bytes held in memory.
+     * Decryption is the same operation.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param data      The bytes to be encrypted.
+     * @return Nothing  The bytes in data get encrypted.
      */
-    private static char[] XOR(char[] nonce, int blockNum) throws 
-            ReadOnlyBufferException, BufferOverflowException {
-        
-        ByteBuffer bf = ByteBuffer.allocate(nonce.length);
-        bf.order(ByteOrder.BIG_ENDIAN);
-        bf.putInt(blockNum);
-        byte[] b = bf.array();
+    public static void encrypt(AES256CTR ob, byte[] data) {
+
+        encrypt(ob, data, 0, data.length, 0);
+    }
+
+    /**
+     * This method performs encryption on a range of bytes held in memory.
+     * The range is treated as the part of a larger stream starting at
+     * {@code position}, so a stream can be encrypted in pieces.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param data      The bytes to be encrypted.
+     * @param off       Index of the first byte in data.
+     * @param len       The number of bytes to encrypt.
+     * @param position  The position of {@code data[off]} in the stream.
+     * @return Nothing  The bytes in data get encrypted.
+     * @throws IndexOutOfBoundsException If the range is not inside data.
+     * @throws IllegalArgumentException If position is negative.
+     */
+    public static void encrypt(AES256CTR ob, byte[] data, int off, int len, long position) throws
+            IndexOutOfBoundsException, IllegalArgumentException {
+
+        checkRange(data, off, len, position);
+        new Keystream(ob).apply(data, off, len, position);
+    }
+
+    /**
+     * Checks the arguments of the in-memory encryption of a range.
+     * @throws IndexOutOfBoundsException If the range is not inside data.
+     * @throws IllegalArgumentException If position is negative.
+     */
+    static void checkRange(byte[] data, int off, int len, long position) throws
+            IndexOutOfBoundsException, IllegalArgumentException {
+
+        if (off < 0 || len < 0 || len > data.length - off) {
+            throw new IndexOutOfBoundsException("Range [" + off + ", " + off + " + " + len
+                    + ") out of bounds for length " + data.length);
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("position must not be negative");
+        }
+    }
+
+    /**
+     * This method performs encryption on the bytes between the position and the
+     * limit of a heap or direct buffer, in place. The position and limit of the
+     * buffer are not changed.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param buffer    The buffer holding the bytes to be encrypted.
+     * @param position  The position of {@code buffer.get(buffer.position())} in the stream.
+     * @return Nothing  The bytes in buffer get encrypted.
+     * @throws ReadOnlyBufferException If the buffer is read-only.
+     * @throws IllegalArgumentException If position is negative.
+     */
+    public static void encrypt(AES256CTR ob, ByteBuffer buffer, long position) throws
+            ReadOnlyBufferException, IllegalArgumentException {
+
+        checkBuffer(buffer, position);
+        new Keystream(ob).apply(buffer, buffer.position(), buffer.remaining(), position);
+    }
+
+    /**
+     * Checks the arguments of the in-memory encryption of a buffer.
+     * @throws ReadOnlyBufferException If the buffer is read-only.
+     * @throws IllegalArgumentException If position is negative.
+     */
+    static void checkBuffer(ByteBuffer buffer, long position) throws
+            ReadOnlyBufferException, IllegalArgumentException {
+
+        if (buffer.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("position must not be negative");
+        }
+    }
+
+    /**
+     * This method encrypts {@code length} bytes from one channel into another,
+     * one buffer at a time. The source and the destination can be the same
+     * channel, in which case the data is encrypted in place.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param src       The channel to read from.
+     * @param srcPos    The position in src of the first byte.
+     * @param dst       The channel to write to.
+     * @param dstPos    The position in dst of the first byte.
+     * @param length    The number of bytes to encrypt.
+     * @param position  The position of the first byte in the encrypted stream.
+     * @param buffer    A heap buffer, its capacity is the chunk size.
+     * @param keystream The keystream generator of ob used by this thread.
+     * @return Nothing  The bytes get written to dst.
+     * @throws IOException
+     */
+    static void process(AES256CTR ob, FileChannel src, long srcPos, FileChannel dst, long dstPos,
+            long length, long position, ByteBuffer buffer, Keystream keystream) throws IOException {
+
+        process(ob, src, srcPos, dst, dstPos, length, position, buffer, keystream, null);
+    }
+
+    /**
+     * This method encrypts {@code length} bytes from one channel into another,
+     * one buffer at a time, and reports progress after every chunk.
+     * If the listener cancels while encrypting in place, the chunks already
+     * done are encrypted again, which restores them, so the file is left as
+     * it was before the call.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param src       The channel to read from.
+     * @param srcPos    The position in src of the first byte.
+     * @param dst       The channel to write to.
+     * @param dstPos    The position in dst of the first byte.
+     * @param length    The number of bytes to encrypt.
+     * @param position  The position of the first byte in the encrypted stream.
+     * @param buffer    A heap buffer, its capacity is the chunk size.
+     * @param keystream The keystream generator of ob used by this thread.
+     * @param listener  Receives progress reports, may be null.
+     * @return Nothing  The bytes get written to dst.
+     * @throws IOException
+     * @throws CancellationException If the listener cancelled the operation.
+     */
+    static void process(AES256CTR ob, FileChannel src, long srcPos, FileChannel dst, long dstPos,
+            long length, long position, ByteBuffer buffer, Keystream keystream, ProgressListener listener)
+            throws IOException, CancellationException {
+
+        final byte[] data = buffer.array();
+        long done = 0;
+
+        while (done < length) {
+            final int n = (int) Math.min(buffer.capacity(), length - done);
+
+            // Read a full chunk
+            buffer.clear().limit(n);
+            while (buffer.hasRemaining()) {
+                if (src.read(buffer, srcPos + done + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file at " + (srcPos + done + buffer.position()));
+                }
+            }
+
+            keystream.apply(data, 0, n, position + done);
+
+            // Write it back
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                dst.write(buffer, dstPos + done + buffer.position());
+            }
+            done += n;
+
+            if (listener != null && !listener.onProgress(done, length)) {
+                if (src == dst && srcPos == dstPos) {
+                    // Undo the chunks which are done, CTR is its own inverse
+                    process(ob, dst, dstPos, dst, dstPos, done, position, buffer, keystream, null);
+                    throw new CancellationException("Cancelled, the file was restored");
+                }
+                throw new CancellationException("Cancelled after " + done + " bytes");
+            }
+        }
+    }
+
+    /**
+     * This method performs encryption on the file in place, reading and writing
+     * it in chunks of {@link #DEFAULT_CHUNK_SIZE} bytes. Memory use does not depend
+     * on the size of the file. Produces the same output as
+     * {@link #encrypt(AES256CTR, String)}. Decryption is the same operation.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @return Nothing  The file specified by {@code filePath} gets encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     */
+    public static void encryptStreaming(AES256CTR ob, String filePath) throws
+            IOException, SecurityException, InvalidPathException {
+
+        encryptStreaming(ob, filePath, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * This method performs encryption on the file in place, reading and writing
+     * it in chunks of {@code chunkSize} bytes.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @param chunkSize The number of bytes held in memory at a time.
+     * @return Nothing  The file specified by {@code filePath} gets encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     * @throws IllegalArgumentException If chunkSize is not positive.
+     */
+    public static void encryptStreaming(AES256CTR ob, String filePath, int chunkSize) throws
+            IOException, SecurityException, InvalidPathException, IllegalArgumentException {
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            process(ob, channel, 0, channel, 0, channel.size(), 0,
+                    ByteBuffer.allocate(chunkSize), new Keystream(ob));
+        }
+    }
+
+    /**
+     * This method performs encryption on the file in place, like
+     * {@link #encryptStreaming(AES256CTR, String)}, and reports progress to
+     * {@code listener} after every chunk. If the listener cancels, the part
+     * already encrypted is restored and the file is left unchanged.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @param listener  Receives progress reports and can cancel.
+     * @return Nothing  The file specified by {@code filePath} gets encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     * @throws CancellationException If the listener cancelled, the file is unchanged.
+     */
+    public static void encryptStreaming(AES256CTR ob, String filePath, ProgressListener listener) throws
+            IOException, SecurityException, InvalidPathException, CancellationException {
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            final long size = channel.size();
+            if (!listener.onProgress(0, size)) {
+                throw new CancellationException("Cancelled before starting");
+            }
+            process(ob, channel, 0, channel, 0, size, 0,
+                    ByteBuffer.allocate(DEFAULT_CHUNK_SIZE), new Keystream(ob), listener);
+        }
+    }
+
+    /**
+     * This method performs encryption on the file in place with direct I/O,
+     * bypassing the page cache so that encrypting large files does not evict
+     * the cached data of other programs. If the file system does not support
+     * direct I/O, the file is encrypted with the streaming mode instead.
+     * Produces the same output as {@link #encrypt(AES256CTR, String)}.
+     * Decryption is the same operation.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @return          true if the page cache was bypassed, false if the streaming mode was used.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     */
+    public static boolean encryptDirect(AES256CTR ob, String filePath) throws
+            IOException, SecurityException, InvalidPathException {
 
-        char[] result = new char[nonce.length];
-        for (int i = 0; i < nonce.length; ++i) {
-            result[i] = (char) (nonce[i] ^ (char) Byte.toUnsignedInt(b[i]));
+        return encryptDirect(ob, filePath, DEFAULT_DIRECT_CHUNK_SIZE);
+    }
+
+    /**
+     * This method performs encryption on the file in place with direct I/O,
+     * {@code chunkSize} bytes at a time, rounded down to whole blocks of the
+     * file system.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @param chunkSize The number of bytes transferred at a time.
+     * @return          true if the page cache was bypassed, false if the streaming mode was used.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     * @throws IllegalArgumentException If chunkSize is not positive.
+     */
+    public static boolean encryptDirect(AES256CTR ob, String filePath, int chunkSize) throws
+            IOException, SecurityException, InvalidPathException, IllegalArgumentException {
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
         }
-        return result;
+        return DirectIO.encrypt(ob, Paths.get(filePath), chunkSize);
+    }
+
+    /**
+     * This method performs encryption on the file in place and can be resumed
+     * after a crash. Every chunk is recorded in a journal next to the file
+     * before it is written, and if a journal is left from an earlier run with
+     * the same key, encryption carries on from the last chunk which reached
+     * the disk instead of starting again. The journal is deleted at the end.
+     * Produces the same output as {@link #encrypt(AES256CTR, String)}.
+     * Decryption is the same operation.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @return Nothing  The file specified by {@code filePath} gets encrypted.
+     * @throws IOException If the journal belongs to another key or the file changed size.
+     * @throws SecurityException
+     * @throws InvalidPathException
+     */
+    public static void encryptJournaled(AES256CTR ob, String filePath) throws
+            IOException, SecurityException, InvalidPathException {
+
+        encryptJournaled(ob, filePath, DEFAULT_JOURNAL_CHUNK_SIZE, null);
+    }
+
+    /**
+     * This method performs encryption on the file in place and can be resumed,
+     * like {@link #encryptJournaled(AES256CTR, String)}, and reports progress to
+     * {@code listener} after every chunk. If the listener cancels, the journal
+     * is kept, so the next call resumes where this one stopped.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @param chunkSize The size of the chunks of a new journal, a resumed
+     *                  journal keeps the size it was started with.
+     * @param listener  Receives progress reports and can cancel, may be null.
+     * @return Nothing  The file specified by {@code filePath} gets encrypted.
+     * @throws IOException If the journal belongs to another key or the file changed size.
+     * @throws SecurityException
+     * @throws InvalidPathException
+     * @throws IllegalArgumentException If chunkSize is not positive.
+     * @throws CancellationException If the listener cancelled, the file is then partly encrypted.
+     */
+    public static void encryptJournaled(AES256CTR ob, String filePath, int chunkSize, ProgressListener listener)
+            throws IOException, SecurityException, InvalidPathException, IllegalArgumentException,
+            CancellationException {
+
+        new Journal(ob, null, Paths.get(filePath), chunkSize).run(listener);
+    }
+
+    /**
+     * @param filePath  The path to a file.
+     * @return          True if an encryption of the file with
+     *                  {@link #encryptJournaled(AES256CTR, String)} was interrupted.
+     * @throws InvalidPathException
+     */
+    public static boolean hasJournal(String filePath) throws InvalidPathException {
+        return Files.exists(Journal.journalOf(Paths.get(filePath)));
+    }
+
+    /**
+     * This method performs encryption on the file in place by mapping it into
+     * memory, {@link #DEFAULT_WINDOW_SIZE} bytes at a time, and XORing the
+     * keystream directly into the mapped pages.
+     * Produces the same output as {@link #encrypt(AES256CTR, String)}.
+     * Decryption is the same operation.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @return Nothing  The file specified by {@code filePath} gets encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     */
+    public static void encryptMapped(AES256CTR ob, String filePath) throws
+            IOException, SecurityException, InvalidPathException {
+
+        encryptMapped(ob, filePath, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * This method performs encryption on the file in place by mapping it into
+     * memory, {@code windowSize} bytes at a time. Files larger than a single
+     * mapping (2 GB) are handled by sliding the window along the file.
+     * Each window is written to the disk and unmapped before the next one is
+     * mapped, so a failed write shows up as an exception and only one window
+     * of address space is used at a time. On a JDK which cannot unmap, the
+     * file is encrypted with {@link #encryptStreaming(AES256CTR, String)} instead.
+     * @param ob            Instance of AES256CTR which stores the nonce and key.
+     * @param filePath      The path to the file which needs to be encrypted.
+     * @param windowSize    The number of bytes mapped at a time, a positive multiple of 16.
+     * @return Nothing      The file specified by {@code filePath} gets encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     * @throws IllegalArgumentException If windowSize is not a positive multiple of 16.
+     */
+    public static void encryptMapped(AES256CTR ob, String filePath, int windowSize) throws
+            IOException, SecurityException, InvalidPathException, IllegalArgumentException {
+
+        if (windowSize <= 0 || windowSize % 16 != 0) {
+            throw new IllegalArgumentException("windowSize must be a positive multiple of 16");
+        }
+
+        if (!Unmapper.isSupported()) {
+            // Windows would only be released by the garbage collector
+            encryptStreaming(ob, filePath);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            final long size = channel.size();
+            final Keystream keystream = new Keystream(ob);
+
+            for (long position = 0; position < size; position += windowSize) {
+                final int length = (int) Math.min(windowSize, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+                try {
+                    keystream.apply(window, 0, length, position);
+                    window.force();
+                } finally {
+                    Unmapper.unmap(window);
+                }
+            }
+        }
+    }
+
+    /**
+     * This method performs encryption on the file in place, overlapping the
+     * reading, encryption and writing of consecutive chunks. One thread encrypts
+     * while others read and write. Produces the same output as
+     * {@link #encrypt(AES256CTR, String)}. Decryption is the same operation.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @return Nothing  The file specified by {@code filePath} gets encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     */
+    public static void encryptPipelined(AES256CTR ob, String filePath) throws
+            IOException, SecurityException, InvalidPathException {
+
+        encryptPipelined(ob, filePath, 1, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * This method performs encryption on the file in place with a reader thread,
+     * {@code cipherThreads} encrypting threads and a writer thread, connected by
+     * bounded queues of recycled buffers of {@code chunkSize} bytes.
+     * @param ob            Instance of AES256CTR which stores the nonce and key.
+     * @param filePath      The path to the file which needs to be encrypted.
+     * @param cipherThreads The number of threads encrypting chunks.
+     * @param chunkSize     The size of every buffer.
+     * @return Nothing      The file specified by {@code filePath} gets encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     * @throws IllegalArgumentException If cipherThreads or chunkSize is not positive.
+     */
+    public static void encryptPipelined(AES256CTR ob, String filePath, int cipherThreads, int chunkSize) throws
+            IOException, SecurityException, InvalidPathException, IllegalArgumentException {
+
+        if (cipherThreads <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("cipherThreads and chunkSize must be positive");
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            new Pipeline(ob, channel, cipherThreads, chunkSize).run();
+        }
+    }
+
+    /**
+     * This method performs encryption on the file in place using all the
+     * cores of the machine (the common fork/join pool).
+     * Produces the same output as {@link #encrypt(AES256CTR, String)}.
+     * Decryption is the same operation.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @return Nothing  The file specified by {@code filePath} gets encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     */
+    public static void encryptParallel(AES256CTR ob, String filePath) throws
+            IOException, SecurityException, InvalidPathException {
+
+        encryptParallel(ob, filePath, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This method performs encryption on the file in place using
+     * {@code parallelism} threads.
+     * @param ob            Instance of AES256CTR which stores the nonce and key.
+     * @param filePath      The path to the file which needs to be encrypted.
+     * @param parallelism   The number of threads to use.
+     * @return Nothing      The file specified by {@code filePath} gets encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     * @throws IllegalArgumentException If parallelism is not positive.
+     */
+    public static void encryptParallel(AES256CTR ob, String filePath, int parallelism) throws
+            IOException, SecurityException, InvalidPathException, IllegalArgumentException {
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            encryptParallel(ob, filePath, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * This method performs encryption on the file in place. The file is split
+     * into ranges starting on block boundaries, which are encrypted by the
+     * threads of {@code pool}.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param filePath  The path to the file which needs to be encrypted.
+     * @param pool      The pool which runs the encryption.
+     * @return Nothing  The file specified by {@code filePath} gets encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     */
+    public static void encryptParallel(AES256CTR ob, String filePath, ForkJoinPool pool) throws
+            IOException, SecurityException, InvalidPathException {
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            final long size = channel.size();
+            pool.invoke(new SegmentTask(ob, channel, 0, size, segmentSize(size, pool.getParallelism())));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * This method changes the key of an encrypted file in place, reading and
+     * writing it once. Both keystreams are XORed in at the same time, so the
+     * plain bytes are never written out. The output is the same as
+     * {@link #decryption(AES256CTR, String)} with {@code from} followed by
+     * {@link #encrypt(AES256CTR, String)} with {@code to}.
+     * @param from      Instance of AES256CTR which the file is encrypted with.
+     * @param to        Instance of AES256CTR to encrypt the file with instead.
+     * @param filePath  The path to the encrypted file.
+     * @return Nothing  The file specified by {@code filePath} gets re-encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     */
+    public static void rekey(AES256CTR from, AES256CTR to, String filePath) throws
+            IOException, SecurityException, InvalidPathException {
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            process(from, channel, 0, channel, 0, channel.size(), 0,
+                    ByteBuffer.allocate(DEFAULT_CHUNK_SIZE), new Keystream(from, to));
+        }
+    }
+
+    /**
+     * This method changes the key of an encrypted file in place, like
+     * {@link #rekey(AES256CTR, AES256CTR, String)}, with the ranges of the
+     * file re-encrypted by the threads of {@code pool}.
+     * @param from      Instance of AES256CTR which the file is encrypted with.
+     * @param to        Instance of AES256CTR to encrypt the file with instead.
+     * @param filePath  The path to the encrypted file.
+     * @param pool      The pool which runs the re-encryption.
+     * @return Nothing  The file specified by {@code filePath} gets re-encrypted.
+     * @throws IOException
+     * @throws SecurityException
+     * @throws InvalidPathException
+     */
+    public static void rekeyParallel(AES256CTR from, AES256CTR to, String filePath, ForkJoinPool pool) throws
+            IOException, SecurityException, InvalidPathException {
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            final long size = channel.size();
+            pool.invoke(new SegmentTask(from, to, channel, 0, size, segmentSize(size, pool.getParallelism())));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * This method changes the key of an encrypted file in place and can be
+     * resumed after a crash, like {@link #encryptJournaled(AES256CTR, String)}.
+     * A journal left by an interrupted rekey is only resumed with the same
+     * two keys.
+     * @param from      Instance of AES256CTR which the file is encrypted with.
+     * @param to        Instance of AES256CTR to encrypt the file with instead.
+     * @param filePath  The path to the encrypted file.
+     * @param chunkSize The size of the chunks of a new journal.
+     * @param listener  Receives progress reports and can cancel, may be null.
+     * @return Nothing  The file specified by {@code filePath} gets re-encrypted.
+     * @throws IOException If the journal belongs to other keys or the file changed size.
+     * @throws SecurityException
+     * @throws InvalidPathException
+     * @throws IllegalArgumentException If chunkSize is not positive.
+     * @throws CancellationException If the listener cancelled, the journal is then kept.
+     */
+    public static void rekeyJournaled(AES256CTR from, AES256CTR to, String filePath, int chunkSize,
+            ProgressListener listener) throws IOException, SecurityException, InvalidPathException,
+            IllegalArgumentException, CancellationException {
+
+        new Journal(from, to, Paths.get(filePath), chunkSize).run(listener);
+    }
+
+    /**
+     * Picks the size of the ranges handed to each thread, so that there are
+     * a few ranges per thread to balance the load.
+     * @param size          The size of the file.
+     * @param parallelism   The number of threads.
+     * @return              A multiple of 16 between the minimum and maximum segment size.
+     */
+    static long segmentSize(long size, int parallelism) {
+        long segment = size / (4L * parallelism);
+        segment = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, segment));
+        return segment & ~15L;
     }
 
     /**
@@ -121,24 +846,9 @@ public final class AES256CTR {
             IOException, OutOfMemoryError, SecurityException, InvalidPathException,
             ReadOnlyBufferException, BufferOverflowException {
 
-        // Read the file into bytes[], convert into char[]
+        // Read the file into bytes[] and encrypt it in memory
         byte[] bytes = Files.readAllBytes(Paths.get(filePath));
-
-        char[] img = new char[bytes.length];
-        for (int i = 0; i < img.length; ++i) {
-            img[i] = (char) Byte.toUnsignedInt(bytes[i]);
-        }
-
-        final int NUMBER_OF_BLOCKS = img.length / 16 + (img.length % 16 == 0 ? 0 : 1);
-        for (int i = 0; i < NUMBER_OF_BLOCKS; ++i) {
-            char[] result = XOR(ob.nonce, i);
-            AES256.encrypt(result, ob.key);
-            XOR(img, result, i);
-        }
-
-        for (int i = 0; i < img.length; ++i) {
-            bytes[i] = (byte) img[i];
-        }
+        new Keystream(ob).apply(bytes, 0, bytes.length, 0);
         Files.write(Paths.get(filePath), bytes);
     }
 
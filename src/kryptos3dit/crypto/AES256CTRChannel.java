@@ -0,0 +1,164 @@
+package kryptos3dit.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+
+/**
+ * This class gives random access to a file encrypted with {@link AES256CTR}.
+ * Bytes read through it are decrypted and bytes written through it are
+ * encrypted. In CTR mode any byte can be decrypted on its own, so reading
+ * from the middle of the file jumps straight to the right counter value
+ * instead of decrypting everything before it.
+ * @author  Jaideep
+ */
+public final class AES256CTRChannel implements SeekableByteChannel {
+
+    private final SeekableByteChannel channel;
+    private final Keystream keystream;
+    private final long offset;
+    private final long trailer;
+    private ByteBuffer scratch;
+
+    /**
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param channel   The channel holding the encrypted bytes.
+     */
+    public AES256CTRChannel(AES256CTR ob, SeekableByteChannel channel) {
+        this.channel = channel;
+        this.keystream = new Keystream(ob);
+        this.offset = 0;
+        this.trailer = 0;
+    }
+
+    /**
+     * Gives access to encrypted bytes which sit between a header and a trailer.
+     * Position 0 of this channel is position {@code offset} of the underlying
+     * channel, and reads stop before the trailer.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param channel   The channel holding the header and the encrypted bytes.
+     * @param offset    The size of the header.
+     * @param trailer   The size of the trailer, e.g. an authentication tag.
+     * @throws IOException
+     */
+    AES256CTRChannel(AES256CTR ob, SeekableByteChannel channel, long offset, long trailer) throws IOException {
+        this.channel = channel;
+        this.keystream = new Keystream(ob);
+        this.offset = offset;
+        this.trailer = trailer;
+        channel.position(offset);
+    }
+
+    /**
+     * Opens an encrypted file for random access.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param path      The path to the encrypted file.
+     * @param options   Options specifying how the file is opened, as in {@link FileChannel#open}.
+     * @return          A channel which decrypts on read and encrypts on write.
+     * @throws IOException
+     */
+    public static AES256CTRChannel open(AES256CTR ob, Path path, OpenOption... options) throws IOException {
+        return new AES256CTRChannel(ob, FileChannel.open(path, options));
+    }
+
+    /**
+     * Reads and decrypts bytes starting at the current position.
+     * @param dst   The buffer into which the plain bytes are transferred.
+     * @return      The number of bytes read, or -1 at the end of the channel.
+     * @throws IOException
+     */
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+
+        final long position = channel.position() - offset;
+        final int start = dst.position();
+        final int limit = dst.limit();
+
+        // Stop before the trailer
+        final long remaining = size() - position;
+        if (trailer > 0 && dst.remaining() > remaining) {
+            if (remaining <= 0) {
+                return dst.hasRemaining() ? -1 : 0;
+            }
+            dst.limit(start + (int) remaining);
+        }
+        final int n;
+        try {
+            n = channel.read(dst);
+        } finally {
+            dst.limit(limit);
+        }
+
+        if (n > 0) {
+            keystream.apply(dst, start, n, position);
+        }
+        return n;
+    }
+
+    /**
+     * Encrypts and writes bytes starting at the current position.
+     * The content of {@code src} is not modified.
+     * @param src   The buffer holding the plain bytes.
+     * @return      The number of bytes written.
+     * @throws IOException
+     */
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+
+        final int n = src.remaining();
+        if (scratch == null || scratch.capacity() < n) {
+            scratch = ByteBuffer.allocate(Math.max(n, 16));
+        }
+        scratch.clear();
+        scratch.put(src.duplicate()).flip();
+        keystream.apply(scratch.array(), 0, n, channel.position() - offset);
+
+        int written = 0;
+        while (scratch.hasRemaining()) {
+            written += channel.write(scratch);
+        }
+        src.position(src.position() + written);
+        return written;
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        return channel.position() - offset;
+    }
+
+    @Override
+    public synchronized AES256CTRChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("position must not be negative");
+        }
+        channel.position(offset + newPosition);
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        return Math.max(0, channel.size() - offset - trailer);
+    }
+
+    @Override
+    public synchronized AES256CTRChannel truncate(long size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+        channel.truncate(offset + size);
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,174 @@
+package kryptos3dit.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * This class encrypts many buffers and streams with one key, from any
+ * number of threads at once, for services which encrypt an object per
+ * request. The static methods of {@link AES256CTR} build a keystream
+ * generator, with its counter and keystream buffers, on every call. A session
+ * gives every thread its own the first time the thread uses it and reuses it
+ * afterwards, so once every thread has warmed up the methods on arrays and
+ * buffers allocate nothing. The engines keep their round state per thread
+ * too, except the byte-wise reference engine.
+ * The last keystream batch of a thread stays in its generator, so objects
+ * which all start at position 0 reuse it without encrypting a block.
+ * The state of a thread lives as long as the session or the thread, so
+ * create one session per key and keep it.
+ * Decryption is the same operation.
+ * @author  Jaideep
+ */
+public final class AES256CTRSession {
+
+    /**
+     * The size of the buffer each thread uses to encrypt streams.
+     */
+    public static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    private final AES256CTR ob;
+    private final ThreadLocal<Scratch> scratch;
+
+    /**
+     * The state of one thread.
+     */
+    private static final class Scratch {
+
+        final Keystream keystream;
+
+        // Allocated on the first stream, in use while a stream is encrypted
+        byte[] buffer;
+        boolean streaming;
+
+        Scratch(AES256CTR ob) {
+            this.keystream = new Keystream(ob);
+        }
+    }
+
+    /**
+     * @param ob    Instance of AES256CTR which stores the nonce and key.
+     */
+    public AES256CTRSession(AES256CTR ob) {
+
+        if (ob == null) {
+            throw new IllegalArgumentException("ob must not be null");
+        }
+        this.ob = ob;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(ob));
+    }
+
+    /**
+     * @return The instance of AES256CTR this session encrypts with.
+     */
+    public AES256CTR getCipher() {
+        return ob;
+    }
+
+    /**
+     * Encrypts bytes held in memory, as {@link AES256CTR#encrypt(AES256CTR, byte[])}.
+     * @param data      The bytes to be encrypted.
+     * @return Nothing  The bytes in data get encrypted.
+     */
+    public void encrypt(byte[] data) {
+
+        scratch.get().keystream.apply(data, 0, data.length, 0);
+    }
+
+    /**
+     * Encrypts a range of bytes held in memory, as
+     * {@link AES256CTR#encrypt(AES256CTR, byte[], int, int, long)}.
+     * @param data      The bytes to be encrypted.
+     * @param off       Index of the first byte in data.
+     * @param len       The number of bytes to encrypt.
+     * @param position  The position of {@code data[off]} in the stream.
+     * @return Nothing  The bytes in data get encrypted.
+     * @throws IndexOutOfBoundsException If the range is not inside data.
+     * @throws IllegalArgumentException If position is negative.
+     */
+    public void encrypt(byte[] data, int off, int len, long position) throws
+            IndexOutOfBoundsException, IllegalArgumentException {
+
+        AES256CTR.checkRange(data, off, len, position);
+        scratch.get().keystream.apply(data, off, len, position);
+    }
+
+    /**
+     * Encrypts the bytes between the position and the limit of a heap or
+     * direct buffer in place, as {@link AES256CTR#encrypt(AES256CTR, ByteBuffer, long)}.
+     * The position and limit of the buffer are not changed.
+     * @param buffer    The buffer holding the bytes to be encrypted.
+     * @param position  The position of {@code buffer.get(buffer.position())} in the stream.
+     * @return Nothing  The bytes in buffer get encrypted.
+     * @throws ReadOnlyBufferException If the buffer is read-only.
+     * @throws IllegalArgumentException If position is negative.
+     */
+    public void encrypt(ByteBuffer buffer, long position) throws
+            ReadOnlyBufferException, IllegalArgumentException {
+
+        AES256CTR.checkBuffer(buffer, position);
+        scratch.get().keystream.apply(buffer, buffer.position(), buffer.remaining(), position);
+    }
+
+    /**
+     * Encrypts everything read from a stream into another, starting at
+     * position 0. Neither stream is closed.
+     * @param in        The stream to read from.
+     * @param out       The stream to write to.
+     * @return          The number of bytes encrypted.
+     * @throws IOException
+     */
+    public long encrypt(InputStream in, OutputStream out) throws IOException {
+
+        return encrypt(in, out, 0);
+    }
+
+    /**
+     * Encrypts everything read from a stream into another, the first byte
+     * being at {@code position} in the encrypted stream. Neither stream is closed.
+     * @param in        The stream to read from.
+     * @param out       The stream to write to.
+     * @param position  The position of the first byte read in the encrypted stream.
+     * @return          The number of bytes encrypted.
+     * @throws IOException
+     * @throws IllegalArgumentException If position is negative.
+     */
+    public long encrypt(InputStream in, OutputStream out, long position) throws
+            IOException, IllegalArgumentException {
+
+        if (position < 0) {
+            throw new IllegalArgumentException("position must not be negative");
+        }
+
+        final Scratch state = scratch.get();
+        // A stream written to may encrypt with this session again on the same thread
+        final boolean nested = state.streaming;
+        final byte[] buffer;
+        if (nested) {
+            buffer = new byte[STREAM_BUFFER_SIZE];
+        } else {
+            if (state.buffer == null) {
+                state.buffer = new byte[STREAM_BUFFER_SIZE];
+            }
+            buffer = state.buffer;
+            state.streaming = true;
+        }
+
+        long done = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                state.keystream.apply(buffer, 0, n, position + done);
+                out.write(buffer, 0, n);
+                done += n;
+            }
+        } finally {
+            if (!nested) {
+                state.streaming = false;
+            }
+        }
+        return done;
+    }
+}
@@ -0,0 +1,141 @@
+package kryptos3dit.crypto;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The built-in block cipher implementations which {@link AES256CTR} can run on.
+ * All of them produce identical output, they only differ in speed and in
+ * whether their timing can leak the key through the CPU caches.
+ * {@link #select()} picks the fastest one which works on this JVM and whose
+ * timing does not depend on the key.
+ * @author  Jaideep
+ */
+public enum AES256Engine implements CipherEngine {
+
+    /**
+     * The byte-wise reference implementation, see {@link AES256}.
+     */
+    BYTEWISE {
+        @Override
+        public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks, ExpandedKey key) {
+            if (in != out || inOff != outOff) {
+                System.arraycopy(in, inOff, out, outOff, 16 * blocks);
+            }
+            for (int i = 0; i < blocks; ++i) {
+                AES256.encrypt(out, outOff + 16 * i, key);
+            }
+        }
+    },
+
+    /**
+     * The 32-bit word implementation using lookup tables, see {@link AES256TTable}.
+     */
+    TTABLE {
+        @Override
+        public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks, ExpandedKey key) {
+            AES256TTable.encryptBlocks(in, inOff, out, outOff, blocks, key.getRoundKeyWords());
+        }
+    },
+
+    /**
+     * The constant-time implementation which encrypts 64 blocks at once with
+     * boolean operations only, see {@link AES256Bitsliced}.
+     */
+    BITSLICED {
+        @Override
+        public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks, ExpandedKey key) {
+            AES256Bitsliced.encryptBlocks(in, inOff, out, outOff, blocks, key);
+        }
+    },
+
+    /**
+     * The JDK's AES implementation, hardware accelerated (AES-NI) on most CPUs,
+     * see {@link JceBlockCipher}. Without AES instructions HotSpot falls back
+     * to lookup tables, which are not constant-time.
+     */
+    JCE {
+        @Override
+        public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks, ExpandedKey key) {
+            JceBlockCipher.encryptBlocks(in, inOff, out, outOff, blocks, key);
+        }
+    };
+
+    @Override
+    public String getName() {
+        return name();
+    }
+
+    /**
+     * Picks the engine used by default: {@link #JCE} if HotSpot runs it on
+     * AES instructions and it passes a self-test, otherwise {@link #BITSLICED},
+     * which is slower than {@link #TTABLE} but does not look up tables with
+     * secret indexes. Both are constant-time. The check runs once per JVM.
+     * @return The selected engine.
+     */
+    public static AES256Engine select() {
+        return Selection.ENGINE;
+    }
+
+    /**
+     * Checks that an engine gives the same output as the reference
+     * implementation, on a NIST test vector and on random blocks.
+     * @param engine    The engine under test.
+     * @return          true if the engine works and matches the reference.
+     */
+    static boolean selfTest(CipherEngine engine) {
+
+        // NIST AESAVS VarTxt, key = 0, plaintext = 80000000000000000000000000000000
+        byte[] block = new byte[16];
+        block[0] = (byte) 0x80;
+        final byte[] expected = {
+            (byte) 0xdd, (byte) 0xc6, (byte) 0xbf, (byte) 0x79, (byte) 0x0c, (byte) 0x15, (byte) 0x76, (byte) 0x0d,
+            (byte) 0x8d, (byte) 0x9a, (byte) 0xeb, (byte) 0x6f, (byte) 0x9a, (byte) 0x75, (byte) 0xfd, (byte) 0x4e
+        };
+
+        byte[] randomKey = new byte[32];
+        byte[] blocks = new byte[16 * 37];
+        Random random = new Random(0x6b727970);
+        random.nextBytes(randomKey);
+        random.nextBytes(blocks);
+        ExpandedKey key = new ExpandedKey(randomKey);
+
+        try {
+            engine.encryptBlocks(block, 0, block, 0, 1, new ExpandedKey(new byte[32]));
+
+            byte[] reference = new byte[blocks.length];
+            byte[] actual = new byte[blocks.length];
+            BYTEWISE.encryptBlocks(blocks, 0, reference, 0, 37, key);
+            engine.encryptBlocks(blocks, 0, actual, 0, 37, key);
+
+            return Arrays.equals(block, expected) && Arrays.equals(reference, actual);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return  true if the JVM is HotSpot and uses the AES instructions of the
+     *          CPU, which it turns off by itself on CPUs without them.
+     *          Unknown on other JVMs, so false.
+     */
+    static boolean hasHardwareAes() {
+
+        try {
+            HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return hotSpot != null && Boolean.parseBoolean(hotSpot.getVMOption("UseAES").getValue());
+        } catch (LinkageError | RuntimeException e) {
+            // jdk.management is not in the image, or the flag does not exist
+            return false;
+        }
+    }
+
+    /**
+     * Holds the result of {@link #select()}, computed on first use.
+     */
+    private static final class Selection {
+        static final AES256Engine ENGINE = hasHardwareAes() && selfTest(JCE) ? JCE : BITSLICED;
+    }
+}
@@ -0,0 +1,513 @@
+package kryptos3dit.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * This class implements AES-256 in Galois/Counter Mode (GCM), which encrypts
+ * and authenticates in the same pass. The output is the same as the
+ * "AES/GCM/NoPadding" cipher of the JDK with a 96-bit IV and a 128-bit tag.
+ * The CTR part reuses the keystream of {@link AES256CTR} with the GCM counter
+ * layout, so every {@link CipherEngine} can be used. GHASH is table-driven,
+ * see {@link GHash}, and large inputs are hashed in ranges on several threads
+ * whose hashes are combined at the end.
+ * Details about GCM: https://en.wikipedia.org/wiki/Galois/Counter_Mode
+ * @author  Jaideep
+ */
+public final class AES256GCM {
+
+    /**
+     * The size of the IV in bytes.
+     */
+    public static final int IV_SIZE = 12;
+
+    /**
+     * The size of the authentication tag in bytes.
+     */
+    public static final int TAG_SIZE = 16;
+
+    /**
+     * The longest input GCM allows with one IV, 2^32 - 2 blocks.
+     */
+    public static final long MAX_LENGTH = ((1L << 32) - 2) * 16;
+
+    private final ExpandedKey schedule;
+    private final GHash ghash;
+    private CipherEngine engine = AES256Engine.select();
+
+    /**
+     * @param key       The 256-bit key stored as byte[32].
+     * @throws IllegalArgumentException If the key has the wrong length.
+     */
+    public AES256GCM(byte[] key) throws IllegalArgumentException {
+
+        this.schedule = new ExpandedKey(key);
+        byte[] h = new byte[16];
+        engine.encryptBlocks(h, 0, h, 0, 1, schedule);
+        this.ghash = new GHash(h);
+    }
+
+    /**
+     * @return The block cipher implementation used by this instance.
+     */
+    public CipherEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Selects the block cipher implementation. All engines give the same output.
+     * @param engine    The engine to use for the following encryptions.
+     */
+    public void setEngine(CipherEngine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine must not be null");
+        }
+        this.engine = engine;
+    }
+
+    /**
+     * This method encrypts bytes held in memory in place.
+     * @param iv        The IV stored as byte[12], never reused with the same key.
+     * @param aad       Additional data which is authenticated but not encrypted, may be null.
+     * @param data      The bytes to be encrypted.
+     * @param off       Index of the first byte in data.
+     * @param len       The number of bytes to encrypt.
+     * @return          The authentication tag, byte[16].
+     * @throws IllegalArgumentException If the IV has the wrong length.
+     * @throws IndexOutOfBoundsException If the range is not inside data.
+     */
+    public byte[] encrypt(byte[] iv, byte[] aad, byte[] data, int off, int len) throws
+            IllegalArgumentException, IndexOutOfBoundsException {
+
+        checkRange(data, off, len);
+        AES256CTR ctr = counterMode(iv);
+        new Keystream(ctr).apply(data, off, len, 0);
+
+        long[] state = hashStart(aad);
+        ghash.update(state, data, off, len);
+        return tag(ctr, state, aad == null ? 0 : aad.length, len);
+    }
+
+    /**
+     * This method checks the tag and decrypts bytes held in memory in place.
+     * The tag is checked first, so nothing is decrypted if it does not match.
+     * @param iv        The IV used to encrypt.
+     * @param aad       The additional data used to encrypt, may be null.
+     * @param data      The bytes to be decrypted.
+     * @param off       Index of the first byte in data.
+     * @param len       The number of bytes to decrypt.
+     * @param tag       The tag returned by the encryption.
+     * @return Nothing  The bytes in data get decrypted.
+     * @throws AEADBadTagException If the data, the additional data or the tag was modified.
+     * @throws IllegalArgumentException If the IV has the wrong length.
+     * @throws IndexOutOfBoundsException If the range is not inside data.
+     */
+    public void decrypt(byte[] iv, byte[] aad, byte[] data, int off, int len, byte[] tag) throws
+            AEADBadTagException, IllegalArgumentException, IndexOutOfBoundsException {
+
+        checkRange(data, off, len);
+        AES256CTR ctr = counterMode(iv);
+
+        long[] state = hashStart(aad);
+        ghash.update(state, data, off, len);
+        verify(tag(ctr, state, aad == null ? 0 : aad.length, len), tag);
+
+        new Keystream(ctr).apply(data, off, len, 0);
+    }
+
+    /**
+     * This method encrypts {@code length} bytes from one channel into another
+     * in a single pass, hashing each chunk while it is in memory.
+     * @param iv        The IV stored as byte[12], never reused with the same key.
+     * @param aad       Additional data which is authenticated but not encrypted, may be null.
+     * @param src       The channel to read the plain bytes from.
+     * @param srcPos    The position in src of the first byte.
+     * @param dst       The channel to write the encrypted bytes to.
+     * @param dstPos    The position in dst of the first byte.
+     * @param length    The number of bytes, at most {@link #MAX_LENGTH}.
+     * @param listener  Receives progress reports, may be null.
+     * @return          The authentication tag, byte[16].
+     * @throws IOException
+     * @throws CancellationException If the listener cancelled, dst is then incomplete.
+     */
+    public byte[] encrypt(byte[] iv, byte[] aad, FileChannel src, long srcPos, FileChannel dst, long dstPos,
+            long length, ProgressListener listener) throws IOException, CancellationException {
+
+        return sequential(false, iv, aad, src, srcPos, dst, dstPos, length, listener);
+    }
+
+    /**
+     * This method decrypts {@code length} bytes from one channel into another
+     * in a single pass and checks the tag at the end. The bytes written to
+     * dst must be discarded if the tag does not match.
+     * @param iv        The IV used to encrypt.
+     * @param aad       The additional data used to encrypt, may be null.
+     * @param src       The channel to read the encrypted bytes from.
+     * @param srcPos    The position in src of the first byte.
+     * @param dst       The channel to write the plain bytes to.
+     * @param dstPos    The position in dst of the first byte.
+     * @param length    The number of bytes, at most {@link #MAX_LENGTH}.
+     * @param tag       The tag returned by the encryption.
+     * @param listener  Receives progress reports, may be null.
+     * @return Nothing  The plain bytes get written to dst.
+     * @throws IOException
+     * @throws AEADBadTagException If the data, the additional data or the tag was modified.
+     * @throws CancellationException If the listener cancelled, dst is then incomplete.
+     */
+    public void decrypt(byte[] iv, byte[] aad, FileChannel src, long srcPos, FileChannel dst, long dstPos,
+            long length, byte[] tag, ProgressListener listener) throws
+            IOException, AEADBadTagException, CancellationException {
+
+        verify(sequential(true, iv, aad, src, srcPos, dst, dstPos, length, listener), tag);
+    }
+
+    /**
+     * This method encrypts {@code length} bytes from one channel into another
+     * using the threads of {@code pool}. Each thread encrypts and hashes its
+     * own ranges, the hashes are combined into one tag.
+     * @param iv        The IV stored as byte[12], never reused with the same key.
+     * @param aad       Additional data which is authenticated but not encrypted, may be null.
+     * @param src       The channel to read the plain bytes from.
+     * @param srcPos    The position in src of the first byte.
+     * @param dst       The channel to write the encrypted bytes to.
+     * @param dstPos    The position in dst of the first byte.
+     * @param length    The number of bytes, at most {@link #MAX_LENGTH}.
+     * @param pool      The pool which runs the encryption.
+     * @return          The authentication tag, byte[16].
+     * @throws IOException
+     */
+    public byte[] encryptParallel(byte[] iv, byte[] aad, FileChannel src, long srcPos, FileChannel dst,
+            long dstPos, long length, ForkJoinPool pool) throws IOException {
+
+        return parallel(false, iv, aad, src, srcPos, dst, dstPos, length, pool);
+    }
+
+    /**
+     * This method decrypts {@code length} bytes from one channel into another
+     * using the threads of {@code pool}, and checks the tag at the end. The
+     * bytes written to dst must be discarded if the tag does not match.
+     * @param iv        The IV used to encrypt.
+     * @param aad       The additional data used to encrypt, may be null.
+     * @param src       The channel to read the encrypted bytes from.
+     * @param srcPos    The position in src of the first byte.
+     * @param dst       The channel to write the plain bytes to.
+     * @param dstPos    The position in dst of the first byte.
+     * @param length    The number of bytes, at most {@link #MAX_LENGTH}.
+     * @param tag       The tag returned by the encryption.
+     * @param pool      The pool which runs the decryption.
+     * @return Nothing  The plain bytes get written to dst.
+     * @throws IOException
+     * @throws AEADBadTagException If the data, the additional data or the tag was modified.
+     */
+    public void decryptParallel(byte[] iv, byte[] aad, FileChannel src, long srcPos, FileChannel dst,
+            long dstPos, long length, byte[] tag, ForkJoinPool pool) throws IOException, AEADBadTagException {
+
+        verify(parallel(true, iv, aad, src, srcPos, dst, dstPos, length, pool), tag);
+    }
+
+    /**
+     * Builds the CTR part of GCM for an IV.
+     * @param iv    The IV stored as byte[12].
+     * @return      An instance whose stream position 0 uses counter 2.
+     */
+    AES256CTR counterMode(byte[] iv) {
+
+        if (iv == null || iv.length != IV_SIZE) {
+            throw new IllegalArgumentException("IV must be 12 bytes long");
+        }
+        return new AES256CTR(schedule, iv, engine);
+    }
+
+    /**
+     * @param aad   The additional data, may be null.
+     * @return      The GHASH state after the additional data.
+     */
+    long[] hashStart(byte[] aad) {
+
+        long[] state = new long[2];
+        if (aad != null) {
+            ghash.update(state, aad, 0, aad.length);
+        }
+        return state;
+    }
+
+    /**
+     * Hashes ciphertext into a state, see {@link GHash#update}.
+     */
+    void hashUpdate(long[] state, byte[] data, int off, int len) {
+        ghash.update(state, data, off, len);
+    }
+
+    /**
+     * Finishes GHASH and encrypts it with the counter 1 block.
+     * @param ctr           The CTR part of GCM for the IV.
+     * @param state         The GHASH state after the additional data and the ciphertext.
+     * @param aadLength     The length of the additional data in bytes.
+     * @param dataLength    The length of the ciphertext in bytes.
+     * @return              The tag, byte[16].
+     */
+    byte[] tag(AES256CTR ctr, long[] state, long aadLength, long dataLength) {
+
+        ghash.updateLengths(state, aadLength, dataLength);
+        byte[] tag = new byte[16];
+        ctr.counterBlock(-1, tag, 0);
+        engine.encryptBlocks(tag, 0, tag, 0, 1, schedule);
+        for (int i = 0; i < 8; ++i) {
+            tag[i] ^= (byte) (state[0] >>> (56 - 8 * i));
+            tag[i + 8] ^= (byte) (state[1] >>> (56 - 8 * i));
+        }
+        return tag;
+    }
+
+    /**
+     * Compares two tags in constant time.
+     * @throws AEADBadTagException If they differ.
+     */
+    static void verify(byte[] computed, byte[] expected) throws AEADBadTagException {
+        if (expected == null || !MessageDigest.isEqual(computed, expected)) {
+            throw new AEADBadTagException("Tag mismatch, the data was modified or the key is wrong");
+        }
+    }
+
+    private static void checkRange(byte[] data, int off, int len) {
+        if (off < 0 || len < 0 || len > data.length - off) {
+            throw new IndexOutOfBoundsException("Range [" + off + ", " + off + " + " + len
+                    + ") out of bounds for length " + data.length);
+        }
+        if (len > MAX_LENGTH) {
+            throw new IllegalArgumentException("GCM takes at most " + MAX_LENGTH + " bytes per IV");
+        }
+    }
+
+    private byte[] sequential(boolean decrypt, byte[] iv, byte[] aad, FileChannel src, long srcPos,
+            FileChannel dst, long dstPos, long length, ProgressListener listener) throws IOException {
+
+        checkLength(length);
+        AES256CTR ctr = counterMode(iv);
+        long[] state = hashStart(aad);
+
+        if (listener != null) {
+            listener.onProgress(0, length);
+        }
+        // GHASH always runs over the ciphertext
+        run(new Keystream(ctr), decrypt ? ghash : null, state, decrypt ? null : ghash, state,
+                src, srcPos, dst, dstPos, 0, length, buffer(length), listener);
+        return tag(ctr, state, aad == null ? 0 : aad.length, length);
+    }
+
+    private byte[] parallel(boolean decrypt, byte[] iv, byte[] aad, FileChannel src, long srcPos,
+            FileChannel dst, long dstPos, long length, ForkJoinPool pool) throws IOException {
+
+        checkLength(length);
+        final AES256CTR ctr = counterMode(iv);
+        long[] state = hashStart(aad);
+        parallel(ctr, null, decrypt ? ghash : null, state, decrypt ? null : ghash, state,
+                src, srcPos, dst, dstPos, length, pool);
+        return tag(ctr, state, aad == null ? 0 : aad.length, length);
+    }
+
+    /**
+     * Re-encrypts {@code length} bytes encrypted with the keystream of
+     * {@code from} into bytes encrypted with this key, in a single pass which
+     * XORs both keystreams in and hashes the old ciphertext and the new one.
+     * The old tag is checked at the end, so the bytes written to dst must be
+     * discarded if it does not match.
+     * @param from      The keystream the bytes are encrypted with.
+     * @param check     The old key to check the old tag with, null if the bytes have no tag.
+     * @param checkAad  The additional data of the old tag, may be null.
+     * @param checkTag  The old tag.
+     * @param iv        The new IV.
+     * @param aad       The new additional data, may be null.
+     * @param src       The channel to read the old bytes from.
+     * @param srcPos    The position in src of the first byte.
+     * @param dst       The channel to write the new bytes to.
+     * @param dstPos    The position in dst of the first byte.
+     * @param length    The number of bytes, at most {@link #MAX_LENGTH}.
+     * @param listener  Receives progress reports when pool is null, may be null.
+     * @param pool      The pool which runs the re-encryption, or null to run on this thread.
+     * @return          The new tag, byte[16].
+     * @throws IOException
+     * @throws AEADBadTagException If the old tag does not match.
+     */
+    byte[] reencrypt(AES256CTR from, AES256GCM check, byte[] checkAad, byte[] checkTag, byte[] iv, byte[] aad,
+            FileChannel src, long srcPos, FileChannel dst, long dstPos, long length, ProgressListener listener,
+            ForkJoinPool pool) throws IOException, AEADBadTagException {
+
+        checkLength(length);
+        final AES256CTR ctr = counterMode(iv);
+        final long[] oldState = check == null ? null : check.hashStart(checkAad);
+        final long[] state = hashStart(aad);
+
+        if (pool == null) {
+            if (listener != null) {
+                listener.onProgress(0, length);
+            }
+            run(new Keystream(from, ctr), check == null ? null : check.ghash, oldState, ghash, state,
+                    src, srcPos, dst, dstPos, 0, length, buffer(length), listener);
+        } else {
+            parallel(from, ctr, check == null ? null : check.ghash, oldState, ghash, state,
+                    src, srcPos, dst, dstPos, length, pool);
+        }
+
+        if (check != null) {
+            verify(check.tag(from, oldState, checkAad == null ? 0 : checkAad.length, length), checkTag);
+        }
+        return tag(ctr, state, aad == null ? 0 : aad.length, length);
+    }
+
+    /**
+     * Runs the stream range [0, length) on the threads of {@code pool}, each
+     * range hashed from a zero state, and combines the hashes of the ranges
+     * into the given states in stream order.
+     */
+    private static void parallel(AES256CTR ctr, AES256CTR then, GHash inHash, long[] inState,
+            GHash outHash, long[] outState, FileChannel src, long srcPos, FileChannel dst, long dstPos,
+            long length, ForkJoinPool pool) throws IOException {
+
+        final long segment = AES256CTR.segmentSize(length, pool.getParallelism());
+
+        List<Segment> segments = new ArrayList<>();
+        for (long start = 0; start < length; start += segment) {
+            segments.add(new Segment(ctr, then, inHash, outHash, src, srcPos, dst, dstPos,
+                    start, Math.min(length, start + segment)));
+        }
+
+        try {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(segments);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // state = state * H^blocks + hash of the segment, in stream order
+        combine(inHash, inState, segments, segment, true);
+        combine(outHash, outState, segments, segment, false);
+    }
+
+    private static void combine(GHash hash, long[] state, List<Segment> segments, long segment, boolean in) {
+
+        if (hash == null) {
+            return;
+        }
+        final long[] fullPower = hash.power(segment / 16);
+        for (Segment s : segments) {
+            final long blocks = (s.end - s.start + 15) / 16;
+            GHash.combine(state, in ? s.inState : s.outState,
+                    blocks == segment / 16 ? fullPower : hash.power(blocks));
+        }
+    }
+
+    private static ByteBuffer buffer(long length) {
+        return ByteBuffer.allocate((int) Math.max(1, Math.min(AES256CTR.DEFAULT_CHUNK_SIZE, length)));
+    }
+
+    /**
+     * Runs the stream range [start, end) one chunk at a time, hashing each
+     * chunk before the keystream is applied into inState and after it into
+     * outState, while it is in the buffer. A null hash is skipped.
+     */
+    private static void run(Keystream keystream, GHash inHash, long[] inState, GHash outHash, long[] outState,
+            FileChannel src, long srcPos, FileChannel dst, long dstPos, long start, long end, ByteBuffer buffer,
+            ProgressListener listener) throws IOException {
+
+        final byte[] data = buffer.array();
+        long done = start;
+
+        while (done < end) {
+            final int n = (int) Math.min(buffer.capacity(), end - done);
+
+            buffer.clear().limit(n);
+            while (buffer.hasRemaining()) {
+                if (src.read(buffer, srcPos + done + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file at " + (srcPos + done + buffer.position()));
+                }
+            }
+
+            if (inHash != null) {
+                inHash.update(inState, data, 0, n);
+            }
+            keystream.apply(data, 0, n, done);
+            if (outHash != null) {
+                outHash.update(outState, data, 0, n);
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                dst.write(buffer, dstPos + done + buffer.position());
+            }
+            done += n;
+
+            if (listener != null && !listener.onProgress(done - start, end - start)) {
+                throw new CancellationException("Cancelled after " + (done - start) + " bytes");
+            }
+        }
+    }
+
+    private static void checkLength(long length) {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("GCM takes at most " + MAX_LENGTH + " bytes per IV");
+        }
+    }
+
+    /**
+     * Runs one range of the stream and keeps its hashes, started from zero
+     * states. Ranges start on block boundaries.
+     */
+    private static final class Segment extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AES256CTR ctr;
+        private final AES256CTR then;
+        private final GHash inHash;
+        private final GHash outHash;
+        private final FileChannel src;
+        private final long srcPos;
+        private final FileChannel dst;
+        private final long dstPos;
+        private final long start;
+        private final long end;
+        private final long[] inState = new long[2];
+        private final long[] outState = new long[2];
+
+        Segment(AES256CTR ctr, AES256CTR then, GHash inHash, GHash outHash, FileChannel src, long srcPos,
+                FileChannel dst, long dstPos, long start, long end) {
+            this.ctr = ctr;
+            this.then = then;
+            this.inHash = inHash;
+            this.outHash = outHash;
+            this.src = src;
+            this.srcPos = srcPos;
+            this.dst = dst;
+            this.dstPos = dstPos;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                run(new Keystream(ctr, then), inHash, inState, outHash, outState, src, srcPos, dst, dstPos,
+                        start, end, buffer(end - start), null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
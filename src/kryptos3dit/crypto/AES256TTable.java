@@ -0,0 +1,212 @@
+package kryptos3dit.crypto;
+
+/**
+ * This class implements AES-256 encryption on 128-bit data blocks
+ * using 32-bit words and the combined SubBytes/ShiftRows/MixColumns lookup
+ * tables (TE0..TE3) from Constants.java.
+ * It produces exactly the same output as {@link AES256}, but keeps the state
+ * in four int columns instead of running the steps as separate byte loops.
+ * Details at: https://en.wikipedia.org/wiki/Advanced_Encryption_Standard#Optimization_of_the_cipher
+ * @author  Jaideep
+ */
+public final class AES256TTable {
+
+    private static final int ROUND_COUNT = 14;
+
+    /**
+     * This method performs AES-256 encryption on 16 bytes of data.
+     * @param state     The 16 byte data block stored as char[16].
+     * @param key       The expanded key, see {@link ExpandedKey}.
+     * @return Nothing  The data gets encrypted.
+     */
+    public static void encrypt(char[] state, ExpandedKey key) {
+
+        byte[] block = new byte[16];
+        for (int i = 0; i < block.length; ++i) {
+            block[i] = (byte) state[i];
+        }
+        encryptBlock(block, 0, block, 0, key.getRoundKeyWords());
+        for (int i = 0; i < block.length; ++i) {
+            state[i] = (char) Byte.toUnsignedInt(block[i]);
+        }
+    }
+
+    /**
+     * This method performs AES-256 encryption on 16 bytes of data held in a byte[].
+     * The input and output may be the same array.
+     * @param in        The array holding the plain block.
+     * @param inOff     Index of the first byte of the plain block.
+     * @param out       The array receiving the encrypted block.
+     * @param outOff    Index of the first byte of the encrypted block.
+     * @param key       The expanded key, see {@link ExpandedKey}.
+     * @return Nothing  The 16 bytes starting at {@code out[outOff]} get written.
+     */
+    public static void encrypt(byte[] in, int inOff, byte[] out, int outOff, ExpandedKey key) {
+
+        encryptBlock(in, inOff, out, outOff, key.getRoundKeyWords());
+    }
+
+    /**
+     * This method performs AES-256 encryption on consecutive blocks. Groups of
+     * four blocks go through {@link #encrypt4}, the rest one at a time.
+     * The input and output may be the same array.
+     * @param in        The array holding the plain blocks.
+     * @param inOff     Index of the first byte of the first plain block.
+     * @param out       The array receiving the encrypted blocks.
+     * @param outOff    Index of the first byte of the first encrypted block.
+     * @param blocks    The number of blocks.
+     * @param rk        The 60 round key words, see {@link ExpandedKey#getRoundKeyWords()}.
+     * @return Nothing  The {@code 16 * blocks} bytes starting at {@code out[outOff]} get written.
+     */
+    static void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks, final int[] rk) {
+
+        int i = 0;
+        for (; i + 4 <= blocks; i += 4) {
+            encrypt4(in, inOff + 16 * i, out, outOff + 16 * i, rk);
+        }
+        for (; i < blocks; ++i) {
+            encryptBlock(in, inOff + 16 * i, out, outOff + 16 * i, rk);
+        }
+    }
+
+    /**
+     * This method performs AES-256 encryption on one block, keeping the four
+     * state columns in local variables.
+     * @param in        The array holding the plain block.
+     * @param inOff     Index of the first byte of the plain block.
+     * @param out       The array receiving the encrypted block.
+     * @param outOff    Index of the first byte of the encrypted block.
+     * @param rk        The 60 round key words, see {@link ExpandedKey#getRoundKeyWords()}.
+     * @return Nothing  The 16 bytes starting at {@code out[outOff]} get written.
+     */
+    static void encryptBlock(byte[] in, int inOff, byte[] out, int outOff, final int[] rk) {
+
+        final int[] te0 = Constants.TE0;
+        final int[] te1 = Constants.TE1;
+        final int[] te2 = Constants.TE2;
+        final int[] te3 = Constants.TE3;
+
+        // Intial round key addition
+        int s0 = getWord(in, inOff) ^ rk[0];
+        int s1 = getWord(in, inOff + 4) ^ rk[1];
+        int s2 = getWord(in, inOff + 8) ^ rk[2];
+        int s3 = getWord(in, inOff + 12) ^ rk[3];
+
+        // 13 full rounds, ShiftRows is folded into which column each byte is taken from
+        int k = 4;
+        for (int round = 1; round < ROUND_COUNT; ++round, k += 4) {
+            final int t0 = te0[s0 >>> 24] ^ te1[(s1 >>> 16) & 0xff] ^ te2[(s2 >>> 8) & 0xff] ^ te3[s3 & 0xff] ^ rk[k];
+            final int t1 = te0[s1 >>> 24] ^ te1[(s2 >>> 16) & 0xff] ^ te2[(s3 >>> 8) & 0xff] ^ te3[s0 & 0xff] ^ rk[k + 1];
+            final int t2 = te0[s2 >>> 24] ^ te1[(s3 >>> 16) & 0xff] ^ te2[(s0 >>> 8) & 0xff] ^ te3[s1 & 0xff] ^ rk[k + 2];
+            final int t3 = te0[s3 >>> 24] ^ te1[(s0 >>> 16) & 0xff] ^ te2[(s1 >>> 8) & 0xff] ^ te3[s2 & 0xff] ^ rk[k + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+        }
+
+        // Final round, no MixColumns
+        putWord(out, outOff, finalColumn(s0, s1, s2, s3) ^ rk[k]);
+        putWord(out, outOff + 4, finalColumn(s1, s2, s3, s0) ^ rk[k + 1]);
+        putWord(out, outOff + 8, finalColumn(s2, s3, s0, s1) ^ rk[k + 2]);
+        putWord(out, outOff + 12, finalColumn(s3, s0, s1, s2) ^ rk[k + 3]);
+    }
+
+    /**
+     * This method performs AES-256 encryption on four consecutive blocks at once.
+     * Each round is computed for all four blocks before the next round starts.
+     * The blocks do not depend on each other, so the CPU can overlap their
+     * table lookups instead of waiting on one chain of 14 dependent rounds.
+     * Variable sXY holds column Y of block X.
+     * @param in        The array holding the four plain blocks.
+     * @param inOff     Index of the first byte of the first plain block.
+     * @param out       The array receiving the four encrypted blocks.
+     * @param outOff    Index of the first byte of the first encrypted block.
+     * @param rk        The 60 round key words, see {@link ExpandedKey#getRoundKeyWords()}.
+     * @return Nothing  The 64 bytes starting at {@code out[outOff]} get written.
+     */
+    static void encrypt4(byte[] in, int inOff, byte[] out, int outOff, final int[] rk) {
+
+        final int[] te0 = Constants.TE0;
+        final int[] te1 = Constants.TE1;
+        final int[] te2 = Constants.TE2;
+        final int[] te3 = Constants.TE3;
+
+        // Intial round key addition
+        int s00 = getWord(in, inOff) ^ rk[0]; int s01 = getWord(in, inOff + 4) ^ rk[1]; int s02 = getWord(in, inOff + 8) ^ rk[2]; int s03 = getWord(in, inOff + 12) ^ rk[3];
+        int s10 = getWord(in, inOff + 16) ^ rk[0]; int s11 = getWord(in, inOff + 20) ^ rk[1]; int s12 = getWord(in, inOff + 24) ^ rk[2]; int s13 = getWord(in, inOff + 28) ^ rk[3];
+        int s20 = getWord(in, inOff + 32) ^ rk[0]; int s21 = getWord(in, inOff + 36) ^ rk[1]; int s22 = getWord(in, inOff + 40) ^ rk[2]; int s23 = getWord(in, inOff + 44) ^ rk[3];
+        int s30 = getWord(in, inOff + 48) ^ rk[0]; int s31 = getWord(in, inOff + 52) ^ rk[1]; int s32 = getWord(in, inOff + 56) ^ rk[2]; int s33 = getWord(in, inOff + 60) ^ rk[3];
+
+        // 13 full rounds
+        int k = 4;
+        for (int round = 1; round < ROUND_COUNT; ++round, k += 4) {
+            final int t00 = te0[s00 >>> 24] ^ te1[(s01 >>> 16) & 0xff] ^ te2[(s02 >>> 8) & 0xff] ^ te3[s03 & 0xff] ^ rk[k];
+            final int t01 = te0[s01 >>> 24] ^ te1[(s02 >>> 16) & 0xff] ^ te2[(s03 >>> 8) & 0xff] ^ te3[s00 & 0xff] ^ rk[k + 1];
+            final int t02 = te0[s02 >>> 24] ^ te1[(s03 >>> 16) & 0xff] ^ te2[(s00 >>> 8) & 0xff] ^ te3[s01 & 0xff] ^ rk[k + 2];
+            final int t03 = te0[s03 >>> 24] ^ te1[(s00 >>> 16) & 0xff] ^ te2[(s01 >>> 8) & 0xff] ^ te3[s02 & 0xff] ^ rk[k + 3];
+            final int t10 = te0[s10 >>> 24] ^ te1[(s11 >>> 16) & 0xff] ^ te2[(s12 >>> 8) & 0xff] ^ te3[s13 & 0xff] ^ rk[k];
+            final int t11 = te0[s11 >>> 24] ^ te1[(s12 >>> 16) & 0xff] ^ te2[(s13 >>> 8) & 0xff] ^ te3[s10 & 0xff] ^ rk[k + 1];
+            final int t12 = te0[s12 >>> 24] ^ te1[(s13 >>> 16) & 0xff] ^ te2[(s10 >>> 8) & 0xff] ^ te3[s11 & 0xff] ^ rk[k + 2];
+            final int t13 = te0[s13 >>> 24] ^ te1[(s10 >>> 16) & 0xff] ^ te2[(s11 >>> 8) & 0xff] ^ te3[s12 & 0xff] ^ rk[k + 3];
+            final int t20 = te0[s20 >>> 24] ^ te1[(s21 >>> 16) & 0xff] ^ te2[(s22 >>> 8) & 0xff] ^ te3[s23 & 0xff] ^ rk[k];
+            final int t21 = te0[s21 >>> 24] ^ te1[(s22 >>> 16) & 0xff] ^ te2[(s23 >>> 8) & 0xff] ^ te3[s20 & 0xff] ^ rk[k + 1];
+            final int t22 = te0[s22 >>> 24] ^ te1[(s23 >>> 16) & 0xff] ^ te2[(s20 >>> 8) & 0xff] ^ te3[s21 & 0xff] ^ rk[k + 2];
+            final int t23 = te0[s23 >>> 24] ^ te1[(s20 >>> 16) & 0xff] ^ te2[(s21 >>> 8) & 0xff] ^ te3[s22 & 0xff] ^ rk[k + 3];
+            final int t30 = te0[s30 >>> 24] ^ te1[(s31 >>> 16) & 0xff] ^ te2[(s32 >>> 8) & 0xff] ^ te3[s33 & 0xff] ^ rk[k];
+            final int t31 = te0[s31 >>> 24] ^ te1[(s32 >>> 16) & 0xff] ^ te2[(s33 >>> 8) & 0xff] ^ te3[s30 & 0xff] ^ rk[k + 1];
+            final int t32 = te0[s32 >>> 24] ^ te1[(s33 >>> 16) & 0xff] ^ te2[(s30 >>> 8) & 0xff] ^ te3[s31 & 0xff] ^ rk[k + 2];
+            final int t33 = te0[s33 >>> 24] ^ te1[(s30 >>> 16) & 0xff] ^ te2[(s31 >>> 8) & 0xff] ^ te3[s32 & 0xff] ^ rk[k + 3];
+            s00 = t00; s01 = t01; s02 = t02; s03 = t03;
+            s10 = t10; s11 = t11; s12 = t12; s13 = t13;
+            s20 = t20; s21 = t21; s22 = t22; s23 = t23;
+            s30 = t30; s31 = t31; s32 = t32; s33 = t33;
+        }
+
+        // Final round, no MixColumns
+        putWord(out, outOff, finalColumn(s00, s01, s02, s03) ^ rk[k]);
+        putWord(out, outOff + 4, finalColumn(s01, s02, s03, s00) ^ rk[k + 1]);
+        putWord(out, outOff + 8, finalColumn(s02, s03, s00, s01) ^ rk[k + 2]);
+        putWord(out, outOff + 12, finalColumn(s03, s00, s01, s02) ^ rk[k + 3]);
+        putWord(out, outOff + 16, finalColumn(s10, s11, s12, s13) ^ rk[k]);
+        putWord(out, outOff + 20, finalColumn(s11, s12, s13, s10) ^ rk[k + 1]);
+        putWord(out, outOff + 24, finalColumn(s12, s13, s10, s11) ^ rk[k + 2]);
+        putWord(out, outOff + 28, finalColumn(s13, s10, s11, s12) ^ rk[k + 3]);
+        putWord(out, outOff + 32, finalColumn(s20, s21, s22, s23) ^ rk[k]);
+        putWord(out, outOff + 36, finalColumn(s21, s22, s23, s20) ^ rk[k + 1]);
+        putWord(out, outOff + 40, finalColumn(s22, s23, s20, s21) ^ rk[k + 2]);
+        putWord(out, outOff + 44, finalColumn(s23, s20, s21, s22) ^ rk[k + 3]);
+        putWord(out, outOff + 48, finalColumn(s30, s31, s32, s33) ^ rk[k]);
+        putWord(out, outOff + 52, finalColumn(s31, s32, s33, s30) ^ rk[k + 1]);
+        putWord(out, outOff + 56, finalColumn(s32, s33, s30, s31) ^ rk[k + 2]);
+        putWord(out, outOff + 60, finalColumn(s33, s30, s31, s32) ^ rk[k + 3]);
+    }
+
+    /**
+     * Performs SubBytes and ShiftRows for one output column of the final round.
+     */
+    private static int finalColumn(int a, int b, int c, int d) {
+        final char[] sbox = Constants.SBOX;
+        return (sbox[a >>> 24] << 24)
+             | (sbox[(b >>> 16) & 0xff] << 16)
+             | (sbox[(c >>> 8) & 0xff] << 8)
+             | sbox[d & 0xff];
+    }
+
+    /**
+     * @return The big-endian word stored in b[off..off+3].
+     */
+    static int getWord(byte[] b, int off) {
+        return (b[off] << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    /**
+     * Stores a word big-endian into b[off..off+3].
+     */
+    static void putWord(byte[] b, int off, int word) {
+        b[off] = (byte) (word >>> 24);
+        b[off + 1] = (byte) (word >>> 16);
+        b[off + 2] = (byte) (word >>> 8);
+        b[off + 3] = (byte) word;
+    }
+}
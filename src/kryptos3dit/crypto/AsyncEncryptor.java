@@ -0,0 +1,454 @@
+package kryptos3dit.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * This class encrypts files and channels without blocking the caller, for
+ * servers which handle many files at once on a few threads.
+ * The file is read and written through {@link AsynchronousFileChannel} in
+ * chunks, with up to {@code maxOutstanding} chunks of each file read,
+ * encrypted or written at the same time. The files are opened on the I/O
+ * executor given to the constructor. On Windows the channels use overlapped
+ * I/O and that executor only runs the completions. Elsewhere, Linux and
+ * macOS included, the JDK emulates asynchronous file I/O with blocking reads
+ * and writes on that executor, so every operation in flight holds one of
+ * its threads until the disk answers. A bounded pool keeps that number of
+ * threads fixed whatever the number of files, further operations wait in
+ * its queue. The keystream is XORed in on the second executor, which bounds
+ * the CPU used for encryption, with the generator of an
+ * {@link AES256CTRSession}, so each of its threads builds one per call
+ * rather than one per chunk, or one per key with the session methods.
+ * Every method returns at once with a {@link CompletableFuture} of the
+ * number of bytes encrypted.
+ * The output is the same as {@link AES256CTR#encrypt(AES256CTR, String)},
+ * so decryption is the same operation, and chunks never overlap, so a file
+ * can be encrypted in place.
+ * An instance is thread-safe and holds no state between calls. The
+ * executors are not shut down by it.
+ * @author  Jaideep
+ */
+public final class AsyncEncryptor {
+
+    /**
+     * The default number of bytes read and written at a time.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 18;
+
+    /**
+     * The default number of chunks of a file in flight at the same time.
+     */
+    public static final int DEFAULT_MAX_OUTSTANDING = 4;
+
+    private static final Set<StandardOpenOption> IN_PLACE = EnumSet.of(StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    private static final Set<StandardOpenOption> SOURCE = EnumSet.of(StandardOpenOption.READ);
+    private static final Set<StandardOpenOption> TARGET = EnumSet.of(StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+    private final ExecutorService ioExecutor;
+    private final Executor executor;
+    private final int maxOutstanding;
+    private final int chunkSize;
+
+    /**
+     * @param ioExecutor    Runs the reads and writes of the files, a fixed size pool.
+     * @param executor      Runs the encryption of the chunks, usually a fixed size pool.
+     */
+    public AsyncEncryptor(ExecutorService ioExecutor, Executor executor) {
+        this(ioExecutor, executor, DEFAULT_MAX_OUTSTANDING, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param ioExecutor        Runs the reads and writes of the files, a fixed size pool.
+     * @param executor          Runs the encryption of the chunks, usually a fixed size pool.
+     * @param maxOutstanding    The number of chunks of a file in flight at the same time,
+     *                          each holds a buffer of chunkSize bytes.
+     * @param chunkSize         The number of bytes read and written at a time.
+     * @throws IllegalArgumentException If maxOutstanding or chunkSize is not positive.
+     */
+    public AsyncEncryptor(ExecutorService ioExecutor, Executor executor, int maxOutstanding, int chunkSize) throws
+            IllegalArgumentException {
+
+        if (ioExecutor == null) {
+            throw new IllegalArgumentException("ioExecutor must not be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        if (maxOutstanding <= 0) {
+            throw new IllegalArgumentException("maxOutstanding must be positive");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.ioExecutor = ioExecutor;
+        this.executor = executor;
+        this.maxOutstanding = maxOutstanding;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Encrypts a file in place.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param file      The file to encrypt.
+     * @return          The number of bytes encrypted, or the exception which stopped it.
+     *                  If it fails or is cancelled, the file is left partly encrypted.
+     */
+    public CompletableFuture<Long> encrypt(AES256CTR ob, Path file) {
+        return encrypt(new AES256CTRSession(ob), file);
+    }
+
+    /**
+     * Encrypts a file in place with the keystream generators of a session,
+     * which a server keeps per key.
+     * @param session   The session of the key.
+     * @param file      The file to encrypt.
+     * @return          The number of bytes encrypted, or the exception which stopped it.
+     *                  If it fails or is cancelled, the file is left partly encrypted.
+     */
+    public CompletableFuture<Long> encrypt(AES256CTRSession session, Path file) {
+
+        final AsynchronousFileChannel channel;
+        final long size;
+        try {
+            channel = AsynchronousFileChannel.open(file, IN_PLACE, ioExecutor);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            size = channel.size();
+        } catch (IOException e) {
+            closeQuietly(channel, e);
+            return CompletableFuture.failedFuture(e);
+        }
+        return closeAfter(encrypt(session, channel, 0, channel, 0, size, 0), channel, null);
+    }
+
+    /**
+     * Decrypts a file in place, the same operation as {@link #encrypt(AES256CTR, Path)}.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param file      The file to decrypt.
+     * @return          The number of bytes decrypted, or the exception which stopped it.
+     */
+    public CompletableFuture<Long> decrypt(AES256CTR ob, Path file) {
+        return encrypt(ob, file);
+    }
+
+    /**
+     * Encrypts a file into another, which is created or replaced.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param src       The file to read.
+     * @param dst       The file to write.
+     * @return          The number of bytes encrypted, or the exception which stopped it.
+     */
+    public CompletableFuture<Long> encrypt(AES256CTR ob, Path src, Path dst) {
+        return encrypt(new AES256CTRSession(ob), src, dst);
+    }
+
+    /**
+     * Encrypts a file into another, which is created or replaced, with the
+     * keystream generators of a session.
+     * @param session   The session of the key.
+     * @param src       The file to read.
+     * @param dst       The file to write.
+     * @return          The number of bytes encrypted, or the exception which stopped it.
+     */
+    public CompletableFuture<Long> encrypt(AES256CTRSession session, Path src, Path dst) {
+
+        final AsynchronousFileChannel in;
+        final AsynchronousFileChannel out;
+        final long size;
+        try {
+            in = AsynchronousFileChannel.open(src, SOURCE, ioExecutor);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            out = AsynchronousFileChannel.open(dst, TARGET, ioExecutor);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(in, e);
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            size = in.size();
+        } catch (IOException e) {
+            closeQuietly(in, e);
+            closeQuietly(out, e);
+            return CompletableFuture.failedFuture(e);
+        }
+        return closeAfter(encrypt(session, in, 0, out, 0, size, 0), in, out);
+    }
+
+    /**
+     * Decrypts a file into another, the same operation as
+     * {@link #encrypt(AES256CTR, Path, Path)}.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param src       The file to read.
+     * @param dst       The file to write.
+     * @return          The number of bytes decrypted, or the exception which stopped it.
+     */
+    public CompletableFuture<Long> decrypt(AES256CTR ob, Path src, Path dst) {
+        return encrypt(ob, src, dst);
+    }
+
+    /**
+     * Encrypts {@code length} bytes from one channel into another. The
+     * source and the destination can be the same channel, which encrypts in
+     * place. The channels are not closed, and run their I/O on the executor
+     * they were opened with. Cancelling the future stops starting new chunks.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param src       The channel to read from.
+     * @param srcPos    The position in src of the first byte.
+     * @param dst       The channel to write to.
+     * @param dstPos    The position in dst of the first byte.
+     * @param length    The number of bytes to encrypt.
+     * @param position  The position of the first byte in the encrypted stream.
+     * @return          The number of bytes encrypted, or the exception which stopped it,
+     *                  {@link EOFException} if src ends early.
+     * @throws IllegalArgumentException If a position or the length is negative.
+     */
+    public CompletableFuture<Long> encrypt(AES256CTR ob, AsynchronousFileChannel src, long srcPos,
+            AsynchronousFileChannel dst, long dstPos, long length, long position) throws IllegalArgumentException {
+
+        return encrypt(new AES256CTRSession(ob), src, srcPos, dst, dstPos, length, position);
+    }
+
+    /**
+     * Encrypts {@code length} bytes from one channel into another with the
+     * keystream generators of a session, as
+     * {@link #encrypt(AES256CTR, AsynchronousFileChannel, long, AsynchronousFileChannel, long, long, long)}.
+     * @param session   The session of the key.
+     * @param src       The channel to read from.
+     * @param srcPos    The position in src of the first byte.
+     * @param dst       The channel to write to.
+     * @param dstPos    The position in dst of the first byte.
+     * @param length    The number of bytes to encrypt.
+     * @param position  The position of the first byte in the encrypted stream.
+     * @return          The number of bytes encrypted, or the exception which stopped it,
+     *                  {@link EOFException} if src ends early.
+     * @throws IllegalArgumentException If a position or the length is negative.
+     */
+    public CompletableFuture<Long> encrypt(AES256CTRSession session, AsynchronousFileChannel src, long srcPos,
+            AsynchronousFileChannel dst, long dstPos, long length, long position) throws IllegalArgumentException {
+
+        if (srcPos < 0 || dstPos < 0 || length < 0 || position < 0) {
+            throw new IllegalArgumentException("positions and length must not be negative");
+        }
+        return new Job(session, src, srcPos, dst, dstPos, length, position).start();
+    }
+
+    /**
+     * One call of {@link #encrypt(AES256CTRSession, AsynchronousFileChannel, long,
+     * AsynchronousFileChannel, long, long, long)}: every buffer carries a
+     * chunk through read, encryption and write, then takes the next chunk.
+     */
+    private final class Job {
+
+        private final AES256CTRSession session;
+        private final AsynchronousFileChannel src;
+        private final long srcPos;
+        private final AsynchronousFileChannel dst;
+        private final long dstPos;
+        private final long length;
+        private final long position;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        // Guarded by this
+        private long next;
+        private int running;
+
+        Job(AES256CTRSession session, AsynchronousFileChannel src, long srcPos, AsynchronousFileChannel dst,
+                long dstPos, long length, long position) {
+            this.session = session;
+            this.src = src;
+            this.srcPos = srcPos;
+            this.dst = dst;
+            this.dstPos = dstPos;
+            this.length = length;
+            this.position = position;
+        }
+
+        CompletableFuture<Long> start() {
+
+            final long chunks = (length + chunkSize - 1) / chunkSize;
+            final int buffers = (int) Math.max(1, Math.min(maxOutstanding, chunks));
+            for (int i = 0; i < buffers; ++i) {
+                launch(ByteBuffer.allocate((int) Math.min(chunkSize, Math.max(1, length))));
+            }
+            return result;
+        }
+
+        /**
+         * Sends a buffer through the next chunk, or completes the job if
+         * every chunk is done.
+         */
+        private void launch(ByteBuffer buffer) {
+
+            final long off;
+            final int n;
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                if (next >= length) {
+                    if (running == 0) {
+                        result.complete(length);
+                    }
+                    return;
+                }
+                off = next;
+                n = (int) Math.min(chunkSize, length - off);
+                next += n;
+                ++running;
+            }
+
+            buffer.clear().limit(n);
+            read(src, buffer, srcPos + off)
+                    .thenApplyAsync(b -> {
+                        session.encrypt(b.array(), b.arrayOffset(), n, position + off);
+                        return b.flip();
+                    }, executor)
+                    .thenCompose(b -> write(dst, b, dstPos + off))
+                    .whenComplete((b, e) -> {
+                        if (e != null) {
+                            result.completeExceptionally(e instanceof CompletionException && e.getCause() != null
+                                    ? e.getCause() : e);
+                            return;
+                        }
+                        synchronized (this) {
+                            --running;
+                        }
+                        launch(buffer);
+                    });
+        }
+    }
+
+    /**
+     * Reads until the buffer is full.
+     * @throws EOFException Through the future, if the channel ends first.
+     */
+    private static CompletableFuture<ByteBuffer> read(AsynchronousFileChannel channel, ByteBuffer buffer,
+            long position) {
+
+        final CompletableFuture<ByteBuffer> done = new CompletableFuture<>();
+        final long start = position - buffer.position();
+        final CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer n, Void attachment) {
+                if (n < 0) {
+                    done.completeExceptionally(new EOFException("Unexpected end of file at "
+                            + (start + buffer.position())));
+                } else if (buffer.hasRemaining()) {
+                    submit(() -> channel.read(buffer, start + buffer.position(), null, this), done);
+                } else {
+                    done.complete(buffer);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                done.completeExceptionally(e);
+            }
+        };
+        submit(() -> channel.read(buffer, position, null, handler), done);
+        return done;
+    }
+
+    /**
+     * Writes until the buffer is empty.
+     */
+    private static CompletableFuture<ByteBuffer> write(AsynchronousFileChannel channel, ByteBuffer buffer,
+            long position) {
+
+        final CompletableFuture<ByteBuffer> done = new CompletableFuture<>();
+        final long start = position - buffer.position();
+        final CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer n, Void attachment) {
+                if (buffer.hasRemaining()) {
+                    submit(() -> channel.write(buffer, start + buffer.position(), null, this), done);
+                } else {
+                    done.complete(buffer);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                done.completeExceptionally(e);
+            }
+        };
+        submit(() -> channel.write(buffer, position, null, handler), done);
+        return done;
+    }
+
+    /**
+     * Starts an operation, which may also fail before it is started, for
+     * example on a channel opened for reading only.
+     */
+    private static void submit(Runnable operation, CompletableFuture<?> done) {
+        try {
+            operation.run();
+        } catch (RuntimeException e) {
+            done.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Closes the channels once the future completes, a failure to close
+     * fails a future which succeeded.
+     */
+    private static CompletableFuture<Long> closeAfter(CompletableFuture<Long> job, AsynchronousFileChannel first,
+            AsynchronousFileChannel second) {
+
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        job.whenComplete((n, e) -> {
+            Throwable error = e;
+            for (AsynchronousFileChannel channel : new AsynchronousFileChannel[] { first, second }) {
+                if (channel == null) {
+                    continue;
+                }
+                try {
+                    channel.close();
+                } catch (IOException closing) {
+                    if (error == null) {
+                        error = closing;
+                    } else {
+                        error.addSuppressed(closing);
+                    }
+                }
+            }
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(n);
+            }
+        });
+        // Cancelling the result stops the job as well
+        result.whenComplete((n, e) -> {
+            if (result.isCancelled()) {
+                job.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel, Exception cause) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package kryptos3dit.crypto;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class encrypts many files in place on a fork/join pool.
+ * Large files are encrypted by all the threads of the pool, small files are
+ * packed into groups so that a task is never just a few kilobytes. Idle
+ * threads steal chunks and groups from busy ones, so all cores stay busy
+ * whatever the mix of file sizes.
+ * Every file becomes a {@link Container} with a random nonce of its own, as
+ * {@link Container#encrypt(String, Path, ProgressListener)} writes it, and
+ * a batch can decrypt such files again or change their password.
+ * The {@code Legacy} methods write the headerless format of
+ * {@link AES256CTR} instead. Its nonce is derived from the key, so all the
+ * files encrypted with one password share a keystream and XORing two of
+ * them gives the XOR of the plain files. They are only meant for files
+ * which earlier versions encrypted that way.
+ * @author  Jaideep
+ */
+public final class BatchEncryptor {
+
+    /**
+     * Files of at least this size are encrypted by the whole pool, the others in groups.
+     */
+    public static final long LARGE_FILE_SIZE = 1 << 23;
+
+    /**
+     * Small files are packed together until a group holds this many bytes.
+     */
+    private static final long GROUP_SIZE = 1 << 22;
+
+    /**
+     * The most files in one group, so that groups of tiny files still spread out.
+     */
+    private static final int GROUP_FILES = 64;
+
+    private BatchEncryptor() {
+    }
+
+    /**
+     * Lists the regular files under {@code root} whose path relative to
+     * {@code root} matches {@code glob}, e.g. {@code "**.mp4"} for every
+     * .mp4 file in the tree or {@code "*.mp4"} for those directly in root.
+     * @param root  The directory to walk, or a single file.
+     * @param glob  A glob pattern, see {@link java.nio.file.FileSystem#getPathMatcher}, or null for all files.
+     * @return      The matching files, sorted by path.
+     * @throws IOException
+     */
+    public static List<Path> list(Path root, String glob) throws IOException {
+
+        final PathMatcher matcher = glob == null ? null
+                : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+
+        try (Stream<Path> walk = Files.walk(root)) {
+            return walk.filter(Files::isRegularFile)
+                    .filter(p -> matcher == null
+                            || matcher.matches(p.equals(root) ? p.getFileName() : root.relativize(p)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * This method encrypts every file under {@code root} matching {@code glob}
+     * into a container using all the cores of the machine (the common fork/join pool).
+     * @param password  The password with which to encrypt the files.
+     * @param root      The directory to walk, or a single file.
+     * @param glob      A glob pattern relative to {@code root}, or null for all files.
+     * @return          The number of files and bytes, the time taken and the failures.
+     * @throws IOException If the directory could not be walked.
+     */
+    public static BatchResult encrypt(String password, Path root, String glob) throws IOException {
+
+        return encrypt(password, list(root, glob), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * This method encrypts every file under {@code root} matching {@code glob}
+     * into a container using {@code parallelism} threads.
+     * @param password      The password with which to encrypt the files.
+     * @param root          The directory to walk, or a single file.
+     * @param glob          A glob pattern relative to {@code root}, or null for all files.
+     * @param parallelism   The number of threads to use.
+     * @return              The number of files and bytes, the time taken and the failures.
+     * @throws IOException If the directory could not be walked.
+     * @throws IllegalArgumentException If parallelism is not positive.
+     */
+    public static BatchResult encrypt(String password, Path root, String glob, int parallelism) throws
+            IOException, IllegalArgumentException {
+
+        return run(encryption(password), root, glob, parallelism);
+    }
+
+    /**
+     * This method encrypts the given files in place into containers on
+     * {@code pool}. A file which fails does not stop the others, it is
+     * reported in the result and left unchanged.
+     * @param password  The password with which to encrypt the files.
+     * @param files     The files to encrypt, each listed once.
+     * @param pool      The pool which runs the encryption.
+     * @return          The number of files and bytes, the time taken and the failures.
+     */
+    public static BatchResult encrypt(String password, List<Path> files, ForkJoinPool pool) {
+
+        return run(encryption(password), files, pool);
+    }
+
+    /**
+     * This method decrypts every file under {@code root} matching {@code glob}
+     * using {@code parallelism} threads, see {@link Container#decrypt(String, Path, ProgressListener)}.
+     * @param password      The password with which the files were encrypted.
+     * @param root          The directory to walk, or a single file.
+     * @param glob          A glob pattern relative to {@code root}, or null for all files.
+     * @param parallelism   The number of threads to use.
+     * @return              The number of files and bytes, the time taken and the failures.
+     * @throws IOException If the directory could not be walked.
+     * @throws IllegalArgumentException If parallelism is not positive.
+     */
+    public static BatchResult decrypt(String password, Path root, String glob, int parallelism) throws
+            IOException, IllegalArgumentException {
+
+        return run(decryption(password), root, glob, parallelism);
+    }
+
+    /**
+     * This method decrypts the given files in place on {@code pool}. A file
+     * which fails, e.g. because it was encrypted with another password, does
+     * not stop the others, it is reported in the result and left unchanged.
+     * @param password  The password with which the files were encrypted.
+     * @param files     The files to decrypt, each listed once.
+     * @param pool      The pool which runs the decryption.
+     * @return          The number of files and bytes, the time taken and the failures.
+     */
+    public static BatchResult decrypt(String password, List<Path> files, ForkJoinPool pool) {
+
+        return run(decryption(password), files, pool);
+    }
+
+    /**
+     * This method changes the password of every file under {@code root}
+     * matching {@code glob} using {@code parallelism} threads, see
+     * {@link Container#rekey(String, String, Path, ProgressListener)}.
+     * @param oldPassword   The password with which the files are encrypted.
+     * @param newPassword   The password to encrypt the files with instead.
+     * @param root          The directory to walk, or a single file.
+     * @param glob          A glob pattern relative to {@code root}, or null for all files.
+     * @param parallelism   The number of threads to use.
+     * @return              The number of files and bytes, the time taken and the failures.
+     * @throws IOException If the directory could not be walked.
+     * @throws IllegalArgumentException If parallelism is not positive.
+     */
+    public static BatchResult rekey(String oldPassword, String newPassword, Path root, String glob,
+            int parallelism) throws IOException, IllegalArgumentException {
+
+        return run(rekeying(oldPassword, newPassword), root, glob, parallelism);
+    }
+
+    /**
+     * This method changes the password of the given files in place on
+     * {@code pool}. A file which fails does not stop the others, it is
+     * reported in the result and left unchanged.
+     * @param oldPassword   The password with which the files are encrypted.
+     * @param newPassword   The password to encrypt the files with instead.
+     * @param files         The files to re-encrypt, each listed once.
+     * @param pool          The pool which runs the re-encryption.
+     * @return              The number of files and bytes, the time taken and the failures.
+     */
+    public static BatchResult rekey(String oldPassword, String newPassword, List<Path> files, ForkJoinPool pool) {
+
+        return run(rekeying(oldPassword, newPassword), files, pool);
+    }
+
+    /**
+     * This method encrypts every file under {@code root} matching {@code glob}
+     * in the headerless format using {@code parallelism} threads. Every file
+     * gets the same output as {@link AES256CTR#encrypt(AES256CTR, String)},
+     * so a batch is decrypted by running it again.
+     * @param ob            Instance of AES256CTR which stores the nonce and key.
+     * @param root          The directory to walk, or a single file.
+     * @param glob          A glob pattern relative to {@code root}, or null for all files.
+     * @param parallelism   The number of threads to use.
+     * @return              The number of files and bytes, the time taken and the failures.
+     * @throws IOException If the directory could not be walked.
+     * @throws IllegalArgumentException If parallelism is not positive.
+     */
+    public static BatchResult encryptLegacy(AES256CTR ob, Path root, String glob, int parallelism) throws
+            IOException, IllegalArgumentException {
+
+        return run(new Batch(ob, null), root, glob, parallelism);
+    }
+
+    /**
+     * This method encrypts the given files in place in the headerless format
+     * on {@code pool}. A file which fails does not stop the others, it is
+     * reported in the result.
+     * @param ob    Instance of AES256CTR which stores the nonce and key.
+     * @param files The files to encrypt, each listed once.
+     * @param pool  The pool which runs the encryption.
+     * @return      The number of files and bytes, the time taken and the failures.
+     */
+    public static BatchResult encryptLegacy(AES256CTR ob, List<Path> files, ForkJoinPool pool) {
+
+        return run(new Batch(ob, null), files, pool);
+    }
+
+    /**
+     * This method changes the key of every headerless file under {@code root}
+     * matching {@code glob} using {@code parallelism} threads, see
+     * {@link AES256CTR#rekey(AES256CTR, AES256CTR, String)}.
+     * @param from          Instance of AES256CTR which the files are encrypted with.
+     * @param to            Instance of AES256CTR to encrypt the files with instead.
+     * @param root          The directory to walk, or a single file.
+     * @param glob          A glob pattern relative to {@code root}, or null for all files.
+     * @param parallelism   The number of threads to use.
+     * @return              The number of files and bytes, the time taken and the failures.
+     * @throws IOException If the directory could not be walked.
+     * @throws IllegalArgumentException If parallelism is not positive.
+     */
+    public static BatchResult rekeyLegacy(AES256CTR from, AES256CTR to, Path root, String glob, int parallelism)
+            throws IOException, IllegalArgumentException {
+
+        return run(new Batch(from, to), root, glob, parallelism);
+    }
+
+    /**
+     * This method changes the key of the given headerless files in place on
+     * {@code pool}. A file which fails does not stop the others, it is
+     * reported in the result.
+     * @param from  Instance of AES256CTR which the files are encrypted with.
+     * @param to    Instance of AES256CTR to encrypt the files with instead.
+     * @param files The files to re-encrypt, each listed once.
+     * @param pool  The pool which runs the re-encryption.
+     * @return      The number of files and bytes, the time taken and the failures.
+     */
+    public static BatchResult rekeyLegacy(AES256CTR from, AES256CTR to, List<Path> files, ForkJoinPool pool) {
+
+        return run(new Batch(from, to), files, pool);
+    }
+
+    private static Batch encryption(String password) {
+
+        return new Batch((file, pool) -> {
+            if (pool == null) {
+                Container.encrypt(password, file, null);
+            } else {
+                Container.encryptParallel(password, file, pool);
+            }
+        });
+    }
+
+    private static Batch decryption(String password) {
+
+        return new Batch((file, pool) -> {
+            if (pool == null) {
+                Container.decrypt(password, file, null);
+            } else {
+                Container.decryptParallel(password, file, pool);
+            }
+        });
+    }
+
+    private static Batch rekeying(String oldPassword, String newPassword) {
+
+        return new Batch((file, pool) -> {
+            if (pool == null) {
+                Container.rekey(oldPassword, newPassword, file, null);
+            } else {
+                Container.rekeyParallel(oldPassword, newPassword, file, pool);
+            }
+        });
+    }
+
+    private static BatchResult run(Batch batch, Path root, String glob, int parallelism) throws
+            IOException, IllegalArgumentException {
+
+        List<Path> files = list(root, glob);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return run(batch, files, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static BatchResult run(Batch batch, List<Path> files, ForkJoinPool pool) {
+
+        final long start = System.nanoTime();
+        List<RecursiveAction> tasks = new ArrayList<>();
+
+        // Largest files first, so that the long tasks do not end up last
+        List<Sized> sized = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                sized.add(new Sized(file, Files.size(file)));
+            } catch (IOException e) {
+                batch.failures.put(file, e);
+            }
+        }
+        sized.sort(Comparator.comparingLong((Sized s) -> s.size).reversed());
+
+        List<Sized> group = new ArrayList<>();
+        long groupBytes = 0;
+        for (Sized file : sized) {
+            if (file.size >= LARGE_FILE_SIZE) {
+                tasks.add(new FileTask(batch, file));
+                continue;
+            }
+            group.add(file);
+            groupBytes += file.size;
+            if (groupBytes >= GROUP_SIZE || group.size() == GROUP_FILES) {
+                tasks.add(new GroupTask(batch, group));
+                group = new ArrayList<>();
+                groupBytes = 0;
+            }
+        }
+        if (!group.isEmpty()) {
+            tasks.add(new GroupTask(batch, group));
+        }
+
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        return new BatchResult(batch.files.get(), batch.bytes.get(), System.nanoTime() - start, batch.failures);
+    }
+
+    /**
+     * The work done on one file of a container batch.
+     */
+    private interface Operation {
+
+        /**
+         * @param file  The file, replaced in place.
+         * @param pool  The pool whose threads share the file, or null to do it on the calling thread.
+         */
+        void apply(Path file, ForkJoinPool pool) throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * The state shared by the tasks of one batch. It either applies an
+     * operation to every file or encrypts them in the headerless format.
+     */
+    private static final class Batch {
+        final Operation operation;
+        final AES256CTR ob;
+        final AES256CTR then;
+        final AtomicInteger files = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final Map<Path, Exception> failures = new ConcurrentSkipListMap<>();
+
+        Batch(Operation operation) {
+            this.operation = operation;
+            this.ob = null;
+            this.then = null;
+        }
+
+        Batch(AES256CTR ob, AES256CTR then) {
+            this.operation = null;
+            this.ob = ob;
+            this.then = then;
+        }
+
+        void done(long size) {
+            files.incrementAndGet();
+            bytes.addAndGet(size);
+        }
+    }
+
+    /**
+     * A file with the size it had when the batch was planned.
+     */
+    private static final class Sized {
+        final Path path;
+        final long size;
+
+        Sized(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Encrypts one large file, split into chunks or ranges which other threads can steal.
+     */
+    private static final class FileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Batch batch;
+        private final Sized file;
+
+        FileTask(Batch batch, Sized file) {
+            this.batch = batch;
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (batch.operation != null) {
+                try {
+                    batch.operation.apply(file.path, getPool());
+                    batch.done(file.size);
+                } catch (IOException | GeneralSecurityException e) {
+                    batch.failures.put(file.path, e);
+                }
+                return;
+            }
+
+            try (FileChannel channel = FileChannel.open(file.path,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                final long size = channel.size();
+                new SegmentTask(batch.ob, batch.then, channel, 0, size,
+                        AES256CTR.segmentSize(size, getPool().getParallelism())).invoke();
+                batch.done(size);
+            } catch (UncheckedIOException e) {
+                batch.failures.put(file.path, e.getCause());
+            } catch (IOException e) {
+                batch.failures.put(file.path, e);
+            }
+        }
+    }
+
+    /**
+     * Encrypts a group of small files one after the other, in the headerless
+     * format sharing one buffer and keystream between them.
+     */
+    private static final class GroupTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Batch batch;
+        private final List<Sized> group;
+
+        GroupTask(Batch batch, List<Sized> group) {
+            this.batch = batch;
+            this.group = group;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (batch.operation != null) {
+                for (Sized file : group) {
+                    try {
+                        batch.operation.apply(file.path, null);
+                        batch.done(file.size);
+                    } catch (IOException | GeneralSecurityException e) {
+                        batch.failures.put(file.path, e);
+                    }
+                }
+                return;
+            }
+
+            // The group is sorted by size, the first file is the largest
+            final int chunk = (int) Math.min(AES256CTR.DEFAULT_CHUNK_SIZE, group.get(0).size);
+            final ByteBuffer buffer = ByteBuffer.allocate(Math.max(chunk, 1));
+            final Keystream keystream = new Keystream(batch.ob, batch.then);
+
+            for (Sized file : group) {
+                try (FileChannel channel = FileChannel.open(file.path,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                    final long size = channel.size();
+                    AES256CTR.process(batch.ob, channel, 0, channel, 0, size, 0, buffer, keystream);
+                    batch.done(size);
+                } catch (IOException e) {
+                    batch.failures.put(file.path, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package kryptos3dit.crypto;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * This class holds the outcome of a {@link BatchEncryptor} run: how many
+ * files and bytes were encrypted, how long it took, and which files failed.
+ * @author  Jaideep
+ */
+public final class BatchResult {
+
+    private final int files;
+    private final long bytes;
+    private final long nanos;
+    private final Map<Path, Exception> failures;
+
+    BatchResult(int files, long bytes, long nanos, Map<Path, Exception> failures) {
+        this.files = files;
+        this.bytes = bytes;
+        this.nanos = nanos;
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return  The number of files which were encrypted.
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return  The number of bytes which were encrypted, summed over all files.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return  The wall clock time of the whole batch in nanoseconds.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return  The aggregate throughput of the batch in MB/s.
+     */
+    public double getThroughput() {
+        return nanos == 0 ? 0.0 : bytes / 1048576.0 / (nanos / 1e9);
+    }
+
+    /**
+     * The files which could not be processed, with the error for each, e.g. an
+     * {@link java.io.IOException} or a {@link java.security.InvalidKeyException}
+     * for a wrong password. A failed container is left unchanged, a failed
+     * headerless file may have been encrypted in part and should be checked by the caller.
+     * @return  An unmodifiable map, sorted by path.
+     */
+    public Map<Path, Exception> getFailures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files, %.1f MB in %.2f s (%.1f MB/s), %d failed",
+                files, bytes / 1048576.0, nanos / 1e9, getThroughput(), failures.size());
+    }
+}
@@ -0,0 +1,32 @@
+package kryptos3dit.crypto;
+
+/**
+ * This interface is implemented by the block ciphers which {@link AES256CTR}
+ * can use to generate its keystream. An engine only has to encrypt whole
+ * 16 byte blocks with AES-256 (the counter mode itself is done by AES256CTR),
+ * so every engine gives the same ciphertext and files can be decrypted with
+ * any of them.
+ * Implementations must be thread-safe.
+ * The built-in engines are listed in {@link AES256Engine}.
+ * @author  Jaideep
+ */
+public interface CipherEngine {
+
+    /**
+     * @return A short name for this engine, used in logs and reports.
+     */
+    String getName();
+
+    /**
+     * Encrypts consecutive 16 byte blocks with AES-256.
+     * The input and output may be the same array.
+     * @param in        The array holding the plain blocks.
+     * @param inOff     Index of the first byte of the first plain block.
+     * @param out       The array receiving the encrypted blocks.
+     * @param outOff    Index of the first byte of the first encrypted block.
+     * @param blocks    The number of blocks.
+     * @param key       The expanded key.
+     * @return Nothing  The {@code 16 * blocks} bytes starting at {@code out[outOff]} get written.
+     */
+    void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks, ExpandedKey key);
+}
@@ -74,4 +74,27 @@ final class Constants {
         0x3b, 0x38, 0x3d, 0x3e, 0x37, 0x34, 0x31, 0x32, 0x23, 0x20, 0x25, 0x26, 0x2f, 0x2c, 0x29, 0x2a,
         0x0b, 0x08, 0x0d, 0x0e, 0x07, 0x04, 0x01, 0x02, 0x13, 0x10, 0x15, 0x16, 0x1f, 0x1c, 0x19, 0x1a
     };
+
+    /**
+     * These lookup tables combine the SubBytes and MixColumns steps on
+     * 32-bit words, so that one round of a column costs four lookups.
+     * TE0[x] holds the column (2.S[x], S[x], S[x], 3.S[x]) packed big-endian,
+     * TE1..TE3 are the same column rotated right by 8, 16 and 24 bits.
+     * Details at: https://en.wikipedia.org/wiki/Advanced_Encryption_Standard#Optimization_of_the_cipher
+     */
+    static final int[] TE0 = new int[256];
+    static final int[] TE1 = new int[256];
+    static final int[] TE2 = new int[256];
+    static final int[] TE3 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int s = SBOX[i];
+            int t = (MUL2[s] << 24) | (s << 16) | (s << 8) | MUL3[s];
+            TE0[i] = t;
+            TE1[i] = Integer.rotateRight(t, 8);
+            TE2[i] = Integer.rotateRight(t, 16);
+            TE3[i] = Integer.rotateRight(t, 24);
+        }
+    }
 }
@@ -0,0 +1,930 @@
+package kryptos3dit.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * This class reads and writes the kryptos3dit container format. A container
+ * is a {@value #HEADER_SIZE} byte header followed by the encrypted file, cut
+ * into chunks of a fixed size, and from version 2 on a {@value #TAG_SIZE}
+ * byte authentication tag.
+ * <pre>
+ * offset  size  field
+ *  0       4    magic "K3DT"
+ *  4       1    version, 1 or 2
+ *  5       3    reserved, zero
+ *  8       4    chunk size in bytes, a multiple of 16
+ * 12      12    reserved, zero
+ * 24      16    nonce, random for every file
+ * 40      16    key check value, SHA-256(label | key | nonce) truncated
+ * 56       8    reserved, zero
+ * </pre>
+ * Version 1 encrypts with {@link AES256CTR}. Version 2, which is written by
+ * this class, encrypts with {@link AES256GCM} using the first 12 bytes of the
+ * nonce as the IV and the header as additional data, so any change to the
+ * header, the data or the tag is detected when decrypting.
+ * GCM allows at most {@value #MAX_AUTHENTICATED_LENGTH} bytes (about 64 GB)
+ * with one IV, so larger files are written as version 1 containers, which
+ * are encrypted but not authenticated. Streams, whose length is not known
+ * in advance, fail once they pass the limit.
+ * The key is derived from the password as in {@link AES256CTR#AES256CTR(String)}.
+ * Chunk {@code i} holds the bytes from {@code i * chunkSize} of the stream and
+ * starts a new counter block, so chunks can be processed in parallel and any
+ * byte can be read without the ones before it.
+ * A wrong password is rejected from the header alone, before the data is
+ * touched. Files without the magic are the headerless files written by
+ * {@link AES256CTR}, they are still decrypted but a wrong password cannot be
+ * detected for them.
+ * @author  Jaideep
+ */
+public final class Container {
+
+    /**
+     * The size of the header, the encrypted data starts right after it.
+     */
+    public static final int HEADER_SIZE = 64;
+
+    /**
+     * The version written by this class, and the newest one it reads.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * The size of the authentication tag at the end of a version 2 container.
+     */
+    public static final int TAG_SIZE = AES256GCM.TAG_SIZE;
+
+    /**
+     * The longest data a version 2 container holds, see {@link AES256GCM#MAX_LENGTH}.
+     */
+    public static final long MAX_AUTHENTICATED_LENGTH = AES256GCM.MAX_LENGTH;
+
+    private static final byte[] MAGIC = { 'K', '3', 'D', 'T' };
+    private static final byte[] KEY_CHECK_LABEL = "kryptos3dit key check".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private Container() {
+    }
+
+    /**
+     * The fields of a container header.
+     */
+    public static final class Header {
+
+        private final int version;
+        private final int chunkSize;
+        private final byte[] nonce;
+        private final byte[] keyCheck;
+
+        // The header as it is in the file, reserved bytes included, which
+        // version 2 authenticates
+        private final byte[] bytes;
+
+        Header(int version, int chunkSize, byte[] nonce, byte[] keyCheck) {
+            this.version = version;
+            this.chunkSize = chunkSize;
+            this.nonce = nonce;
+            this.keyCheck = keyCheck;
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            buffer.put(MAGIC).put((byte) version);
+            buffer.position(8);
+            buffer.putInt(chunkSize);
+            buffer.position(24);
+            buffer.put(nonce).put(keyCheck);
+            this.bytes = buffer.array();
+        }
+
+        private Header(byte[] bytes, int version, int chunkSize) {
+            this.version = version;
+            this.chunkSize = chunkSize;
+            this.nonce = Arrays.copyOfRange(bytes, 24, 40);
+            this.keyCheck = Arrays.copyOfRange(bytes, 40, 56);
+            this.bytes = Arrays.copyOf(bytes, HEADER_SIZE);
+        }
+
+        /**
+         * @return  The format version of the container.
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * @return  The size of the chunks the data is cut into.
+         */
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        /**
+         * @return  True if the container ends with an authentication tag (version 2).
+         */
+        public boolean isAuthenticated() {
+            return version >= 2;
+        }
+
+        /**
+         * @return  A copy of the nonce of the file.
+         */
+        public byte[] getNonce() {
+            return nonce.clone();
+        }
+
+        byte[] toBytes() {
+            return bytes.clone();
+        }
+
+        /**
+         * Parses a header.
+         * @param bytes The first bytes of a file.
+         * @return      The header, or null if the bytes do not start with the magic.
+         * @throws IOException If the header is damaged or from a newer version.
+         */
+        static Header fromBytes(byte[] bytes) throws IOException {
+
+            if (bytes.length < HEADER_SIZE || !Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length))) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            final int version = buffer.get(4) & 0xff;
+            if (version == 0 || version > VERSION) {
+                throw new IOException("Unsupported container version " + version);
+            }
+            final int chunkSize = buffer.getInt(8);
+            if (chunkSize < 16 || chunkSize > MAX_CHUNK_SIZE || chunkSize % 16 != 0) {
+                throw new IOException("Damaged container header, chunk size " + chunkSize);
+            }
+            return new Header(bytes, version, chunkSize);
+        }
+    }
+
+    /**
+     * Reads the header of a file.
+     * @param file  The path to the file.
+     * @return      The header, or null for a headerless (legacy) file.
+     * @throws IOException If the file cannot be read, or the header is damaged.
+     */
+    public static Header readHeader(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readHeader(channel);
+        }
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+
+        if (channel.size() < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                return null;
+            }
+        }
+        return Header.fromBytes(buffer.array());
+    }
+
+    /**
+     * Checks the password against the key check value of a header, which
+     * takes one hash and no pass over the data.
+     * @param password  The password.
+     * @param header    The header of the container.
+     * @return          An instance set up with the key and nonce of the container.
+     * @throws InvalidKeyException If the password is wrong.
+     * @throws NoSuchAlgorithmException
+     */
+    public static AES256CTR unlock(String password, Header header) throws
+            InvalidKeyException, NoSuchAlgorithmException {
+
+        final byte[] key = checkedKey(password, header);
+        try {
+            if (header.isAuthenticated()) {
+                return new AES256GCM(key).counterMode(iv(header));
+            }
+            return new AES256CTR(key, header.nonce);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private static AES256GCM unlockAuthenticated(String password, Header header) throws
+            InvalidKeyException, NoSuchAlgorithmException {
+
+        final byte[] key = checkedKey(password, header);
+        try {
+            return new AES256GCM(key);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * @return  The key derived from the password, the caller wipes it.
+     * @throws InvalidKeyException If it does not match the key check value.
+     */
+    private static byte[] checkedKey(String password, Header header) throws
+            InvalidKeyException, NoSuchAlgorithmException {
+
+        final byte[] key = AES256CTR.deriveKey(password);
+        if (!MessageDigest.isEqual(keyCheck(key, header.nonce), header.keyCheck)) {
+            Arrays.fill(key, (byte) 0);
+            throw new InvalidKeyException("Wrong password");
+        }
+        return key;
+    }
+
+    private static byte[] iv(Header header) {
+        return Arrays.copyOf(header.nonce, AES256GCM.IV_SIZE);
+    }
+
+    private static byte[] keyCheck(byte[] key, byte[] nonce) throws NoSuchAlgorithmException {
+
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        sha.update(KEY_CHECK_LABEL);
+        sha.update(key);
+        sha.update(nonce);
+        return Arrays.copyOf(sha.digest(), 16);
+    }
+
+    /**
+     * Makes the header of a new container with a random nonce, version 2 if
+     * the data can be authenticated and version 1 otherwise.
+     * @param length    The length of the data.
+     */
+    private static Header newHeader(byte[] key, int chunkSize, long length) throws NoSuchAlgorithmException {
+
+        if (chunkSize < 16 || chunkSize > MAX_CHUNK_SIZE || chunkSize % 16 != 0) {
+            throw new IllegalArgumentException("chunk size must be a positive multiple of 16");
+        }
+        byte[] nonce = new byte[16];
+        if (length > MAX_AUTHENTICATED_LENGTH) {
+            RANDOM.nextBytes(nonce);
+            return new Header(1, chunkSize, nonce, keyCheck(key, nonce));
+        }
+        // The IV of GCM is 12 bytes, the rest of the nonce stays zero
+        byte[] iv = new byte[AES256GCM.IV_SIZE];
+        RANDOM.nextBytes(iv);
+        System.arraycopy(iv, 0, nonce, 0, iv.length);
+        return new Header(VERSION, chunkSize, nonce, keyCheck(key, nonce));
+    }
+
+    /**
+     * This method encrypts {@code source} into a new container {@code target},
+     * encrypting and authenticating in a single pass. A source longer than
+     * {@link #MAX_AUTHENTICATED_LENGTH} gets a version 1 container.
+     * @param password  The password with which to encrypt the file.
+     * @param source    The plain file.
+     * @param target    The container to write, replaced if it exists.
+     * @param listener  Receives progress reports, may be null.
+     * @return Nothing  The container gets written.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws CancellationException If the listener cancelled, target is then incomplete.
+     */
+    public static void encrypt(String password, Path source, Path target, ProgressListener listener) throws
+            IOException, NoSuchAlgorithmException, CancellationException {
+
+        encrypt(password, source, target, AES256CTR.DEFAULT_CHUNK_SIZE, listener, null);
+    }
+
+    /**
+     * This method encrypts {@code source} into a new container {@code target}
+     * using the threads of {@code pool}, chunks are encrypted and hashed in parallel.
+     * A source longer than {@link #MAX_AUTHENTICATED_LENGTH} gets a version 1 container.
+     * @param password  The password with which to encrypt the file.
+     * @param source    The plain file.
+     * @param target    The container to write, replaced if it exists.
+     * @param pool      The pool which runs the encryption.
+     * @return Nothing  The container gets written.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static void encryptParallel(String password, Path source, Path target, ForkJoinPool pool) throws
+            IOException, NoSuchAlgorithmException {
+
+        encrypt(password, source, target, AES256CTR.DEFAULT_CHUNK_SIZE, null, pool);
+    }
+
+    private static void encrypt(String password, Path source, Path target, int chunkSize,
+            ProgressListener listener, ForkJoinPool pool) throws IOException, NoSuchAlgorithmException {
+
+        try (FileChannel src = FileChannel.open(source, StandardOpenOption.READ)) {
+
+            // The version depends on the length, so it is known before anything is written
+            final long length = src.size();
+            final byte[] key = AES256CTR.deriveKey(password);
+            final Header header;
+            final AES256GCM gcm;
+            final AES256CTR ctr;
+            try {
+                header = newHeader(key, chunkSize, length);
+                gcm = header.isAuthenticated() ? new AES256GCM(key) : null;
+                ctr = header.isAuthenticated() ? null : new AES256CTR(key, header.nonce);
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+            final byte[] headerBytes = header.toBytes();
+
+            try (FileChannel dst = FileChannel.open(target, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(dst, headerBytes, 0);
+                if (ctr != null) {
+                    transfer(ctr, null, src, 0, dst, HEADER_SIZE, length, chunkSize, listener, pool);
+                    return;
+                }
+                final byte[] tag = pool == null
+                        ? gcm.encrypt(iv(header), headerBytes, src, 0, dst, HEADER_SIZE, length, listener)
+                        : gcm.encryptParallel(iv(header), headerBytes, src, 0, dst, HEADER_SIZE, length, pool);
+                write(dst, tag, HEADER_SIZE + length);
+            }
+        }
+    }
+
+    /**
+     * This method decrypts {@code source} into {@code target}. The password is
+     * checked before any data is read. Headerless files are decrypted as
+     * {@link AES256CTR#encrypt(AES256CTR, String)} does.
+     * @param password  The password with which the file was encrypted.
+     * @param source    The container, or a headerless encrypted file.
+     * @param target    The plain file to write, replaced if it exists.
+     * @param listener  Receives progress reports, may be null.
+     * @return Nothing  The plain file gets written.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException If the password is wrong, target is then not touched.
+     * @throws AEADBadTagException If the container was modified, target is then deleted.
+     * @throws CancellationException If the listener cancelled, target is then incomplete.
+     */
+    public static void decrypt(String password, Path source, Path target, ProgressListener listener) throws
+            IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException,
+            CancellationException {
+
+        decrypt(password, source, target, listener, null);
+    }
+
+    /**
+     * This method decrypts {@code source} into {@code target} using the
+     * threads of {@code pool}, chunks are decrypted in parallel.
+     * @param password  The password with which the file was encrypted.
+     * @param source    The container, or a headerless encrypted file.
+     * @param target    The plain file to write, replaced if it exists.
+     * @param pool      The pool which runs the decryption.
+     * @return Nothing  The plain file gets written.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException If the password is wrong, target is then not touched.
+     * @throws AEADBadTagException If the container was modified, target is then deleted.
+     */
+    public static void decryptParallel(String password, Path source, Path target, ForkJoinPool pool) throws
+            IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException {
+
+        decrypt(password, source, target, null, pool);
+    }
+
+    private static void decrypt(String password, Path source, Path target, ProgressListener listener,
+            ForkJoinPool pool) throws IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException {
+
+        try (FileChannel src = FileChannel.open(source, StandardOpenOption.READ)) {
+
+            final Header header = readHeader(src);
+            if (header != null && header.isAuthenticated()) {
+                decryptAuthenticated(password, header, src, target, listener, pool);
+                return;
+            }
+
+            final AES256CTR ob = header == null ? new AES256CTR(password) : unlock(password, header);
+            final long offset = header == null ? 0 : HEADER_SIZE;
+            final int chunkSize = header == null ? AES256CTR.DEFAULT_CHUNK_SIZE : header.chunkSize;
+
+            try (FileChannel dst = FileChannel.open(target, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                transfer(ob, null, src, offset, dst, 0, src.size() - offset, chunkSize, listener, pool);
+            }
+        }
+    }
+
+    private static void decryptAuthenticated(String password, Header header, FileChannel src, Path target,
+            ProgressListener listener, ForkJoinPool pool) throws
+            IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException {
+
+        final AES256GCM gcm = unlockAuthenticated(password, header);
+        final long length = authenticatedLength(src);
+        final byte[] tag = readTag(src, length);
+
+        try (FileChannel dst = FileChannel.open(target, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (pool == null) {
+                gcm.decrypt(iv(header), header.toBytes(), src, HEADER_SIZE, dst, 0, length, tag, listener);
+            } else {
+                gcm.decryptParallel(iv(header), header.toBytes(), src, HEADER_SIZE, dst, 0, length, tag, pool);
+            }
+        } catch (AEADBadTagException e) {
+            // Never leave plain bytes which failed the check
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    /**
+     * This method encrypts a file into a container in place. The container is
+     * written next to the file and moved over it once complete, so the file
+     * is never left half encrypted.
+     * @param password  The password with which to encrypt the file.
+     * @param file      The file to encrypt.
+     * @param listener  Receives progress reports, may be null.
+     * @return Nothing  The file gets replaced by the container.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws CancellationException If the listener cancelled, the file is then unchanged.
+     */
+    public static void encrypt(String password, Path file, ProgressListener listener) throws
+            IOException, NoSuchAlgorithmException, CancellationException {
+
+        encrypt(password, file, listener, null);
+    }
+
+    /**
+     * This method encrypts a file into a container in place, like
+     * {@link #encrypt(String, Path, ProgressListener)}, with chunks encrypted
+     * and hashed by the threads of {@code pool}.
+     * @param password  The password with which to encrypt the file.
+     * @param file      The file to encrypt.
+     * @param pool      The pool which runs the encryption.
+     * @return Nothing  The file gets replaced by the container.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static void encryptParallel(String password, Path file, ForkJoinPool pool) throws
+            IOException, NoSuchAlgorithmException {
+
+        encrypt(password, file, null, pool);
+    }
+
+    private static void encrypt(String password, Path file, ProgressListener listener, ForkJoinPool pool) throws
+            IOException, NoSuchAlgorithmException {
+
+        Path temp = tempFile(file);
+        try {
+            encrypt(password, file, temp, AES256CTR.DEFAULT_CHUNK_SIZE, listener, pool);
+            replace(temp, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * This method decrypts a container in place, through a file next to it
+     * which is moved over it once complete. A headerless file is decrypted
+     * in place directly, as {@link AES256CTR#encryptStreaming} does.
+     * @param password  The password with which the file was encrypted.
+     * @param file      The file to decrypt.
+     * @param listener  Receives progress reports, may be null.
+     * @return Nothing  The file gets replaced by the plain file.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException If the password is wrong, the file is then unchanged.
+     * @throws AEADBadTagException If the container was modified, the file is then unchanged.
+     * @throws CancellationException If the listener cancelled, the file is then unchanged.
+     */
+    public static void decrypt(String password, Path file, ProgressListener listener) throws
+            IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException,
+            CancellationException {
+
+        final Header header = readHeader(file);
+        if (header == null) {
+            AES256CTR ob = new AES256CTR(password);
+            if (listener == null) {
+                AES256CTR.encryptStreaming(ob, file.toString());
+            } else {
+                AES256CTR.encryptStreaming(ob, file.toString(), listener);
+            }
+            return;
+        }
+        decrypt(password, file, header, listener, null);
+    }
+
+    /**
+     * This method decrypts a container in place, like
+     * {@link #decrypt(String, Path, ProgressListener)}, with chunks decrypted
+     * by the threads of {@code pool}. A headerless file is decrypted in place
+     * directly, as {@link AES256CTR#encryptParallel(AES256CTR, String, ForkJoinPool)} does.
+     * @param password  The password with which the file was encrypted.
+     * @param file      The file to decrypt.
+     * @param pool      The pool which runs the decryption.
+     * @return Nothing  The file gets replaced by the plain file.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException If the password is wrong, the file is then unchanged.
+     * @throws AEADBadTagException If the container was modified, the file is then unchanged.
+     */
+    public static void decryptParallel(String password, Path file, ForkJoinPool pool) throws
+            IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException {
+
+        final Header header = readHeader(file);
+        if (header == null) {
+            AES256CTR.encryptParallel(new AES256CTR(password), file.toString(), pool);
+            return;
+        }
+        decrypt(password, file, header, null, pool);
+    }
+
+    private static void decrypt(String password, Path file, Header header, ProgressListener listener,
+            ForkJoinPool pool) throws IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException {
+
+        // Check the password before creating anything
+        unlock(password, header);
+
+        Path temp = tempFile(file);
+        try {
+            decrypt(password, file, temp, listener, pool);
+            replace(temp, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * This method changes the password of a container in place, reading and
+     * writing the data once. Both keystreams are XORed in at the same time
+     * and the old tag is checked while the new one is computed, so the plain
+     * bytes are never written out. The result is a new container with a new
+     * nonce, written next to the file and moved over it once complete.
+     * Version 1 containers and headerless files become version 2 containers,
+     * unless they are longer than {@link #MAX_AUTHENTICATED_LENGTH}, which
+     * stay version 1.
+     * @param oldPassword   The password with which the file is encrypted.
+     * @param newPassword   The password to encrypt the file with instead.
+     * @param file          The container, or a headerless encrypted file.
+     * @param listener      Receives progress reports, may be null.
+     * @return Nothing      The file gets replaced by the new container.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException If the old password is wrong, the file is then unchanged.
+     * @throws AEADBadTagException If the container was modified, the file is then unchanged.
+     * @throws CancellationException If the listener cancelled, the file is then unchanged.
+     */
+    public static void rekey(String oldPassword, String newPassword, Path file, ProgressListener listener) throws
+            IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException,
+            CancellationException {
+
+        rekey(oldPassword, newPassword, file, listener, null);
+    }
+
+    /**
+     * This method changes the password of a container in place, like
+     * {@link #rekey(String, String, Path, ProgressListener)}, with chunks
+     * re-encrypted and hashed by the threads of {@code pool}.
+     * @param oldPassword   The password with which the file is encrypted.
+     * @param newPassword   The password to encrypt the file with instead.
+     * @param file          The container, or a headerless encrypted file.
+     * @param pool          The pool which runs the re-encryption.
+     * @return Nothing      The file gets replaced by the new container.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException If the old password is wrong, the file is then unchanged.
+     * @throws AEADBadTagException If the container was modified, the file is then unchanged.
+     */
+    public static void rekeyParallel(String oldPassword, String newPassword, Path file, ForkJoinPool pool) throws
+            IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException {
+
+        rekey(oldPassword, newPassword, file, null, pool);
+    }
+
+    private static void rekey(String oldPassword, String newPassword, Path file, ProgressListener listener,
+            ForkJoinPool pool) throws IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException {
+
+        Path temp = tempFile(file);
+        try {
+            try (FileChannel src = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel dst = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+                final Header old = readHeader(src);
+                final AES256CTR from;
+                AES256GCM check = null;
+                byte[] oldTag = null;
+                long offset = HEADER_SIZE;
+                long length = src.size() - HEADER_SIZE;
+
+                if (old == null) {
+                    from = new AES256CTR(oldPassword);
+                    offset = 0;
+                    length = src.size();
+                } else if (!old.isAuthenticated()) {
+                    from = unlock(oldPassword, old);
+                } else {
+                    check = unlockAuthenticated(oldPassword, old);
+                    from = check.counterMode(iv(old));
+                    length = authenticatedLength(src);
+                    oldTag = readTag(src, length);
+                }
+
+                final int chunkSize = old == null ? AES256CTR.DEFAULT_CHUNK_SIZE : old.chunkSize;
+                final byte[] key = AES256CTR.deriveKey(newPassword);
+                final Header header;
+                final AES256GCM gcm;
+                final AES256CTR ctr;
+                try {
+                    header = newHeader(key, chunkSize, length);
+                    gcm = header.isAuthenticated() ? new AES256GCM(key) : null;
+                    ctr = header.isAuthenticated() ? null : new AES256CTR(key, header.nonce);
+                } finally {
+                    Arrays.fill(key, (byte) 0);
+                }
+                final byte[] headerBytes = header.toBytes();
+
+                write(dst, headerBytes, 0);
+                if (ctr != null) {
+                    // Too long to be authenticated, so the old one was not either
+                    transfer(from, ctr, src, offset, dst, HEADER_SIZE, length, chunkSize, listener, pool);
+                } else {
+                    final byte[] tag = gcm.reencrypt(from, check, old == null ? null : old.toBytes(), oldTag,
+                            iv(header), headerBytes, src, offset, dst, HEADER_SIZE, length, listener, pool);
+                    write(dst, tag, HEADER_SIZE + length);
+                }
+            }
+            replace(temp, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * This method encrypts a stream into a container written to {@code out}.
+     * Its length is not known when the header is written, so a stream longer
+     * than {@link #MAX_AUTHENTICATED_LENGTH} cannot be switched to version 1
+     * and fails instead, encrypt such data as a file.
+     * @param password  The password with which to encrypt the stream.
+     * @param in        The plain bytes.
+     * @param out       Receives the header and the encrypted bytes.
+     * @return Nothing  The container gets written to out.
+     * @throws IOException If the stream cannot be read or is too long, out then holds no tag.
+     * @throws NoSuchAlgorithmException
+     */
+    public static void encrypt(String password, InputStream in, OutputStream out) throws
+            IOException, NoSuchAlgorithmException {
+
+        final byte[] key = AES256CTR.deriveKey(password);
+        final Header header;
+        final AES256GCM gcm;
+        try {
+            header = newHeader(key, AES256CTR.DEFAULT_CHUNK_SIZE, 0);
+            gcm = new AES256GCM(key);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+        final byte[] headerBytes = header.toBytes();
+        final AES256CTR ctr = gcm.counterMode(iv(header));
+        final Keystream keystream = new Keystream(ctr);
+        final long[] state = gcm.hashStart(headerBytes);
+        final byte[] buffer = new byte[header.chunkSize];
+        long position = 0;
+        int n;
+
+        out.write(headerBytes);
+        while ((n = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+            if (n > MAX_AUTHENTICATED_LENGTH - position) {
+                throw new IOException("The input is longer than " + MAX_AUTHENTICATED_LENGTH
+                        + " bytes, the most a container stream can authenticate, encrypt it as a file instead");
+            }
+            keystream.apply(buffer, 0, n, position);
+            gcm.hashUpdate(state, buffer, 0, n);
+            out.write(buffer, 0, n);
+            position += n;
+        }
+        out.write(gcm.tag(ctr, state, HEADER_SIZE, position));
+        out.flush();
+    }
+
+    /**
+     * This method decrypts a container, or a headerless encrypted stream,
+     * read from {@code in}. The tag can only be checked at the end of the
+     * stream, so if it does not match, the bytes already written to
+     * {@code out} must be discarded.
+     * @param password  The password with which the stream was encrypted.
+     * @param in        The container.
+     * @param out       Receives the plain bytes.
+     * @return Nothing  The plain bytes get written to out.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException If the password is wrong, nothing is then written.
+     * @throws AEADBadTagException If the container was modified.
+     */
+    public static void decrypt(String password, InputStream in, OutputStream out) throws
+            IOException, NoSuchAlgorithmException, InvalidKeyException, AEADBadTagException {
+
+        byte[] first = new byte[HEADER_SIZE];
+        final int n = in.readNBytes(first, 0, HEADER_SIZE);
+        final Header header = n == HEADER_SIZE ? Header.fromBytes(first) : null;
+
+        if (header == null) {
+            // Headerless, the bytes read belong to the data
+            byte[] buffer = new byte[AES256CTR.DEFAULT_CHUNK_SIZE];
+            System.arraycopy(first, 0, buffer, 0, n);
+            transfer(new AES256CTR(password), in, out, buffer, n);
+            return;
+        }
+        if (!header.isAuthenticated()) {
+            transfer(unlock(password, header), in, out, new byte[header.chunkSize], 0);
+            return;
+        }
+
+        final AES256GCM gcm = unlockAuthenticated(password, header);
+        final AES256CTR ctr = gcm.counterMode(iv(header));
+        final Keystream keystream = new Keystream(ctr);
+        final long[] state = gcm.hashStart(first);
+
+        // One chunk plus the tag, the last TAG_SIZE bytes read may be the tag
+        final byte[] buffer = new byte[header.chunkSize + TAG_SIZE];
+        final int chunk = header.chunkSize;
+        long position = 0;
+        int filled = 0;
+
+        while (true) {
+            filled += in.readNBytes(buffer, filled, buffer.length - filled);
+            final boolean last = filled < buffer.length;
+            final int m = last ? filled - TAG_SIZE : chunk;
+            if (m < 0) {
+                throw new EOFException("Damaged container, the tag is missing");
+            }
+            gcm.hashUpdate(state, buffer, 0, m);
+            keystream.apply(buffer, 0, m, position);
+            out.write(buffer, 0, m);
+            position += m;
+            if (last) {
+                out.flush();
+                AES256GCM.verify(gcm.tag(ctr, state, HEADER_SIZE, position), Arrays.copyOfRange(buffer, m, filled));
+                return;
+            }
+            System.arraycopy(buffer, chunk, buffer, 0, TAG_SIZE);
+            filled = TAG_SIZE;
+        }
+    }
+
+    /**
+     * Opens a container for random access. Position 0 of the channel is the
+     * first byte of the plain file, whatever the header size. Reads do not
+     * check the tag of a version 2 container, which is opened read-only as
+     * a write would invalidate its tag.
+     * @param password  The password with which the file was encrypted.
+     * @param file      The container, or a headerless encrypted file.
+     * @param options   Options specifying how the file is opened, as in {@link FileChannel#open}.
+     * @return          A channel which decrypts on read and encrypts on write.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException If the password is wrong.
+     */
+    public static AES256CTRChannel open(String password, Path file, OpenOption... options) throws
+            IOException, NoSuchAlgorithmException, InvalidKeyException {
+
+        FileChannel channel = FileChannel.open(file, options);
+        try {
+            final Header header = readHeader(channel);
+            if (header == null) {
+                return new AES256CTRChannel(new AES256CTR(password), channel);
+            }
+            if (header.isAuthenticated()) {
+                if (Arrays.asList(options).contains(StandardOpenOption.WRITE)) {
+                    throw new IOException("Authenticated containers are read-only, decrypt them to make changes");
+                }
+                return new AES256CTRChannel(unlock(password, header), channel, HEADER_SIZE, TAG_SIZE);
+            }
+            return new AES256CTRChannel(unlock(password, header), channel, HEADER_SIZE, 0);
+        } catch (IOException | InvalidKeyException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypts {@code length} bytes of the stream from src into dst, either
+     * one chunk at a time or in parallel on {@code pool}. With a second
+     * instance {@code then}, re-encrypts them from the first key to the second.
+     */
+    private static void transfer(AES256CTR ob, AES256CTR then, FileChannel src, long srcOffset, FileChannel dst,
+            long dstOffset, long length, int chunkSize, ProgressListener listener, ForkJoinPool pool) throws
+            IOException {
+
+        if (pool != null) {
+            try {
+                final long segment = Math.max(chunkSize, AES256CTR.segmentSize(length, pool.getParallelism()));
+                pool.invoke(new SegmentTask(ob, then, src, srcOffset, dst, dstOffset, 0, length, segment));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return;
+        }
+
+        if (listener != null) {
+            listener.onProgress(0, length);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(chunkSize, length)));
+        AES256CTR.process(ob, src, srcOffset, dst, dstOffset, length, 0, buffer, new Keystream(ob, then), listener);
+    }
+
+    /**
+     * Encrypts a stream one chunk at a time. Every chunk but the last is full,
+     * so the chunks line up with the positions of the stream.
+     * @param buffer    The chunk buffer, its first {@code filled} bytes are already read.
+     */
+    private static void transfer(AES256CTR ob, InputStream in, OutputStream out, byte[] buffer, int filled) throws
+            IOException {
+
+        final Keystream keystream = new Keystream(ob);
+        long position = 0;
+        int n = filled + in.readNBytes(buffer, filled, buffer.length - filled);
+
+        while (n > 0) {
+            keystream.apply(buffer, 0, n, position);
+            out.write(buffer, 0, n);
+            position += n;
+            n = n < buffer.length ? 0 : in.readNBytes(buffer, 0, buffer.length);
+        }
+        out.flush();
+    }
+
+    /**
+     * @return  The length of the data of a version 2 container.
+     * @throws IOException If the container is too short to hold a tag.
+     */
+    private static long authenticatedLength(FileChannel channel) throws IOException {
+
+        final long length = channel.size() - HEADER_SIZE - TAG_SIZE;
+        if (length < 0) {
+            throw new IOException("Damaged container, the tag is missing");
+        }
+        return length;
+    }
+
+    private static byte[] readTag(FileChannel channel, long length) throws IOException {
+
+        final byte[] tag = new byte[TAG_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(tag);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, HEADER_SIZE + length + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+        return tag;
+    }
+
+    private static void write(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Creates the file next to {@code file} which replaces it, with the
+     * same permissions where the file system has them.
+     */
+    private static Path tempFile(Path file) throws IOException {
+
+        final Path absolute = file.toAbsolutePath();
+        final Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName() + ".", ".tmp");
+        final PosixFileAttributeView view = Files.getFileAttributeView(absolute, PosixFileAttributeView.class);
+        if (view != null) {
+            Files.setPosixFilePermissions(temp, view.readAttributes().permissions());
+        }
+        return temp;
+    }
+
+    /**
+     * Moves a complete file over the original, making sure its content is
+     * on disk first so that a crash cannot lose both.
+     */
+    private static void replace(Path temp, Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package kryptos3dit.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class encrypts a file in place with direct I/O, which moves the data
+ * between the disk and the buffers of this class without going through the
+ * page cache. Encrypting a large archive then does not evict the cached
+ * files of other programs on the same machine.
+ * Direct I/O needs the position, the length and the memory address of every
+ * transfer to be multiples of the block size of the file system, so chunks
+ * are read into an aligned direct buffer, and the last bytes of the file
+ * which do not fill a block go through an ordinary channel.
+ * The option is {@code com.sun.nio.file.ExtendedOpenOption.DIRECT}, in the
+ * {@code jdk.unsupported} module, looked up by name so that nothing here
+ * compiles against an internal API. JDKs without it, and file systems which
+ * refuse direct I/O when opening the file or on the first transfer, get the
+ * streaming mode instead. How they refuse depends on the platform, EINVAL
+ * on Linux and "The parameter is incorrect" on Windows, so any error before
+ * the first byte is written falls back, and an error which was not about
+ * direct I/O, such as a missing file, is thrown by the streaming mode.
+ * Errors after that, such as a full disk, are thrown as usual.
+ * @author  Jaideep
+ */
+final class DirectIO {
+
+    // Null if this JDK has no direct I/O
+    private static final OpenOption DIRECT = load();
+
+    private DirectIO() {
+    }
+
+    /**
+     * Encrypts a file in place, see {@link AES256CTR#encryptDirect(AES256CTR, String, int)}.
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param file      The file to encrypt.
+     * @param chunkSize The number of bytes transferred at a time, rounded down to whole blocks.
+     * @return          true if the page cache was bypassed, false if the streaming mode was used.
+     * @throws IOException
+     */
+    static boolean encrypt(AES256CTR ob, Path file, int chunkSize) throws IOException {
+
+        return encrypt(ob, file, chunkSize, DIRECT);
+    }
+
+    /**
+     * Encrypts a file in place, opening it with {@code direct} instead of the
+     * direct I/O option, so that tests can make the opening fail.
+     * @param direct    The option which asks for direct I/O, null if there is none.
+     */
+    static boolean encrypt(AES256CTR ob, Path file, int chunkSize, OpenOption direct) throws IOException {
+
+        final int align;
+        final FileChannel channel;
+        try {
+            if (direct == null) {
+                throw new UnsupportedOperationException("No direct I/O in this JDK");
+            }
+            align = (int) Files.getFileStore(file).getBlockSize();
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, direct);
+        } catch (UnsupportedOperationException | IOException e) {
+            AES256CTR.encryptStreaming(ob, file.toString());
+            return false;
+        }
+
+        final boolean done;
+        try (FileChannel opened = channel) {
+            done = transfer(ob, file, opened, align, chunkSize);
+        }
+        if (!done) {
+            AES256CTR.encryptStreaming(ob, file.toString());
+        }
+        return done;
+    }
+
+    /**
+     * Finds ExtendedOpenOption.DIRECT.
+     */
+    private static OpenOption load() {
+
+        try {
+            return (OpenOption) Class.forName("com.sun.nio.file.ExtendedOpenOption").getField("DIRECT").get(null);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // jdk.unsupported is not in the module graph, or it changed
+            return null;
+        }
+    }
+
+    /**
+     * @return  false if the first chunk was refused, nothing is written then.
+     */
+    private static boolean transfer(AES256CTR ob, Path file, FileChannel channel, int align, int chunkSize)
+            throws IOException {
+
+        final long size = channel.size();
+        final long body = size - size % align;
+        final int chunk = (int) Math.max(align, Math.min(chunkSize - chunkSize % align, body));
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(chunk + align).alignedSlice(align);
+        final Keystream keystream = new Keystream(ob);
+        boolean writing = false;
+        long done = 0;
+
+        while (done < body) {
+            final int n = (int) Math.min(chunk, body - done);
+
+            buffer.clear().limit(n);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, done + buffer.position()) < 0) {
+                        throw new EOFException("Unexpected end of file at " + (done + buffer.position()));
+                    }
+                }
+
+                // The keystream is XORed into the aligned buffer, the data never leaves it
+                keystream.apply(buffer, 0, n, done);
+                buffer.flip();
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, done + buffer.position());
+                    writing = true;
+                }
+            } catch (EOFException e) {
+                throw e;
+            } catch (IOException e) {
+                if (writing) {
+                    throw e;
+                }
+                // The first chunk was refused before any byte of the file changed
+                return false;
+            }
+            done += n;
+        }
+
+        if (body < size) {
+            try (FileChannel tail = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                AES256CTR.process(ob, tail, body, tail, body, size - body, body,
+                        ByteBuffer.allocate((int) (size - body)), keystream);
+            }
+        }
+        return true;
+    }
+}
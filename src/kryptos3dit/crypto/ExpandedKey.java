@@ -0,0 +1,186 @@
+package kryptos3dit.crypto;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the expanded AES-256 key schedule (15 round keys).
+ * The schedule only depends on the key, so it is computed once and
+ * reused for every block encrypted with that key.
+ * Details at: https://en.wikipedia.org/wiki/AES_key_schedule
+ * @author  Jaideep
+ */
+public final class ExpandedKey {
+
+    private final byte[] key;
+    private final char[][] roundKeys;
+    private final int[] roundKeyWords;
+
+    // Built on first use, only the bitsliced engine needs it
+    private volatile long[] bitslicedRoundKeys;
+
+    // Built on first use, only the JCE engine needs it
+    private volatile JceBlockCipher jceCipher;
+
+    /**
+     * Expands the given key into its 15 round keys.
+     * @param key   The 256-bit key stored as char[32].
+     * @throws IllegalArgumentException If the key is not 32 bytes long.
+     */
+    public ExpandedKey(char[] key) throws IllegalArgumentException {
+
+        this(toBytes(key));
+    }
+
+    /**
+     * Expands the given key into its 15 round keys.
+     * @param key   The 256-bit key stored as byte[32].
+     * @throws IllegalArgumentException If the key is not 32 bytes long.
+     */
+    public ExpandedKey(byte[] key) throws IllegalArgumentException {
+
+        if (key == null || key.length != 32) {
+            throw new IllegalArgumentException("AES-256 key must be 32 bytes long");
+        }
+        this.key = key.clone();
+
+        char[] keyChar = new char[32];
+        for (int i = 0; i < keyChar.length; ++i) {
+            keyChar[i] = (char) Byte.toUnsignedInt(key[i]);
+        }
+        this.roundKeys = Helpers.keyExpansion(keyChar);
+
+        // Pack every column of every round key into a big-endian word
+        this.roundKeyWords = new int[4 * roundKeys.length];
+        for (int r = 0; r < roundKeys.length; ++r) {
+            for (int c = 0; c < 4; ++c) {
+                roundKeyWords[4 * r + c] = (roundKeys[r][4 * c] << 24)
+                                         | (roundKeys[r][4 * c + 1] << 16)
+                                         | (roundKeys[r][4 * c + 2] << 8)
+                                         | roundKeys[r][4 * c + 3];
+            }
+        }
+    }
+
+    /**
+     * Copies every array of another schedule, see {@link #copy()}.
+     */
+    private ExpandedKey(ExpandedKey other) {
+
+        this.key = other.key.clone();
+        this.roundKeys = new char[other.roundKeys.length][];
+        for (int r = 0; r < roundKeys.length; ++r) {
+            this.roundKeys[r] = other.roundKeys[r].clone();
+        }
+        this.roundKeyWords = other.roundKeyWords.clone();
+        final long[] sliced = other.bitslicedRoundKeys;
+        this.bitslicedRoundKeys = sliced == null ? null : sliced.clone();
+        this.jceCipher = other.getJceCipher();
+    }
+
+    /**
+     * Narrows a key stored as char[] into bytes.
+     * @param key   The key, every char holding one byte value.
+     * @return      The key as byte[], or null if key is null.
+     */
+    private static byte[] toBytes(char[] key) {
+
+        if (key == null) {
+            return null;
+        }
+        byte[] result = new byte[key.length];
+        for (int i = 0; i < key.length; ++i) {
+            result[i] = (byte) key[i];
+        }
+        return result;
+    }
+
+    /**
+     * @return The original 256-bit key, byte[32].
+     */
+    byte[] getKey() {
+        return key;
+    }
+
+    /**
+     * Gives a copy of the original key, for {@link CipherEngine} implementations
+     * which do their own key expansion.
+     * @return A copy of the 256-bit key, byte[32].
+     */
+    public byte[] getKeyBytes() {
+        return key.clone();
+    }
+
+    /**
+     * @return The 15 round keys, each stored as char[16].
+     */
+    char[][] getRoundKeys() {
+        return roundKeys;
+    }
+
+    /**
+     * @return The 15 round keys as 60 big-endian words, one per column.
+     */
+    int[] getRoundKeyWords() {
+        return roundKeyWords;
+    }
+
+    /**
+     * @return The 15 round keys as masks for the bitsliced state,
+     *         see {@link AES256Bitsliced#sliceRoundKeys(char[][])}.
+     */
+    long[] getBitslicedRoundKeys() {
+
+        long[] sliced = bitslicedRoundKeys;
+        if (sliced == null) {
+            // Computing it twice on a race is harmless, the result is the same
+            sliced = AES256Bitsliced.sliceRoundKeys(roundKeys);
+            bitslicedRoundKeys = sliced;
+        }
+        return sliced;
+    }
+
+    /**
+     * @return The ciphers of the JDK's provider initialised with this key,
+     *         see {@link JceBlockCipher}.
+     */
+    JceBlockCipher getJceCipher() {
+
+        JceBlockCipher cipher = jceCipher;
+        if (cipher == null) {
+            // Two threads may both build one, the loser is only used until the next call
+            cipher = new JceBlockCipher(key);
+            jceCipher = cipher;
+        }
+        return cipher;
+    }
+
+    /**
+     * Gives a schedule which shares no array with this one, so that this one
+     * can be wiped while the copy is in use. Cheaper than expanding the key
+     * again. The ciphers of the JDK's provider are shared, they hold a key
+     * of their own which {@link #wipe()} cannot reach anyway.
+     * @return A copy of this schedule.
+     */
+    ExpandedKey copy() {
+        return new ExpandedKey(this);
+    }
+
+    /**
+     * Overwrites the key and every round key with zeros, the bitsliced masks
+     * included, and drops the ciphers of the JDK's provider. The schedule
+     * must not be used afterwards, it would encrypt with the zero words.
+     */
+    void wipe() {
+
+        jceCipher = null;
+        Arrays.fill(key, (byte) 0);
+        for (char[] roundKey : roundKeys) {
+            Arrays.fill(roundKey, (char) 0);
+        }
+        Arrays.fill(roundKeyWords, 0);
+        final long[] sliced = bitslicedRoundKeys;
+        if (sliced != null) {
+            Arrays.fill(sliced, 0);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package kryptos3dit.crypto;
+
+/**
+ * This class implements GHASH, the universal hash of GCM, over GF(2^128)
+ * with the bit order of NIST SP 800-38D.
+ * Multiplication by the hash key H uses 16 tables of 256 entries, one per
+ * byte of the input: {@code X * H} is the XOR of {@code T[i][X[i]]}, which
+ * are precomputed products, so a block costs 16 lookups and no reduction.
+ * A state is a {@code long[2]}, the high and low 64 bits of the element, so
+ * one instance (64 KB of tables) serves any number of threads. Independent
+ * ranges can be hashed separately and combined with {@link #power(long)}.
+ * Details: https://nvlpubs.nist.gov/nistpubs/Legacy/SP/nistspecialpublication800-38d.pdf
+ * @author  Jaideep
+ */
+final class GHash {
+
+    /**
+     * The reduction constant, x^128 = x^7 + x^2 + x + 1 in the reflected bit order.
+     */
+    private static final long R = 0xE100000000000000L;
+
+    private final long hHigh;
+    private final long hLow;
+
+    // tableHigh[256 * i + b] and tableLow[256 * i + b] hold (b at byte i) * H
+    private final long[] tableHigh = new long[16 * 256];
+    private final long[] tableLow = new long[16 * 256];
+
+    /**
+     * @param h     The hash key, the encryption of the zero block, stored as byte[16].
+     */
+    GHash(byte[] h) {
+
+        hHigh = getLong(h, 0);
+        hLow = getLong(h, 8);
+
+        // v walks through H * x^k, bit 7 of byte i has coefficient x^(8i)
+        long vHigh = hHigh;
+        long vLow = hLow;
+        for (int i = 0; i < 16; ++i) {
+            final int base = 256 * i;
+            for (int bit = 0x80; bit != 0; bit >>>= 1) {
+                tableHigh[base + bit] = vHigh;
+                tableLow[base + bit] = vLow;
+                final long carry = vLow & 1;
+                vLow = (vLow >>> 1) | (vHigh << 63);
+                vHigh = (vHigh >>> 1) ^ (carry != 0 ? R : 0);
+            }
+            for (int b = 1; b < 256; ++b) {
+                final int low = b & -b;
+                if (low != b) {
+                    tableHigh[base + b] = tableHigh[base + (b ^ low)] ^ tableHigh[base + low];
+                    tableLow[base + b] = tableLow[base + (b ^ low)] ^ tableLow[base + low];
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiplies a state by H in place, using the tables.
+     * @param state The state, {high, low}.
+     */
+    void multiplyH(long[] state) {
+
+        final long x0 = state[0];
+        final long x1 = state[1];
+        long zHigh = 0;
+        long zLow = 0;
+        for (int i = 0; i < 8; ++i) {
+            final int index = 256 * i + (int) ((x0 >>> (56 - 8 * i)) & 0xff);
+            zHigh ^= tableHigh[index];
+            zLow ^= tableLow[index];
+        }
+        for (int i = 0; i < 8; ++i) {
+            final int index = 256 * (i + 8) + (int) ((x1 >>> (56 - 8 * i)) & 0xff);
+            zHigh ^= tableHigh[index];
+            zLow ^= tableLow[index];
+        }
+        state[0] = zHigh;
+        state[1] = zLow;
+    }
+
+    /**
+     * Hashes bytes into a state. A last partial block is padded with zeros,
+     * so only the last call on a range may have a length which is not a
+     * multiple of 16.
+     * @param state The state, {high, low}.
+     * @param data  The bytes to hash.
+     * @param off   Index of the first byte in data.
+     * @param len   The number of bytes.
+     */
+    void update(long[] state, byte[] data, int off, int len) {
+
+        final int end = off + len;
+        int i = off;
+        for (; i + 16 <= end; i += 16) {
+            state[0] ^= getLong(data, i);
+            state[1] ^= getLong(data, i + 8);
+            multiplyH(state);
+        }
+        if (i < end) {
+            byte[] last = new byte[16];
+            System.arraycopy(data, i, last, 0, end - i);
+            state[0] ^= getLong(last, 0);
+            state[1] ^= getLong(last, 8);
+            multiplyH(state);
+        }
+    }
+
+    /**
+     * Hashes the block holding the bit lengths of the additional data and the
+     * ciphertext, which ends every GHASH.
+     * @param state         The state, {high, low}.
+     * @param aadLength     The length of the additional data in bytes.
+     * @param dataLength    The length of the ciphertext in bytes.
+     */
+    void updateLengths(long[] state, long aadLength, long dataLength) {
+
+        state[0] ^= aadLength * 8;
+        state[1] ^= dataLength * 8;
+        multiplyH(state);
+    }
+
+    /**
+     * Combines the hash of a range with the hash of what follows it, computed
+     * from a zero state: {@code state = state * H^blocks + next}.
+     * @param state     The hash of everything before the next range.
+     * @param next      The hash of the next range, started from a zero state.
+     * @param power     {@code H^blocks}, see {@link #power(long)}.
+     */
+    static void combine(long[] state, long[] next, long[] power) {
+
+        multiply(state, power);
+        state[0] ^= next[0];
+        state[1] ^= next[1];
+    }
+
+    /**
+     * @param n     The number of blocks hashed after a range.
+     * @return      {@code H^n} as a state, for {@link #combine}.
+     */
+    long[] power(long n) {
+
+        long[] result = { 1L << 63, 0 };
+        long[] square = { hHigh, hLow };
+        for (; n > 0; n >>>= 1) {
+            if ((n & 1) != 0) {
+                multiply(result, square);
+            }
+            multiply(square, square.clone());
+        }
+        return result;
+    }
+
+    /**
+     * Multiplies two elements bit by bit, as in algorithm 1 of SP 800-38D.
+     * Only used to combine ranges, the hash itself uses the tables.
+     * @param x     The first factor, receives the product.
+     * @param y     The second factor.
+     */
+    static void multiply(long[] x, long[] y) {
+
+        long zHigh = 0;
+        long zLow = 0;
+        long vHigh = y[0];
+        long vLow = y[1];
+        for (int i = 0; i < 128; ++i) {
+            final long bit = i < 64 ? (x[0] >>> (63 - i)) & 1 : (x[1] >>> (127 - i)) & 1;
+            if (bit != 0) {
+                zHigh ^= vHigh;
+                zLow ^= vLow;
+            }
+            final long carry = vLow & 1;
+            vLow = (vLow >>> 1) | (vHigh << 63);
+            vHigh = (vHigh >>> 1) ^ (carry != 0 ? R : 0);
+        }
+        x[0] = zHigh;
+        x[1] = zLow;
+    }
+
+    static long getLong(byte[] b, int off) {
+        return ((long) (b[off] & 0xff) << 56) | ((long) (b[off + 1] & 0xff) << 48)
+                | ((long) (b[off + 2] & 0xff) << 40) | ((long) (b[off + 3] & 0xff) << 32)
+                | ((long) (b[off + 4] & 0xff) << 24) | ((b[off + 5] & 0xff) << 16)
+                | ((b[off + 6] & 0xff) << 8) | (b[off + 7] & 0xff);
+    }
+
+    static void putLong(long v, byte[] b, int off) {
+        for (int i = 7; i >= 0; --i) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+}
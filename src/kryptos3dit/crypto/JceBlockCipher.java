@@ -0,0 +1,64 @@
+package kryptos3dit.crypto;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class runs AES-256 through the JDK's {@code javax.crypto} provider,
+ * which HotSpot compiles to AES-NI instructions where the CPU has them.
+ * The provider's "AES/CTR/NoPadding" increments the whole 128-bit counter,
+ * while AES256CTR XORs the block number into the nonce, so the counter
+ * blocks are built by AES256CTR and only encrypted here with
+ * "AES/ECB/NoPadding". That keeps the output identical to the other engines.
+ * An instance belongs to one {@link ExpandedKey}, which creates it on first
+ * use. {@link Cipher} objects are not thread-safe, so every thread keeps its
+ * own, initialised once with the key, and alternating between keys, as the
+ * rekeyed keystream does, never initialises a cipher again.
+ * @author  Jaideep
+ */
+final class JceBlockCipher {
+
+    private static final String TRANSFORMATION = "AES/ECB/NoPadding";
+
+    private final ThreadLocal<Cipher> ciphers;
+
+    /**
+     * @param key   The 256-bit key, byte[32], copied by the provider on the first use of every thread.
+     */
+    JceBlockCipher(byte[] key) {
+
+        final SecretKeySpec spec = new SecretKeySpec(key, "AES");
+        this.ciphers = ThreadLocal.withInitial(() -> {
+            try {
+                Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+                cipher.init(Cipher.ENCRYPT_MODE, spec);
+                return cipher;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+            }
+        });
+    }
+
+    /**
+     * Encrypts consecutive 16 byte blocks with the cipher the calling thread
+     * keeps for the key.
+     * @param in        The array holding the plain blocks.
+     * @param inOff     Index of the first byte of the first plain block.
+     * @param out       The array receiving the encrypted blocks.
+     * @param outOff    Index of the first byte of the first encrypted block.
+     * @param blocks    The number of blocks.
+     * @param key       The expanded key.
+     * @return Nothing  The {@code 16 * blocks} bytes starting at {@code out[outOff]} get written.
+     * @throws IllegalStateException If the provider fails.
+     */
+    static void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks, ExpandedKey key)
+            throws IllegalStateException {
+
+        try {
+            key.getJceCipher().ciphers.get().update(in, inOff, 16 * blocks, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES encryption failed in the JCE provider", e);
+        }
+    }
+}
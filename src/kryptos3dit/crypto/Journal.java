@@ -0,0 +1,308 @@
+package kryptos3dit.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.zip.CRC32;
+
+/**
+ * This class encrypts a file in place so that the work survives a crash.
+ * Progress is recorded in a journal, a sidecar file named after the file
+ * with {@value #SUFFIX} appended, and running again with the same key
+ * carries on from the last chunk which reached the disk.
+ * <pre>
+ * offset  size  field
+ *  0       4    magic "K3DJ"
+ *  4       1    version, currently 1
+ *  8       4    chunk size in bytes
+ * 16       8    size of the file
+ * 24      16    key fingerprint, SHA-256(label | keystream block 0 of each key) truncated
+ * 40       4    CRC-32 of bytes 0 to 40
+ * 64            slot 0, then slot 1
+ * </pre>
+ * A slot holds a chunk number, its length and a CRC-32 of both and of the
+ * data, followed by the encrypted chunk. Chunk {@code i} is written to slot
+ * {@code i % 2} and forced to disk before it is written to the file, which
+ * is forced in turn before slot {@code i % 2} is reused. After a crash the
+ * valid slot with the highest chunk number is copied to the file again,
+ * which repairs a chunk written halfway, and every chunk before it is
+ * already in the file. CTR encrypts each byte on its own, so the journal
+ * holds ciphertext only, never plain bytes. With a second key the file is
+ * re-encrypted from the first key to the second, and the fingerprint
+ * covers both.
+ * The price is writing every chunk twice and two forces per chunk, which
+ * large chunks keep small next to the cost of the data itself.
+ * @author  Jaideep
+ */
+final class Journal {
+
+    /**
+     * Appended to the name of a file to get the name of its journal.
+     */
+    static final String SUFFIX = ".k3dj";
+
+    private static final byte[] MAGIC = { 'K', '3', 'D', 'J' };
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_HEADER_SIZE = 16;
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+    private static final byte[] FINGERPRINT_LABEL = "kryptos3dit journal".getBytes(StandardCharsets.US_ASCII);
+
+    private final AES256CTR ob;
+    private final AES256CTR then;
+    private final Path file;
+    private final Path journal;
+    private final int chunkSize;
+
+    /**
+     * @param ob        Instance of AES256CTR which stores the nonce and key.
+     * @param then      Instance of AES256CTR to re-encrypt the file with, or null to encrypt it.
+     * @param file      The file to encrypt in place.
+     * @param chunkSize The size of the chunks of a new journal, a resumed
+     *                  journal keeps the size it was started with.
+     * @throws IllegalArgumentException If chunkSize is not positive or too large.
+     */
+    Journal(AES256CTR ob, AES256CTR then, Path file, int chunkSize) throws IllegalArgumentException {
+
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be between 1 and " + MAX_CHUNK_SIZE);
+        }
+        this.ob = ob;
+        this.then = then;
+        this.file = file;
+        this.journal = journalOf(file);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param file  A file.
+     * @return      The path of the journal of that file.
+     */
+    static Path journalOf(Path file) {
+        return file.resolveSibling(file.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Encrypts the file, resuming from its journal if there is one, and
+     * deletes the journal once the whole file is on disk.
+     * @param listener  Receives progress reports, may be null.
+     * @return Nothing  The file gets encrypted.
+     * @throws IOException If the journal belongs to another key or the file changed size.
+     * @throws CancellationException If the listener cancelled, the journal is then kept.
+     */
+    void run(ProgressListener listener) throws IOException, CancellationException {
+
+        try (FileChannel data = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel log = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE)) {
+
+            final long size = data.size();
+            final byte[] fingerprint = fingerprint();
+            final ByteBuffer header = readHeader(log);
+            final int chunk;
+            long next;
+
+            if (header == null) {
+                // Nothing was written to the file before a header reached the disk
+                chunk = chunkSize;
+                log.truncate(0);
+                write(log, newHeader(chunk, size, fingerprint), 0);
+                log.force(true);
+                next = 0;
+            } else {
+                if (!MessageDigest.isEqual(fingerprint, Arrays.copyOfRange(header.array(), 24, 40))) {
+                    throw new IOException("The journal of " + file + " was written with another key");
+                }
+                if (header.getLong(16) != size) {
+                    throw new IOException("The size of " + file + " changed since its journal was written");
+                }
+                chunk = header.getInt(8);
+                next = recover(log, data, chunk, size);
+            }
+
+            final ByteBuffer slot = ByteBuffer.allocate(SLOT_HEADER_SIZE + chunk);
+            final Keystream keystream = new Keystream(ob, then);
+            final long chunks = (size + chunk - 1) / chunk;
+
+            if (listener != null && !listener.onProgress(Math.min(next * chunk, size), size)) {
+                throw new CancellationException("Cancelled, run again to resume");
+            }
+
+            for (; next < chunks; ++next) {
+                final long position = next * chunk;
+                final int n = (int) Math.min(chunk, size - position);
+
+                slot.clear().position(SLOT_HEADER_SIZE).limit(SLOT_HEADER_SIZE + n);
+                while (slot.hasRemaining()) {
+                    if (data.read(slot, position + slot.position() - SLOT_HEADER_SIZE) < 0) {
+                        throw new IOException("The size of " + file + " changed while encrypting");
+                    }
+                }
+                keystream.apply(slot.array(), SLOT_HEADER_SIZE, n, position);
+                seal(slot, next, n);
+
+                // The slot must be on disk before the file is touched
+                slot.position(0);
+                write(log, slot, slotPosition(next, chunk));
+                log.force(false);
+
+                slot.position(SLOT_HEADER_SIZE);
+                write(data, slot, position - SLOT_HEADER_SIZE);
+                data.force(false);
+
+                if (listener != null && !listener.onProgress(position + n, size)) {
+                    throw new CancellationException("Cancelled after " + (position + n) + " bytes, run again to resume");
+                }
+            }
+        }
+        Files.delete(journal);
+    }
+
+    /**
+     * Copies the last chunk recorded in the journal to the file again.
+     * @return  The number of the first chunk still to encrypt.
+     */
+    private static long recover(FileChannel log, FileChannel data, int chunk, long size) throws IOException {
+
+        final long chunks = (size + chunk - 1) / chunk;
+        final ByteBuffer slot = ByteBuffer.allocate(SLOT_HEADER_SIZE + chunk);
+        ByteBuffer last = null;
+        long lastIndex = -1;
+
+        for (int s = 0; s < 2; ++s) {
+            // The slot of a last, shorter chunk may end the journal early
+            slot.clear().limit(SLOT_HEADER_SIZE);
+            if (!readFully(log, slot, slotPosition(s, chunk))) {
+                continue;
+            }
+            final long index = slot.getLong(0);
+            final int n = slot.getInt(8);
+            if (index <= lastIndex || index < 0 || index >= chunks || n != Math.min(chunk, size - index * chunk)) {
+                continue;
+            }
+            slot.limit(SLOT_HEADER_SIZE + n);
+            if (!readFully(log, slot, slotPosition(s, chunk) + SLOT_HEADER_SIZE)
+                    || slot.getInt(12) != crc(slot, n)) {
+                continue;
+            }
+            last = ByteBuffer.wrap(slot.array().clone(), SLOT_HEADER_SIZE, n);
+            lastIndex = index;
+        }
+
+        if (last == null) {
+            return 0;
+        }
+        write(data, last, lastIndex * chunk - SLOT_HEADER_SIZE);
+        data.force(false);
+        return lastIndex + 1;
+    }
+
+    private static long slotPosition(long index, int chunk) {
+        return HEADER_SIZE + (index % 2) * (SLOT_HEADER_SIZE + (long) chunk);
+    }
+
+    /**
+     * Fills in the chunk number, length and checksum of a slot.
+     */
+    private static void seal(ByteBuffer slot, long index, int n) {
+        slot.putLong(0, index);
+        slot.putInt(8, n);
+        slot.putInt(12, crc(slot, n));
+    }
+
+    private static int crc(ByteBuffer slot, int n) {
+        CRC32 crc = new CRC32();
+        crc.update(slot.array(), 0, 12);
+        crc.update(slot.array(), SLOT_HEADER_SIZE, n);
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer newHeader(int chunk, long size, byte[] fingerprint) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).put((byte) VERSION);
+        header.putInt(8, chunk);
+        header.putLong(16, size);
+        header.position(24);
+        header.put(fingerprint);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, 40);
+        header.putInt(40, (int) crc.getValue());
+        return header.clear();
+    }
+
+    /**
+     * @return  The header of the journal, or null if it is missing or was cut short.
+     * @throws IOException If the journal is from a newer version.
+     */
+    private static ByteBuffer readHeader(FileChannel log) throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(log, header, 0)) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, 40);
+        if (!Arrays.equals(MAGIC, Arrays.copyOf(header.array(), MAGIC.length))
+                || header.getInt(40) != (int) crc.getValue()) {
+            return null;
+        }
+        if (header.get(4) != VERSION) {
+            throw new IOException("Unsupported journal version " + header.get(4));
+        }
+        final int chunk = header.getInt(8);
+        if (chunk <= 0 || chunk > MAX_CHUNK_SIZE) {
+            throw new IOException("Damaged journal, chunk size " + chunk);
+        }
+        return header;
+    }
+
+    /**
+     * Identifies the key and nonce without revealing them, the keystream is
+     * only seen through a hash.
+     */
+    private byte[] fingerprint() {
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(FINGERPRINT_LABEL);
+            for (AES256CTR key : new AES256CTR[] { ob, then }) {
+                if (key != null) {
+                    byte[] block = new byte[16];
+                    new Keystream(key).apply(block, 0, block.length, 0);
+                    digest.update(block);
+                }
+            }
+            return Arrays.copyOf(digest.digest(), 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer, {@code position} being where
+     * index 0 of the buffer goes.
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package kryptos3dit.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the keys derived from recently used passwords, for
+ * services which encrypt many small objects with the same few keys.
+ * {@link #get(String)} gives the same instance as
+ * {@link AES256CTR#AES256CTR(String)}. The key is still hashed from the
+ * password, with a digest kept per thread, and is what entries are found
+ * by, but a cached key skips the hash of the nonce and the key expansion.
+ * At most {@code capacity} entries are kept, the least recently used is
+ * evicted first, and an entry expires {@code ttl} after it was derived,
+ * however often it is used.
+ * The cache owns the keys and schedules of its entries and overwrites them
+ * with zeros when an entry is evicted, expires or is cleared. Every instance
+ * handed out gets a copy of the schedule, so the caller may keep it as long
+ * as it likes, and its key goes with the garbage collector. So do the keys
+ * held by the ciphers of the JDK's provider, which the copies share.
+ * An instance is thread-safe. Keys are expanded outside the lock, so a slow
+ * miss does not hold up hits on other passwords.
+ * @author  Jaideep
+ */
+public final class KeyCache {
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final LinkedHashMap<ByteBuffer, Entry> entries;
+    private final ThreadLocal<MessageDigest> digests;
+
+    // Guarded by this
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * An expanded key and its nonce, and when they stop being used.
+     */
+    private static final class Entry {
+
+        final byte[] id;
+        final ExpandedKey schedule;
+        final byte[] nonce;
+        final long expires;
+
+        /**
+         * @param id    The key the entry is found by, owned by the entry.
+         */
+        Entry(byte[] id, ExpandedKey schedule, byte[] nonce, long expires) {
+            this.id = id;
+            this.schedule = schedule;
+            this.nonce = nonce;
+            this.expires = expires;
+        }
+
+        /**
+         * @return  An instance with its own copy of the schedule, the nonce is shared.
+         */
+        AES256CTR instance() {
+            return new AES256CTR(schedule.copy(), nonce);
+        }
+
+        /**
+         * Zeroes the key and the schedule. The entry must be out of the map,
+         * the id is its key there.
+         */
+        void wipe() {
+            Arrays.fill(id, (byte) 0);
+            schedule.wipe();
+        }
+    }
+
+    /**
+     * @param capacity  The largest number of keys kept.
+     * @param ttl       How long a key is kept after it was derived.
+     * @throws IllegalArgumentException If capacity or ttl is not positive.
+     * @throws NoSuchAlgorithmException
+     */
+    public KeyCache(int capacity, Duration ttl) throws IllegalArgumentException, NoSuchAlgorithmException {
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (ttl == null || ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        this.capacity = capacity;
+        // Capped so that the expiry times of System.nanoTime() do not wrap
+        this.ttlNanos = ttl.compareTo(Duration.ofNanos(Long.MAX_VALUE / 2)) >= 0 ? Long.MAX_VALUE / 2 : ttl.toNanos();
+
+        // Access order makes the first entry the least recently used
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        // Fails here rather than in the first lookup of every thread
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        this.digests = ThreadLocal.withInitial(() -> {
+            try {
+                return (MessageDigest) digest.clone();
+            } catch (CloneNotSupportedException e) {
+                try {
+                    return MessageDigest.getInstance(digest.getAlgorithm());
+                } catch (NoSuchAlgorithmException impossible) {
+                    throw new IllegalStateException(impossible);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gives an instance for a password, deriving the key only if it is not
+     * cached or expired.
+     * @param password  The password.
+     * @return          A new instance, encrypting exactly as {@code new AES256CTR(password)}.
+     * @throws NoSuchAlgorithmException
+     */
+    public AES256CTR get(String password) throws NoSuchAlgorithmException {
+
+        // Same as AES256CTR.deriveKey, without looking up a provider
+        final byte[] key = digests.get().digest(password.getBytes(StandardCharsets.UTF_8));
+        final ByteBuffer id = ByteBuffer.wrap(key);
+
+        synchronized (this) {
+            final Entry entry = entries.get(id);
+            if (entry != null) {
+                if (entry.expires - System.nanoTime() > 0) {
+                    ++hits;
+                    Arrays.fill(key, (byte) 0);
+                    // Copied under the lock, before another thread can evict and wipe it
+                    return entry.instance();
+                }
+                entries.remove(id);
+                entry.wipe();
+                ++evictions;
+            }
+            ++misses;
+        }
+
+        final Entry derived = new Entry(key, new ExpandedKey(key), AES256CTR.deriveNonce(key),
+                System.nanoTime() + ttlNanos);
+        if (AES256Engine.select() == AES256Engine.BITSLICED) {
+            // Sliced once here rather than by every copy
+            derived.schedule.getBitslicedRoundKeys();
+        }
+
+        synchronized (this) {
+            final Entry raced = entries.putIfAbsent(id, derived);
+            if (raced != null) {
+                // Another thread derived the same key meanwhile, both are equal
+                derived.wipe();
+                return raced.instance();
+            }
+            final AES256CTR ob = derived.instance();
+            removeStale();
+            return ob;
+        }
+    }
+
+    /**
+     * Removes the expired entries, then the least recently used ones over capacity.
+     */
+    private void removeStale() {
+
+        final long now = System.nanoTime();
+        final Iterator<Map.Entry<ByteBuffer, Entry>> it = entries.entrySet().iterator();
+        int excess = entries.size() - capacity;
+        while (it.hasNext()) {
+            final Entry entry = it.next().getValue();
+            if (excess > 0 || entry.expires - now <= 0) {
+                it.remove();
+                entry.wipe();
+                ++evictions;
+                --excess;
+            }
+        }
+    }
+
+    /**
+     * Removes every key and overwrites it with zeros. Instances handed out
+     * keep working, they have schedules of their own.
+     */
+    public synchronized void clear() {
+
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            it.remove();
+            entry.wipe();
+            ++evictions;
+        }
+    }
+
+    /**
+     * @return The number of keys cached, expired ones included until a lookup or a miss removes them.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of calls to {@link #get(String)} which found a live key.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of calls to {@link #get(String)} which derived the key.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of keys removed because they expired, the cache was
+     *         full or {@link #clear()} was called.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,137 @@
+package kryptos3dit.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class generates the CTR keystream of an {@link AES256CTR} instance
+ * several blocks at a time and XORs it into data.
+ * The counter blocks of a batch are encrypted with a single engine call,
+ * which lets the T-table engine interleave the rounds of four blocks, fills
+ * every lane of the bitsliced engine and amortises the call overhead of the
+ * JCE engine.
+ * The counter and keystream buffers are reused, so no memory is allocated
+ * per block, and the keystream is XORed in by {@link Xor}, many bytes at a
+ * time. An instance is not thread-safe, every thread needs its own.
+ * An instance built with two keys XORs both keystreams into the data, which
+ * turns bytes encrypted with the first key into bytes encrypted with the
+ * second in a single pass.
+ * @author  Jaideep
+ */
+final class Keystream {
+
+    /**
+     * The number of counter blocks encrypted per batch, one full batch of the
+     * bitsliced engine. Large enough to keep the per-call overhead of the JCE
+     * engine small, small enough that short random reads do not compute much
+     * unused keystream.
+     */
+    static final int BLOCKS = AES256Bitsliced.BATCH;
+
+    private final AES256CTR ob;
+    private final AES256CTR then;
+    private final byte[] counters = new byte[16 * BLOCKS];
+    private final byte[] keystream = new byte[16 * BLOCKS];
+    private final byte[] second;
+
+    // Block number of keystream[0], or -1 if the buffer holds nothing yet
+    private long firstBlock = -1;
+
+    /**
+     * @param ob    Instance of AES256CTR which stores the nonce and key.
+     */
+    Keystream(AES256CTR ob) {
+        this(ob, null);
+    }
+
+    /**
+     * @param ob    Instance of AES256CTR which stores the nonce and key.
+     * @param then  A second instance whose keystream is XORed in as well, may be null.
+     */
+    Keystream(AES256CTR ob, AES256CTR then) {
+        this.ob = ob;
+        this.then = then;
+        this.second = then == null ? null : new byte[16 * BLOCKS];
+    }
+
+    /**
+     * Fills the keystream buffer with the batch starting at {@code blockNum}.
+     * @param blockNum  The block number of the first block of the batch.
+     */
+    private void fill(long blockNum) {
+
+        for (int i = 0; i < BLOCKS; ++i) {
+            ob.counterBlock(blockNum + i, counters, 16 * i);
+        }
+        ob.getEngine().encryptBlocks(counters, 0, keystream, 0, BLOCKS, ob.getSchedule());
+
+        if (then != null) {
+            for (int i = 0; i < BLOCKS; ++i) {
+                then.counterBlock(blockNum + i, counters, 16 * i);
+            }
+            then.getEngine().encryptBlocks(counters, 0, second, 0, BLOCKS, then.getSchedule());
+            Xor.xor(keystream, 0, second, 0, keystream.length);
+        }
+        firstBlock = blockNum;
+    }
+
+    /**
+     * Makes sure the batch holding the keystream byte at {@code position} is
+     * in the buffer.
+     * @param position  The position in the stream.
+     * @return          The index of that byte in the keystream buffer.
+     */
+    private int seek(long position) {
+
+        final long blockNum = position / 16;
+        if (firstBlock < 0 || blockNum < firstBlock || blockNum >= firstBlock + BLOCKS) {
+            fill(blockNum);
+        }
+        return (int) (position - 16 * firstBlock);
+    }
+
+    /**
+     * XORs the keystream into a range of bytes. The range can start anywhere
+     * in the stream, it does not have to be on a block boundary.
+     * @param data      The bytes to be encrypted.
+     * @param off       Index of the first byte in data.
+     * @param len       The number of bytes to encrypt.
+     * @param position  The position of {@code data[off]} in the whole stream (file).
+     * @return Nothing  The bytes in data get encrypted.
+     */
+    void apply(byte[] data, int off, int len, long position) {
+
+        final byte[] ks = keystream;
+        int i = off;
+        final int end = off + len;
+
+        while (i < end) {
+            final int k = seek(position + (i - off));
+            final int n = Math.min(ks.length - k, end - i);
+            Xor.xor(data, i, ks, k, n);
+            i += n;
+        }
+    }
+
+    /**
+     * XORs the keystream into a range of a heap or direct buffer, using absolute
+     * indexes. The position and limit of the buffer are not changed.
+     * @param data      The buffer holding the bytes to be encrypted.
+     * @param off       Index of the first byte in data.
+     * @param len       The number of bytes to encrypt.
+     * @param position  The position of {@code data.get(off)} in the whole stream (file).
+     * @return Nothing  The bytes in data get encrypted.
+     */
+    void apply(ByteBuffer data, int off, int len, long position) {
+
+        final byte[] ks = keystream;
+        int i = off;
+        final int end = off + len;
+
+        while (i < end) {
+            final int k = seek(position + (i - off));
+            final int n = Math.min(ks.length - k, end - i);
+            Xor.xor(data, i, ks, k, n);
+            i += n;
+        }
+    }
+}
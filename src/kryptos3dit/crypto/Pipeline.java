@@ -0,0 +1,180 @@
+package kryptos3dit.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class encrypts a file in place with overlapped reading, encryption and
+ * writing. A reader thread fills chunks, one or more cipher threads encrypt
+ * them, and a writer thread writes them back. The stages are connected by
+ * bounded queues and the chunk buffers are recycled, so while one chunk is
+ * being encrypted the next one is already being read and the previous one
+ * written. Total time approaches the slower of the disk and the CPU instead
+ * of their sum.
+ * @author  Jaideep
+ */
+final class Pipeline {
+
+    /**
+     * A chunk of the file travelling through the pipeline.
+     */
+    private static final class Chunk {
+
+        final ByteBuffer buffer;
+        long position;
+
+        Chunk(int size) {
+            this.buffer = ByteBuffer.allocate(size);
+        }
+    }
+
+    /**
+     * Tells a cipher thread that there are no more chunks.
+     */
+    private static final Chunk END = new Chunk(0);
+
+    private final AES256CTR ob;
+    private final FileChannel channel;
+    private final int cipherThreads;
+    private final long size;
+    private final long chunkCount;
+
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> toCipher;
+    private final BlockingQueue<Chunk> toWrite;
+
+    /**
+     * @param ob            Instance of AES256CTR which stores the nonce and key.
+     * @param channel       The file, opened for reading and writing.
+     * @param cipherThreads The number of threads encrypting chunks.
+     * @param chunkSize     The size of every buffer.
+     * @throws IOException
+     */
+    Pipeline(AES256CTR ob, FileChannel channel, int cipherThreads, int chunkSize) throws IOException {
+
+        this.ob = ob;
+        this.channel = channel;
+        this.cipherThreads = cipherThreads;
+        this.size = channel.size();
+        this.chunkCount = (size + chunkSize - 1) / chunkSize;
+
+        // Two buffers per stage, so that every stage can work while the next one does
+        final int buffers = 2 * (cipherThreads + 2);
+        this.free = new ArrayBlockingQueue<Chunk>(buffers);
+        this.toCipher = new ArrayBlockingQueue<Chunk>(buffers + cipherThreads);
+        this.toWrite = new ArrayBlockingQueue<Chunk>(buffers);
+        for (int i = 0; i < buffers; ++i) {
+            free.add(new Chunk(chunkSize));
+        }
+    }
+
+    /**
+     * Runs all the stages and waits for them to finish. If a stage fails the
+     * others are interrupted and the first error is thrown.
+     * @return Nothing  The file gets encrypted.
+     * @throws IOException
+     */
+    void run() throws IOException {
+
+        ExecutorService threads = Executors.newFixedThreadPool(cipherThreads + 2);
+        CompletionService<Void> stages = new ExecutorCompletionService<Void>(threads);
+        final int stageCount = cipherThreads + 2;
+
+        try {
+            stages.submit(reader());
+            for (int i = 0; i < cipherThreads; ++i) {
+                stages.submit(cipher());
+            }
+            stages.submit(writer());
+
+            for (int i = 0; i < stageCount; ++i) {
+                stages.take().get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Encryption interrupted");
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The reader stage: fills free chunks from the file in order.
+     */
+    private Callable<Void> reader() {
+        return () -> {
+            for (long position = 0; position < size; ) {
+                Chunk chunk = free.take();
+                chunk.position = position;
+                chunk.buffer.clear().limit((int) Math.min(chunk.buffer.capacity(), size - position));
+
+                while (chunk.buffer.hasRemaining()) {
+                    if (channel.read(chunk.buffer, position + chunk.buffer.position()) < 0) {
+                        throw new EOFException("Unexpected end of file at " + (position + chunk.buffer.position()));
+                    }
+                }
+                position += chunk.buffer.limit();
+                toCipher.put(chunk);
+            }
+            for (int i = 0; i < cipherThreads; ++i) {
+                toCipher.put(END);
+            }
+            return null;
+        };
+    }
+
+    /**
+     * @return A cipher stage: encrypts chunks until it sees {@link #END}.
+     */
+    private Callable<Void> cipher() {
+        return () -> {
+            Keystream keystream = new Keystream(ob);
+            for (Chunk chunk = toCipher.take(); chunk != END; chunk = toCipher.take()) {
+                keystream.apply(chunk.buffer.array(), 0, chunk.buffer.limit(), chunk.position);
+                toWrite.put(chunk);
+            }
+            return null;
+        };
+    }
+
+    /**
+     * @return The writer stage: writes every chunk back to where it was read
+     *         from, in whatever order they arrive, and recycles the buffers.
+     */
+    private Callable<Void> writer() {
+        return () -> {
+            for (long written = 0; written < chunkCount; ++written) {
+                Chunk chunk = toWrite.take();
+                chunk.buffer.flip();
+                while (chunk.buffer.hasRemaining()) {
+                    channel.write(chunk.buffer, chunk.position + chunk.buffer.position());
+                }
+                free.put(chunk);
+            }
+            return null;
+        };
+    }
+}
@@ -0,0 +1,21 @@
+package kryptos3dit.crypto;
+
+/**
+ * This interface receives progress reports from the long-running methods of
+ * {@link AES256CTR}, and can cancel them.
+ * Do not interrupt the thread running the encryption to stop it, because
+ * interrupting closes the file channel in the middle of a write. Return
+ * false from {@link #onProgress} instead.
+ * @author  Jaideep
+ */
+@FunctionalInterface
+public interface ProgressListener {
+
+    /**
+     * Called each time a chunk has been written.
+     * @param processed The number of bytes processed so far.
+     * @param total     The total number of bytes to process.
+     * @return          true to carry on, false to cancel the operation.
+     */
+    boolean onProgress(long processed, long total);
+}
@@ -0,0 +1,118 @@
+package kryptos3dit.crypto;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class encrypts a range of a file in place as a fork/join task.
+ * CTR blocks do not depend on each other, so a range is split in halves
+ * on a block boundary until it is small enough to be encrypted directly.
+ * Every half uses its own counter values, the output is the same as
+ * encrypting the file sequentially. With a second key, the range is
+ * re-encrypted from the first key to the second, see {@link Keystream}.
+ * @author  Jaideep
+ */
+final class SegmentTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AES256CTR ob;
+    private final AES256CTR then;
+    private final FileChannel src;
+    private final long srcOffset;
+    private final FileChannel dst;
+    private final long dstOffset;
+    private final long start;
+    private final long end;
+    private final long segmentSize;
+
+    /**
+     * @param ob            Instance of AES256CTR which stores the nonce and key.
+     * @param channel       The file, opened for reading and writing.
+     * @param start         The first byte of the range, a multiple of 16.
+     * @param end           The byte after the last byte of the range.
+     * @param segmentSize   Ranges up to this size are not split any more.
+     */
+    SegmentTask(AES256CTR ob, FileChannel channel, long start, long end, long segmentSize) {
+        this(ob, channel, 0, channel, 0, start, end, segmentSize);
+    }
+
+    /**
+     * Encrypts from one channel into another, the byte at position {@code p}
+     * of the stream is read at {@code srcOffset + p} and written at
+     * {@code dstOffset + p}, e.g. after the header of a {@link Container}.
+     * @param ob            Instance of AES256CTR which stores the nonce and key.
+     * @param src           The channel to read from.
+     * @param srcOffset     The position in src of the first byte of the stream.
+     * @param dst           The channel to write to.
+     * @param dstOffset     The position in dst of the first byte of the stream.
+     * @param start         The first byte of the range in the stream, a multiple of 16.
+     * @param end           The byte after the last byte of the range.
+     * @param segmentSize   Ranges up to this size are not split any more.
+     */
+    SegmentTask(AES256CTR ob, FileChannel src, long srcOffset, FileChannel dst, long dstOffset,
+            long start, long end, long segmentSize) {
+        this(ob, null, src, srcOffset, dst, dstOffset, start, end, segmentSize);
+    }
+
+    /**
+     * Re-encrypts a range of a file in place from one key to another.
+     * @param ob            Instance of AES256CTR which the range is encrypted with.
+     * @param then          Instance of AES256CTR to encrypt the range with instead, may be null.
+     * @param channel       The file, opened for reading and writing.
+     * @param start         The first byte of the range, a multiple of 16.
+     * @param end           The byte after the last byte of the range.
+     * @param segmentSize   Ranges up to this size are not split any more.
+     */
+    SegmentTask(AES256CTR ob, AES256CTR then, FileChannel channel, long start, long end, long segmentSize) {
+        this(ob, then, channel, 0, channel, 0, start, end, segmentSize);
+    }
+
+    /**
+     * Re-encrypts a range from one channel into another, from one key to another.
+     * @param ob            Instance of AES256CTR which the range is encrypted with.
+     * @param then          Instance of AES256CTR to encrypt the range with instead, may be null.
+     * @param src           The channel to read from.
+     * @param srcOffset     The position in src of the first byte of the stream.
+     * @param dst           The channel to write to.
+     * @param dstOffset     The position in dst of the first byte of the stream.
+     * @param start         The first byte of the range in the stream, a multiple of 16.
+     * @param end           The byte after the last byte of the range.
+     * @param segmentSize   Ranges up to this size are not split any more.
+     */
+    SegmentTask(AES256CTR ob, AES256CTR then, FileChannel src, long srcOffset, FileChannel dst,
+            long dstOffset, long start, long end, long segmentSize) {
+        this.ob = ob;
+        this.then = then;
+        this.src = src;
+        this.srcOffset = srcOffset;
+        this.dst = dst;
+        this.dstOffset = dstOffset;
+        this.start = start;
+        this.end = end;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    protected void compute() {
+
+        if (end - start <= segmentSize) {
+            try {
+                final int chunk = (int) Math.min(AES256CTR.DEFAULT_CHUNK_SIZE, end - start);
+                AES256CTR.process(ob, src, srcOffset + start, dst, dstOffset + start, end - start, start,
+                        ByteBuffer.allocate(Math.max(chunk, 1)), new Keystream(ob, then));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+
+        // Split on a block boundary so that each half starts a new counter block
+        final long middle = start + ((end - start) / 2 & ~15L);
+        invokeAll(new SegmentTask(ob, then, src, srcOffset, dst, dstOffset, start, middle, segmentSize),
+                  new SegmentTask(ob, then, src, srcOffset, dst, dstOffset, middle, end, segmentSize));
+    }
+}
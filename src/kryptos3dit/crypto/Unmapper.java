@@ -0,0 +1,74 @@
+package kryptos3dit.crypto;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * This class releases a mapping of a file as soon as it is no longer used.
+ * The JDK only unmaps a {@link MappedByteBuffer} when the garbage collector
+ * finds it unreachable, so sliding a window along a large file would
+ * otherwise keep every window mapped, and the address space with it, until
+ * the next collection. {@code sun.misc.Unsafe.invokeCleaner} unmaps at once.
+ * It is in the {@code jdk.unsupported} module, which every JDK 9 or later
+ * exports, and is looked up by name so that nothing here compiles against
+ * an internal API. When it is missing, {@link #isSupported()} is false and
+ * callers should not map at all.
+ * @author  Jaideep
+ */
+final class Unmapper {
+
+    private static final MethodHandle CLEANER = load();
+
+    private Unmapper() {
+    }
+
+    /**
+     * @return  true if {@link #unmap(MappedByteBuffer)} releases mappings.
+     */
+    static boolean isSupported() {
+        return CLEANER != null;
+    }
+
+    /**
+     * Unmaps a buffer. Nothing may use it afterwards, not even a slice or a
+     * duplicate of it, reading an unmapped buffer crashes the JVM.
+     * @param buffer    The mapping to release.
+     * @return Nothing  The pages of buffer get unmapped.
+     * @throws IllegalStateException If unmapping is not supported or fails.
+     */
+    static void unmap(MappedByteBuffer buffer) throws IllegalStateException {
+
+        if (CLEANER == null) {
+            throw new IllegalStateException("Unmapping is not supported by this JDK");
+        }
+        try {
+            CLEANER.invokeExact((ByteBuffer) buffer);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Unmapping failed", e);
+        }
+    }
+
+    /**
+     * Finds invokeCleaner, bound to the Unsafe instance.
+     */
+    private static MethodHandle load() {
+
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // jdk.unsupported is not in the module graph, or it changed
+            return null;
+        }
+    }
+}
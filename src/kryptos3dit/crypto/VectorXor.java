@@ -0,0 +1,35 @@
+package kryptos3dit.crypto;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The SIMD kernel of {@link Xor}, one register of the widest size the CPU
+ * supports at a time, the bytes past the last whole register go through
+ * {@link Xor#scalar}.
+ * It needs {@code --add-modules jdk.incubator.vector} both to compile and
+ * to run, nothing refers to it by type so the rest of the package does not.
+ * @author  Jaideep
+ */
+final class VectorXor implements Xor.Kernel {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    VectorXor() {
+    }
+
+    @Override
+    public void xor(byte[] dst, int dstOff, byte[] src, int srcOff, int len) {
+
+        final int step = SPECIES.length();
+        final int bound = SPECIES.loopBound(len);
+        int i = 0;
+        for (; i < bound; i += step) {
+            ByteVector a = ByteVector.fromArray(SPECIES, dst, dstOff + i);
+            ByteVector b = ByteVector.fromArray(SPECIES, src, srcOff + i);
+            a.lanewise(VectorOperators.XOR, b).intoArray(dst, dstOff + i);
+        }
+        Xor.scalar(dst, dstOff + i, src, srcOff + i, len - i);
+    }
+}
@@ -0,0 +1,145 @@
+package kryptos3dit.crypto;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class XORs the keystream into data, the last step of CTR, many bytes
+ * at a time instead of one.
+ * With the Vector API, which is incubating in JDK 16 and later and needs
+ * {@code --add-modules jdk.incubator.vector}, whole SIMD registers are XORed
+ * at once by {@code VectorXor}. That class is compiled on its own and loaded
+ * by name, so this one compiles and runs on any JDK 11 or later. Without the
+ * module, or if the vector kernel fails its self-test, eight bytes are XORed
+ * at a time as longs.
+ * @author  Jaideep
+ */
+final class Xor {
+
+    /**
+     * XORs {@code len} bytes of src into dst.
+     */
+    interface Kernel {
+        void xor(byte[] dst, int dstOff, byte[] src, int srcOff, int len);
+    }
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle BUFFER_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    private static final Kernel KERNEL = load();
+
+    private Xor() {
+    }
+
+    /**
+     * XORs a range of bytes into another, the ranges may be in the same array
+     * as long as they do not overlap.
+     * @param dst       The bytes receiving the result.
+     * @param dstOff    Index of the first byte in dst.
+     * @param src       The bytes XORed in, usually keystream.
+     * @param srcOff    Index of the first byte in src.
+     * @param len       The number of bytes.
+     * @return Nothing  The bytes in dst get changed.
+     */
+    static void xor(byte[] dst, int dstOff, byte[] src, int srcOff, int len) {
+        KERNEL.xor(dst, dstOff, src, srcOff, len);
+    }
+
+    /**
+     * XORs a range of bytes into a buffer, using absolute indexes. The
+     * position, limit and byte order of the buffer are not changed.
+     * @param dst       The buffer receiving the result, usually direct.
+     * @param dstOff    Index of the first byte in dst.
+     * @param src       The bytes XORed in, usually keystream.
+     * @param srcOff    Index of the first byte in src.
+     * @param len       The number of bytes.
+     * @return Nothing  The bytes in dst get changed.
+     */
+    static void xor(ByteBuffer dst, int dstOff, byte[] src, int srcOff, int len) {
+
+        if (dst.hasArray()) {
+            KERNEL.xor(dst.array(), dst.arrayOffset() + dstOff, src, srcOff, len);
+            return;
+        }
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            final long x = (long) BUFFER_LONGS.get(dst, dstOff + i) ^ (long) LONGS.get(src, srcOff + i);
+            BUFFER_LONGS.set(dst, dstOff + i, x);
+        }
+        for (; i < len; ++i) {
+            dst.put(dstOff + i, (byte) (dst.get(dstOff + i) ^ src[srcOff + i]));
+        }
+    }
+
+    /**
+     * The fallback kernel, eight bytes at a time through a long view of the arrays.
+     */
+    static void scalar(byte[] dst, int dstOff, byte[] src, int srcOff, int len) {
+
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            final long x = (long) LONGS.get(dst, dstOff + i) ^ (long) LONGS.get(src, srcOff + i);
+            LONGS.set(dst, dstOff + i, x);
+        }
+        for (; i < len; ++i) {
+            dst[dstOff + i] ^= src[srcOff + i];
+        }
+    }
+
+    /**
+     * @return  The name of the kernel in use, "vector" or "scalar".
+     */
+    static String kernelName() {
+        return KERNEL.getClass().getSimpleName().equals("VectorXor") ? "vector" : "scalar";
+    }
+
+    /**
+     * Loads the vector kernel if the module is there and it works.
+     */
+    private static Kernel load() {
+
+        try {
+            Kernel vector = (Kernel) Class.forName("kryptos3dit.crypto.VectorXor")
+                    .getDeclaredConstructor().newInstance();
+            if (selfTest(vector)) {
+                return vector;
+            }
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // Not compiled, or jdk.incubator.vector is not in the module graph
+        }
+        return Xor::scalar;
+    }
+
+    /**
+     * Checks a kernel against the byte loop on every length up to a few
+     * vectors and on unaligned offsets.
+     */
+    private static boolean selfTest(Kernel kernel) {
+
+        Random random = new Random(0x786f72);
+        byte[] src = new byte[300];
+        byte[] data = new byte[300];
+        random.nextBytes(src);
+        random.nextBytes(data);
+
+        for (int len = 0; len < 260; len += 7) {
+            final int dstOff = len % 13;
+            final int srcOff = len % 5;
+            byte[] expected = data.clone();
+            for (int i = 0; i < len; ++i) {
+                expected[dstOff + i] ^= src[srcOff + i];
+            }
+            byte[] actual = data.clone();
+            kernel.xor(actual, dstOff, src, srcOff, len);
+            if (!Arrays.equals(expected, actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -5,12 +5,14 @@ import de.jensd.fx.glyphs.fontawesome.FontAwesomeIcon;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-import java.nio.BufferOverflowException;
-import java.nio.ReadOnlyBufferException;
-import java.nio.file.InvalidPathException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.crypto.AEADBadTagException;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -19,12 +21,16 @@ import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.Label;
 import javafx.scene.control.PasswordField;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextField;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import kryptos3dit.Main;
-import kryptos3dit.crypto.AES256CTR;
+import kryptos3dit.crypto.Container;
+import kryptos3dit.crypto.ProgressListener;
 
 
 /**
@@ -103,6 +109,121 @@ public class encryptionController implements Initializable {
         a.setHeaderText("Something went wrong. Try again");
         a.showAndWait();
     }
+    void displayError(IOException e){
+        Alert a = new Alert(AlertType.ERROR);
+        a.setTitle("KRYPTOS3DIT");
+        a.setHeaderText("Could not read or write the file. Try again");
+        a.setContentText(e.getMessage());
+        a.showAndWait();
+    }
+    /**
+     * Encrypts or decrypts the imported file on a background thread, so that
+     * the window stays responsive. A dialog shows the bytes processed and the
+     * throughput, and its Cancel button stops the run and leaves the file as it was.
+     * @param decrypt           True to decrypt the file, false to encrypt it.
+     * @param password          The password of the file.
+     * @param doneHeader        Shown when the file is done.
+     * @param cancelledHeader   Shown when the user cancelled.
+     */
+    void runInBackground(boolean decrypt, String password, String doneHeader, String cancelledHeader){
+        final File target = file;
+        final AtomicBoolean cancelRequested = new AtomicBoolean(false);
+        final boolean[] finished = {false};
+
+        Task<Void> task = new Task<Void>() {
+            @Override
+            protected Void call() throws Exception {
+                // Inside the task, so that a bad path is reported by setOnFailed too
+                final Path path = target.toPath();
+                final long start = System.nanoTime();
+                ProgressListener listener = (processed, total) -> {
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    double megabytes = processed / 1048576.0;
+                    updateProgress(processed, total);
+                    updateMessage(String.format("%.0f of %.0f MB (%.1f MB/s)", megabytes, total / 1048576.0,
+                            seconds > 0 ? megabytes / seconds : 0.0));
+                    return !cancelRequested.get();
+                };
+                if (decrypt) {
+                    Container.decrypt(password, path, listener);
+                } else {
+                    Container.encrypt(password, path, listener);
+                }
+                return null;
+            }
+        };
+
+        ProgressBar bar = new ProgressBar();
+        bar.setPrefWidth(360);
+        bar.progressProperty().bind(task.progressProperty());
+        Label status = new Label();
+        status.textProperty().bind(task.messageProperty());
+
+        Alert progress = new Alert(AlertType.NONE);
+        progress.setTitle("KRYPTOS3DIT");
+        progress.setHeaderText("Working on " + target.getName());
+        progress.getDialogPane().setContent(new VBox(10, bar, status));
+        progress.getButtonTypes().add(ButtonType.CANCEL);
+
+        // Cancelling only asks the task to stop, the dialog stays until the file is restored
+        Runnable requestCancel = () -> {
+            cancelRequested.set(true);
+            status.textProperty().unbind();
+            status.setText("Cancelling, restoring the file...");
+        };
+        progress.getDialogPane().lookupButton(ButtonType.CANCEL).addEventFilter(ActionEvent.ACTION, ev -> {
+            requestCancel.run();
+            ev.consume();
+        });
+        progress.setOnCloseRequest(ev -> {
+            if (!finished[0]) {
+                requestCancel.run();
+                ev.consume();
+            }
+        });
+
+        task.setOnSucceeded(ev -> {
+            finished[0] = true;
+            progress.close();
+            Alert a = new Alert(AlertType.INFORMATION);
+            a.setTitle("KRYPTOS3DIT");
+            a.setHeaderText(doneHeader);
+            a.showAndWait();
+        });
+        task.setOnFailed(ev -> {
+            finished[0] = true;
+            progress.close();
+            Throwable cause = task.getException();
+            if (cause instanceof CancellationException) {
+                Alert a = new Alert(AlertType.INFORMATION);
+                a.setTitle("KRYPTOS3DIT");
+                a.setHeaderText(cancelledHeader);
+                a.setContentText("The file was left unchanged.");
+                a.showAndWait();
+            } else if (cause instanceof InvalidKeyException) {
+                Alert a = new Alert(AlertType.ERROR);
+                a.setTitle("KRYPTOS3DIT");
+                a.setHeaderText("Wrong password");
+                a.setContentText("The file was left unchanged.");
+                a.showAndWait();
+            } else if (cause instanceof AEADBadTagException) {
+                Alert a = new Alert(AlertType.ERROR);
+                a.setTitle("KRYPTOS3DIT");
+                a.setHeaderText("The file is damaged or was modified");
+                a.setContentText("The file was left unchanged.");
+                a.showAndWait();
+            } else if (cause instanceof IOException) {
+                displayError((IOException) cause);
+            } else {
+                displayError();
+            }
+        });
+
+        Thread worker = new Thread(task, "kryptos3dit-encryption");
+        worker.setDaemon(true);
+        worker.start();
+        progress.show();
+    }
     @FXML
     void encrypt(ActionEvent e){
         if(encryptionToggle){
@@ -112,55 +233,26 @@ public class encryptionController implements Initializable {
         if(!checkFile() || !checkPassword(encryptKey.getText(),encryptKey1.getText()) || !checkFile()){
             return;
         }
-        try {
-            Alert a1 = new Alert(AlertType.INFORMATION);
-            a1.getButtonTypes().removeAll(ButtonType.OK);
-            a1.getButtonTypes().addAll(ButtonType.YES, ButtonType.NO);
-            a1.setTitle("KRYPTOS3DIT");
-            a1.setHeaderText("Remember to store your password.");
-            a1.setContentText("Decrypting files with wrong password can \npermanently encrypt the file. "
-                    + "\nContinue with Encryption? ");
-            
-            Optional<ButtonType> choice = a1.showAndWait();
-            if (choice.get() == ButtonType.YES) {
-                String temp = encryptKey1.getText();
-                AES256CTR enc = new AES256CTR(temp);
-                AES256CTR.encrypt(enc, file.getPath());
-                Alert a = new Alert(AlertType.INFORMATION);
-                a.setTitle("KRYPTOS3DIT");
-                a.setHeaderText("File Encrypted");
-                a.showAndWait();
-            } else if (choice.get() == ButtonType.NO) {
-                Alert a2 = new Alert(AlertType.INFORMATION);
-                a2.setTitle("KRYPTOS3DIT");
-                a2.setHeaderText("Encryption Aborted");
-                a2.show();
-            }
-        } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
-            displayError();
-            return;
-        } catch (IOException iOException) {
-            displayError();
-            return;
-        } catch (OutOfMemoryError outOfMemoryError) {
-            displayError();
-            return;
-        } catch (SecurityException securityException) {
-            displayError();
-            return;
-        } catch (InvalidPathException invalidPathException) {
-            displayError();
-            return;
-        } catch (ReadOnlyBufferException readOnlyBufferException) {
-            displayError();
-            return;
-        } catch (BufferOverflowException bufferOverflowException) {
-            displayError();
-            return;
+        Alert a1 = new Alert(AlertType.INFORMATION);
+        a1.getButtonTypes().removeAll(ButtonType.OK);
+        a1.getButtonTypes().addAll(ButtonType.YES, ButtonType.NO);
+        a1.setTitle("KRYPTOS3DIT");
+        a1.setHeaderText("Remember to store your password.");
+        a1.setContentText("The file cannot be decrypted \nwithout this password. "
+                + "\nContinue with Encryption? ");
+        
+        Optional<ButtonType> choice = a1.showAndWait();
+        if (choice.get() == ButtonType.YES) {
+            runInBackground(false, encryptKey1.getText(), "File Encrypted", "Encryption Cancelled");
+        } else if (choice.get() == ButtonType.NO) {
+            Alert a2 = new Alert(AlertType.INFORMATION);
+            a2.setTitle("KRYPTOS3DIT");
+            a2.setHeaderText("Encryption Aborted");
+            a2.show();
         }
     }
     @FXML
-    void decrypt(ActionEvent e) throws NoSuchAlgorithmException, IOException{
+    void decrypt(ActionEvent e){
         if(decryptionToggle){
             decryptKey.setText(decryptTextField.getText());
             decryptKey1.setText(decryptTextField1.getText());
@@ -168,51 +260,24 @@ public class encryptionController implements Initializable {
         if(!checkFile() || !checkPassword(decryptKey.getText(),decryptKey1.getText())){
             return;
         }
-        try {
-            Alert a1 = new Alert(AlertType.INFORMATION);
-            a1.getButtonTypes().removeAll(ButtonType.OK);
-            a1.getButtonTypes().addAll(ButtonType.YES, ButtonType.NO);
-            
-            a1.setTitle("KRYPTOS3DIT");
-            a1.setHeaderText("Ensure password is correct");
-            a1.setContentText("Decrypting files with wrong password can \npermanently encrypt the file. "
-                    + "\nContinue with Decryption? ");
-            Optional<ButtonType> choice = a1.showAndWait();
-            if (choice.get() == ButtonType.YES) {
-                AES256CTR dec = new AES256CTR(decryptKey.getText());
-                AES256CTR.decryption(dec, file.getPath());
-                Alert a = new Alert(AlertType.INFORMATION);
-                a.setTitle("KRYPTOS3DIT");
-                a.setHeaderText("File Decrypted");
-                a.showAndWait();
-            } else if (choice.get() == ButtonType.NO) {
-                Alert a2 = new Alert(AlertType.INFORMATION);
-                a2.setTitle("KRYPTOS3DIT");
-                a2.setHeaderText("Decryption Aborted");
-                a2.show();
-            }
-        } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
-            displayError();
-            return;
-        } catch (IOException iOException) {
-            displayError();
-            return;
-        } catch (OutOfMemoryError outOfMemoryError) {
-            displayError();
-            return;
-        } catch (SecurityException securityException) {
-            displayError();
-            return;
-        } catch (InvalidPathException invalidPathException) {
-            displayError();
-            return;
-        } catch (ReadOnlyBufferException readOnlyBufferException) {
-            displayError();
-            return;
-        } catch (BufferOverflowException bufferOverflowException) {
-            displayError();
-            return;
-        }   
+        Alert a1 = new Alert(AlertType.INFORMATION);
+        a1.getButtonTypes().removeAll(ButtonType.OK);
+        a1.getButtonTypes().addAll(ButtonType.YES, ButtonType.NO);
+        
+        a1.setTitle("KRYPTOS3DIT");
+        a1.setHeaderText("Ensure password is correct");
+        a1.setContentText("Files encrypted by older versions have no password check, \n"
+                + "decrypting them with a wrong password can \npermanently encrypt the file. "
+                + "\nContinue with Decryption? ");
+        Optional<ButtonType> choice = a1.showAndWait();
+        if (choice.get() == ButtonType.YES) {
+            runInBackground(true, decryptKey.getText(), "File Decrypted", "Decryption Cancelled");
+        } else if (choice.get() == ButtonType.NO) {
+            Alert a2 = new Alert(AlertType.INFORMATION);
+            a2.setTitle("KRYPTOS3DIT");
+            a2.setHeaderText("Decryption Aborted");
+            a2.show();
+        }
     }
     @FXML
     void viewPassword(MouseEvent m){
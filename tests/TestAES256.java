@@ -5,6 +5,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import kryptos3dit.crypto.AES256;
+import kryptos3dit.crypto.AES256Bitsliced;
+import kryptos3dit.crypto.AES256TTable;
+import kryptos3dit.crypto.ExpandedKey;
 
 /**
  * This class performs tests of AES-256 using the test suite provided by
@@ -166,6 +169,8 @@ public final class TestAES256 {
 
         System.out.println("RUNNING TESTS...");
         int count = 0;
+        int countTTable = 0;
+        int countBitsliced = 0;
         
         // Iterate through the data points
         for (int i = 0; i < dataPoints.size(); ++i) {
@@ -180,9 +185,34 @@ public final class TestAES256 {
             if (Arrays.equals(temp, dataPoints.get(i).getOutput())) {
                 ++count;
             }
+
+            // Repeat with the T-table engine
+            temp = deepCopy(dataPoints.get(i).getInput());
+            AES256TTable.encrypt(temp, new ExpandedKey(dataPoints.get(i).getKey()));
+            if (Arrays.equals(temp, dataPoints.get(i).getOutput())) {
+                ++countTTable;
+            }
+
+            // Repeat with the bitsliced engine, which works on bytes
+            temp = dataPoints.get(i).getInput();
+            byte[] block = new byte[16];
+            for (int j = 0; j < block.length; ++j) {
+                block[j] = (byte) temp[j];
+            }
+            AES256Bitsliced.encryptBlocks(block, 0, block, 0, 1, new ExpandedKey(dataPoints.get(i).getKey()));
+            char[] expected = dataPoints.get(i).getOutput();
+            boolean same = true;
+            for (int j = 0; j < block.length; ++j) {
+                same &= (block[j] & 0xff) == expected[j];
+            }
+            if (same) {
+                ++countBitsliced;
+            }
         }
 
         System.out.println("TOTAL: " + Integer.toString(dataPoints.size()));
         System.out.println("PASSED: " + Integer.toString(count));
+        System.out.println("PASSED (T-TABLE): " + Integer.toString(countTTable));
+        System.out.println("PASSED (BITSLICED): " + Integer.toString(countBitsliced));
     }
 }
\ No newline at end of file
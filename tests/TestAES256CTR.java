@@ -0,0 +1,864 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import kryptos3dit.crypto.AES256CTR;
+import kryptos3dit.crypto.AES256CTRChannel;
+import kryptos3dit.crypto.AES256CTRSession;
+import kryptos3dit.crypto.AES256Engine;
+import kryptos3dit.crypto.AsyncEncryptor;
+import kryptos3dit.crypto.BatchEncryptor;
+import kryptos3dit.crypto.BatchResult;
+import kryptos3dit.crypto.ExpandedKey;
+import kryptos3dit.crypto.KeyCache;
+
+/**
+ * This class checks that every file encryption mode of AES256CTR produces
+ * exactly the same output as the original in-memory {@code AES256CTR.encrypt},
+ * and that encrypting twice gives back the original file.
+ * @author Jaideep
+ */
+public final class TestAES256CTR {
+
+    /**
+     * The file sizes to test with, chosen around the block and chunk boundaries.
+     */
+    private static final int[] SIZES = { 0, 1, 15, 16, 17, 4095, 100003, (1 << 20) + 5 };
+
+    /**
+     * A file encryption mode under test.
+     */
+    interface Mode {
+        void encrypt(AES256CTR ob, String filePath) throws Exception;
+    }
+
+    private static int total = 0;
+    private static int passed = 0;
+
+    /**
+     * Makes a temporary file filled with pseudo-random bytes.
+     * @param size  The size of the file in bytes.
+     * @param seed  The seed of the generator.
+     * @return      The path to the file.
+     * @throws IOException
+     */
+    public static Path randomFile(int size, long seed) throws IOException {
+
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        Path path = Files.createTempFile("kryptos3dit", ".bin");
+        Files.write(path, data);
+        return path;
+    }
+
+    /**
+     * Runs one mode on all the sizes and compares it with the in-memory encryption.
+     * @param name  The name printed for this mode.
+     * @param mode  The mode under test.
+     * @throws Exception
+     */
+    public static void check(String name, Mode mode) throws Exception {
+
+        AES256CTR ob = new AES256CTR("kryptos3dit");
+        int count = 0;
+
+        for (int i = 0; i < SIZES.length; ++i) {
+
+            Path expected = randomFile(SIZES[i], i);
+            Path actual = randomFile(SIZES[i], i);
+            byte[] original = Files.readAllBytes(actual);
+
+            AES256CTR.encrypt(ob, expected.toString());
+            mode.encrypt(ob, actual.toString());
+            boolean same = Arrays.equals(Files.readAllBytes(expected), Files.readAllBytes(actual));
+
+            // Encrypting again must give back the original
+            mode.encrypt(ob, actual.toString());
+            boolean roundTrip = Arrays.equals(original, Files.readAllBytes(actual));
+
+            if (same && roundTrip) {
+                ++count;
+            }
+            Files.delete(expected);
+            Files.delete(actual);
+        }
+
+        total += SIZES.length;
+        passed += count;
+        System.out.println(name + ": " + Integer.toString(count) + "/" + Integer.toString(SIZES.length));
+    }
+
+    /**
+     * Checks that direct I/O falls back to the streaming mode whatever error
+     * the file system refuses it with. The option asking for direct I/O is
+     * replaced by CREATE_NEW, which fails to open every existing file with an
+     * error that is not EINVAL, as Windows does. A missing file must still
+     * fail instead of being reported as a refusal.
+     * @throws Exception
+     */
+    public static void checkDirectRefused() throws Exception {
+
+        Method encrypt = Class.forName("kryptos3dit.crypto.DirectIO").getDeclaredMethod("encrypt",
+                AES256CTR.class, Path.class, int.class, OpenOption.class);
+        encrypt.setAccessible(true);
+        AES256CTR ob = new AES256CTR("kryptos3dit");
+        int count = 0;
+
+        for (int i = 0; i < SIZES.length; ++i) {
+            Path expected = randomFile(SIZES[i], i);
+            Path actual = randomFile(SIZES[i], i);
+            AES256CTR.encrypt(ob, expected.toString());
+
+            boolean direct = (Boolean) encrypt.invoke(null, ob, actual, 8192, StandardOpenOption.CREATE_NEW);
+            if (!direct && Arrays.equals(Files.readAllBytes(expected), Files.readAllBytes(actual))) {
+                ++count;
+            }
+            Files.delete(expected);
+            Files.delete(actual);
+        }
+
+        Path missing = Files.createTempFile("kryptos3dit", ".bin");
+        Files.delete(missing);
+        try {
+            encrypt.invoke(null, ob, missing, 8192, StandardOpenOption.CREATE_NEW);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof NoSuchFileException) {
+                ++count;
+            }
+        }
+
+        total += SIZES.length + 1;
+        passed += count;
+        System.out.println("DIRECT (REFUSED): " + Integer.toString(count) + "/" + Integer.toString(SIZES.length + 1));
+    }
+
+    /**
+     * Decrypts random byte ranges through AES256CTRChannel and compares them
+     * with the original file.
+     * @throws Exception
+     */
+    public static void checkSeekable() throws Exception {
+
+        AES256CTR ob = new AES256CTR("kryptos3dit");
+        Path path = randomFile(100003, 7);
+        byte[] original = Files.readAllBytes(path);
+        AES256CTR.encrypt(ob, path.toString());
+
+        Random random = new Random(7);
+        final int RANGES = 50;
+        int count = 0;
+
+        try (AES256CTRChannel channel = AES256CTRChannel.open(ob, path, StandardOpenOption.READ)) {
+            for (int i = 0; i < RANGES; ++i) {
+                int start = random.nextInt(original.length);
+                int length = random.nextInt(original.length - start) % 5000 + 1;
+
+                // Alternate between heap and direct buffers
+                ByteBuffer buffer = i % 2 == 0 ? ByteBuffer.allocate(length) : ByteBuffer.allocateDirect(length);
+                channel.position(start);
+                while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                }
+
+                byte[] actual = new byte[length];
+                buffer.flip();
+                buffer.get(actual);
+                if (Arrays.equals(actual, Arrays.copyOfRange(original, start, start + length))) {
+                    ++count;
+                }
+            }
+        }
+        Files.delete(path);
+
+        total += RANGES;
+        passed += count;
+        System.out.println("SEEKABLE: " + Integer.toString(count) + "/" + Integer.toString(RANGES));
+    }
+
+    /**
+     * Checks that the block counter does not wrap after 2^32 blocks (64 GB),
+     * by writing zeros at block 0 and block 2^32 of a sparse file.
+     * @throws Exception
+     */
+    public static void checkCounter() throws Exception {
+
+        AES256CTR ob = new AES256CTR("kryptos3dit");
+        Path path = Files.createTempFile("kryptos3dit", ".bin");
+        final long far = 16L << 32;
+        byte[] first = new byte[16];
+        byte[] second = new byte[16];
+
+        try (AES256CTRChannel channel = AES256CTRChannel.open(ob, path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+            channel.write(ByteBuffer.allocate(16));
+            channel.position(far).write(ByteBuffer.allocate(16));
+        }
+        try (FileChannel raw = FileChannel.open(path)) {
+            raw.read(ByteBuffer.wrap(first), 0);
+            raw.read(ByteBuffer.wrap(second), far);
+        }
+        Files.delete(path);
+
+        boolean ok = !Arrays.equals(first, second);
+        total += 1;
+        passed += ok ? 1 : 0;
+        System.out.println("64-BIT COUNTER: " + (ok ? "1/1" : "0/1"));
+    }
+
+    /**
+     * Encrypts the same bytes as one byte[], in uneven pieces, and through heap
+     * and direct ByteBuffers, and compares all of them with the file encryption.
+     * @throws Exception
+     */
+    public static void checkBuffers() throws Exception {
+
+        AES256CTR ob = new AES256CTR("kryptos3dit");
+        Path path = randomFile(100003, 11);
+        byte[] original = Files.readAllBytes(path);
+        AES256CTR.encrypt(ob, path.toString());
+        byte[] expected = Files.readAllBytes(path);
+        Files.delete(path);
+
+        int count = 0;
+
+        byte[] whole = original.clone();
+        AES256CTR.encrypt(ob, whole);
+        count += Arrays.equals(expected, whole) ? 1 : 0;
+
+        byte[] pieces = original.clone();
+        Random random = new Random(11);
+        for (int off = 0; off < pieces.length; ) {
+            int len = Math.min(pieces.length - off, random.nextInt(100) + 1);
+            AES256CTR.encrypt(ob, pieces, off, len, off);
+            off += len;
+        }
+        count += Arrays.equals(expected, pieces) ? 1 : 0;
+
+        ByteBuffer heap = ByteBuffer.wrap(original.clone());
+        AES256CTR.encrypt(ob, heap, 0);
+        count += Arrays.equals(expected, heap.array()) ? 1 : 0;
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(original.length);
+        direct.put(original).position(5);
+        AES256CTR.encrypt(ob, direct, 5);
+        direct.position(0).limit(5);
+        AES256CTR.encrypt(ob, direct, 0);
+        byte[] actual = new byte[original.length];
+        direct.clear();
+        direct.get(actual);
+        count += Arrays.equals(expected, actual) ? 1 : 0;
+
+        total += 4;
+        passed += count;
+        System.out.println("BUFFERS: " + Integer.toString(count) + "/4");
+    }
+
+    /**
+     * Checks the progress reports of the streaming mode, and that cancelling
+     * halfway leaves the file unchanged.
+     * @throws Exception
+     */
+    public static void checkProgress() throws Exception {
+
+        AES256CTR ob = new AES256CTR("kryptos3dit");
+        final int size = 5 * AES256CTR.DEFAULT_CHUNK_SIZE + 3;
+        Path path = randomFile(size, 13);
+        byte[] original = Files.readAllBytes(path);
+        int count = 0;
+
+        // Reports must grow and end at the file size
+        final long[] last = { -1 };
+        final boolean[] ordered = { true };
+        AES256CTR.encryptStreaming(ob, path.toString(), (processed, total) -> {
+            ordered[0] &= processed > last[0] && total == size;
+            last[0] = processed;
+            return true;
+        });
+        count += ordered[0] && last[0] == size ? 1 : 0;
+
+        // Cancelling after two chunks must restore the (encrypted) file
+        byte[] encrypted = Files.readAllBytes(path);
+        boolean cancelled = false;
+        try {
+            AES256CTR.encryptStreaming(ob, path.toString(),
+                    (processed, total) -> processed < 2 * AES256CTR.DEFAULT_CHUNK_SIZE);
+        } catch (CancellationException e) {
+            cancelled = true;
+        }
+        count += cancelled && Arrays.equals(encrypted, Files.readAllBytes(path)) ? 1 : 0;
+
+        AES256CTR.encryptStreaming(ob, path.toString(), (processed, total) -> true);
+        count += Arrays.equals(original, Files.readAllBytes(path)) ? 1 : 0;
+        Files.delete(path);
+
+        total += 3;
+        passed += count;
+        System.out.println("PROGRESS: " + Integer.toString(count) + "/3");
+    }
+
+    /**
+     * Checks that the journaled mode resumes after being stopped, repairs the
+     * last chunk when it was only partly written, refuses a journal written
+     * with another key, and deletes its journal at the end.
+     * @throws Exception
+     */
+    public static void checkJournal() throws Exception {
+
+        AES256CTR ob = new AES256CTR("kryptos3dit");
+        final int chunk = 4096;
+        final int size = 10 * chunk + 5;
+        Path path = randomFile(size, 17);
+        Path expected = randomFile(size, 17);
+        AES256CTR.encrypt(ob, expected.toString());
+        byte[] original = Files.readAllBytes(path);
+        byte[] encrypted = Files.readAllBytes(expected);
+        int count = 0;
+
+        // Stop after three chunks, the journal must stay behind
+        boolean cancelled = false;
+        try {
+            AES256CTR.encryptJournaled(ob, path.toString(), chunk, (processed, total) -> processed < 3 * chunk);
+        } catch (CancellationException e) {
+            cancelled = true;
+        }
+        byte[] partial = Files.readAllBytes(path);
+        if (cancelled && AES256CTR.hasJournal(path.toString())
+                && Arrays.equals(Arrays.copyOf(encrypted, 3 * chunk), Arrays.copyOf(partial, 3 * chunk))
+                && Arrays.equals(Arrays.copyOfRange(original, 3 * chunk, size),
+                        Arrays.copyOfRange(partial, 3 * chunk, size))) {
+            ++count;
+        }
+
+        // Another key must not touch the file
+        try {
+            AES256CTR.encryptJournaled(new AES256CTR("kryptos3dIt"), path.toString());
+        } catch (IOException e) {
+            if (Arrays.equals(partial, Files.readAllBytes(path))) {
+                ++count;
+            }
+        }
+
+        // A crash in the middle of writing the third chunk leaves half of it plain
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(original, 2 * chunk, chunk / 2), 2 * chunk);
+        }
+        AES256CTR.encryptJournaled(ob, path.toString(), 1000, null);
+        if (Arrays.equals(encrypted, Files.readAllBytes(path)) && !AES256CTR.hasJournal(path.toString())) {
+            ++count;
+        }
+
+        Files.delete(path);
+        Files.delete(expected);
+
+        total += 3;
+        passed += count;
+        System.out.println("JOURNAL: " + Integer.toString(count) + "/3");
+    }
+
+    /**
+     * Checks that every rekey path turns a file encrypted with one password
+     * into exactly the file encrypted with another.
+     * @throws Exception
+     */
+    public static void checkRekey() throws Exception {
+
+        AES256CTR from = new AES256CTR("kryptos3dit");
+        AES256CTR to = new AES256CTR("new password");
+        ForkJoinPool pool = new ForkJoinPool(3);
+        int count = 0;
+
+        for (int i = 0; i < SIZES.length; ++i) {
+
+            Path expected = randomFile(SIZES[i], i);
+            AES256CTR.encrypt(to, expected.toString());
+            byte[] target = Files.readAllBytes(expected);
+            boolean ok = true;
+
+            Path[] files = new Path[4];
+            for (int k = 0; k < files.length; ++k) {
+                files[k] = randomFile(SIZES[i], i);
+                AES256CTR.encrypt(from, files[k].toString());
+            }
+            AES256CTR.rekey(from, to, files[0].toString());
+            AES256CTR.rekeyParallel(from, to, files[1].toString(), pool);
+            AES256CTR.rekeyJournaled(from, to, files[2].toString(), 1000, null);
+            BatchEncryptor.rekeyLegacy(from, to, Arrays.asList(files[3]), pool);
+
+            for (Path file : files) {
+                ok &= Arrays.equals(target, Files.readAllBytes(file));
+                Files.delete(file);
+            }
+            if (ok) {
+                ++count;
+            }
+            Files.delete(expected);
+        }
+        pool.shutdown();
+
+        total += SIZES.length;
+        passed += count;
+        System.out.println("REKEY: " + Integer.toString(count) + "/" + Integer.toString(SIZES.length));
+    }
+
+    /**
+     * Checks that a batch over a directory tree encrypts the files matching
+     * the glob the same way as the in-memory encryption, whatever their size,
+     * and leaves the other files alone.
+     * @throws Exception
+     */
+    public static void checkBatch() throws Exception {
+
+        AES256CTR ob = new AES256CTR("kryptos3dit");
+        Path root = Files.createTempDirectory("kryptos3dit");
+        Path nested = Files.createDirectories(root.resolve("a").resolve("b"));
+        int[] sizes = { 0, 17, 4095, 100003, (1 << 20) + 5, (int) BatchEncryptor.LARGE_FILE_SIZE + 33 };
+        long bytes = 0;
+
+        for (int i = 0; i < sizes.length; ++i) {
+            Path file = randomFile(sizes[i], i);
+            Files.move(file, (i % 2 == 0 ? root : nested).resolve(i + ".bin"));
+            bytes += sizes[i];
+        }
+        Path other = Files.move(randomFile(1000, 99), nested.resolve("skip.txt"));
+        byte[] otherBefore = Files.readAllBytes(other);
+
+        BatchResult result = BatchEncryptor.encryptLegacy(ob, root, "**.bin", 3);
+        int count = 0;
+
+        if (result.getFiles() == sizes.length && result.getBytes() == bytes && result.getFailures().isEmpty()) {
+            ++count;
+        }
+        if (Arrays.equals(otherBefore, Files.readAllBytes(other))) {
+            ++count;
+        }
+
+        List<Path> files = BatchEncryptor.list(root, "**.bin");
+        boolean same = files.size() == sizes.length;
+        for (int i = 0; i < sizes.length; ++i) {
+            Path expected = randomFile(sizes[i], i);
+            AES256CTR.encrypt(ob, expected.toString());
+            Path actual = (i % 2 == 0 ? root : nested).resolve(i + ".bin");
+            same &= Arrays.equals(Files.readAllBytes(expected), Files.readAllBytes(actual));
+        }
+        if (same) {
+            ++count;
+        }
+
+        total += 3;
+        passed += count;
+        System.out.println("BATCH (DIRECTORY): " + Integer.toString(count) + "/3");
+    }
+
+    /**
+     * Encrypts a fixed buffer, to compare instances.
+     */
+    private static byte[] sample(AES256CTR ob) {
+        byte[] data = new byte[100];
+        new Random(100).nextBytes(data);
+        AES256CTR.encrypt(ob, data);
+        return data;
+    }
+
+    /**
+     * Reads a private field, for looking into the entries of the key cache.
+     */
+    private static Object field(Object owner, String name) throws ReflectiveOperationException {
+        Field field = owner.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(owner);
+    }
+
+    /**
+     * Gives the only entry of a key cache and makes sure its schedule holds
+     * the bitsliced masks, so that their wiping is checked too.
+     */
+    private static Object onlyEntry(KeyCache cache) throws ReflectiveOperationException {
+        Object entry = ((Map<?, ?>) field(cache, "entries")).values().iterator().next();
+        Method sliced = ExpandedKey.class.getDeclaredMethod("getBitslicedRoundKeys");
+        sliced.setAccessible(true);
+        sliced.invoke(field(entry, "schedule"));
+        return entry;
+    }
+
+    /**
+     * @return  true if the key and every array of the schedule of a key cache entry are zero.
+     */
+    private static boolean isWiped(Object entry) throws ReflectiveOperationException {
+        ExpandedKey schedule = (ExpandedKey) field(entry, "schedule");
+        boolean zero = Arrays.equals(new byte[32], (byte[]) field(entry, "id"))
+                && Arrays.equals(new byte[32], schedule.getKeyBytes())
+                && Arrays.equals(new int[60], (int[]) field(schedule, "roundKeyWords"))
+                && Arrays.stream((long[]) field(schedule, "bitslicedRoundKeys")).allMatch(w -> w == 0);
+        for (char[] roundKey : (char[][]) field(schedule, "roundKeys")) {
+            zero &= Arrays.equals(new char[16], roundKey);
+        }
+        return zero;
+    }
+
+    /**
+     * Checks that the key cache gives the same keys as the constructor, and
+     * its eviction, expiry, wiping and counters, also from several threads.
+     */
+    public static void checkKeyCache() throws Exception {
+
+        final int CHECKS = 11;
+        int count = 0;
+
+        // Hits and misses give the same keys as the constructor
+        KeyCache cache = new KeyCache(10, Duration.ofHours(1));
+        boolean same = true;
+        for (int round = 0; round < 2; ++round) {
+            for (String password : new String[] { "a", "b", "kryptos3dit" }) {
+                same &= Arrays.equals(sample(new AES256CTR(password)), sample(cache.get(password)));
+            }
+        }
+        count += same ? 1 : 0;
+        count += cache.getHits() == 3 && cache.getMisses() == 3 && cache.size() == 3 ? 1 : 0;
+
+        // The least recently used key goes first
+        cache = new KeyCache(2, Duration.ofHours(1));
+        cache.get("a");
+        cache.get("b");
+        cache.get("a");
+        cache.get("c");
+        cache.get("a");
+        cache.get("b");
+        count += cache.getHits() == 2 && cache.getMisses() == 4 && cache.getEvictions() == 2 ? 1 : 0;
+        count += cache.size() == 2 ? 1 : 0;
+
+        // Keys expire however often they are used
+        cache = new KeyCache(10, Duration.ofMillis(50));
+        cache.get("a");
+        Thread.sleep(100);
+        AES256CTR expired = cache.get("a");
+        count += cache.getMisses() == 2 && cache.getEvictions() == 1 ? 1 : 0;
+        count += Arrays.equals(sample(new AES256CTR("a")), sample(expired)) ? 1 : 0;
+
+        // Clearing the cache wipes its keys and leaves the instances handed out alone
+        Object cleared = onlyEntry(cache);
+        cache.clear();
+        count += cache.size() == 0 && Arrays.equals(sample(new AES256CTR("a")), sample(expired)) ? 1 : 0;
+        count += isWiped(cleared) ? 1 : 0;
+
+        // An evicted key is wiped, the instance handed out for it keeps its own copy
+        cache = new KeyCache(1, Duration.ofHours(1));
+        AES256CTR evicted = cache.get("a");
+        Object entry = onlyEntry(cache);
+        boolean live = !isWiped(entry);
+        cache.get("b");
+        count += live && isWiped(entry) && Arrays.equals(sample(new AES256CTR("a")), sample(evicted)) ? 1 : 0;
+
+        // Many threads on more passwords than fit
+        final KeyCache shared = new KeyCache(10, Duration.ofHours(1));
+        final List<byte[]> expected = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            expected.add(sample(new AES256CTR("tenant" + i)));
+        }
+        final AtomicInteger wrong = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            final int seed = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    for (int i = 0; i < 1000; ++i) {
+                        // Mostly the first few tenants, so that there are hits and evictions
+                        int tenant = random.nextInt(4) == 0 ? random.nextInt(20) : random.nextInt(5);
+                        if (!Arrays.equals(expected.get(tenant), sample(shared.get("tenant" + tenant)))) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    wrong.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        count += wrong.get() == 0 ? 1 : 0;
+        count += shared.getHits() + shared.getMisses() == 8000 && shared.getHits() > 0
+                && shared.getEvictions() > 0 && shared.size() <= 10 ? 1 : 0;
+
+        total += CHECKS;
+        passed += count;
+        System.out.println("KEY CACHE: " + Integer.toString(count) + "/" + Integer.toString(CHECKS));
+    }
+
+    /**
+     * Checks that a session encrypts exactly as the static methods, from
+     * several threads, and that its hot path does not allocate.
+     */
+    public static void checkSession() throws Exception {
+
+        final int CHECKS = 6;
+        int count = 0;
+
+        final AES256CTR ob = new AES256CTR("kryptos3dit");
+        final AES256CTRSession session = new AES256CTRSession(ob);
+        final byte[] original = new byte[100003];
+        new Random(24).nextBytes(original);
+        final byte[] expected = original.clone();
+        AES256CTR.encrypt(ob, expected);
+
+        // Random ranges, alternating between arrays and direct buffers
+        Random random = new Random(24);
+        boolean same = true;
+        for (int i = 0; i < 200; ++i) {
+            int start = random.nextInt(original.length);
+            int length = random.nextInt(Math.min(5000, original.length - start) + 1);
+            byte[] actual = Arrays.copyOfRange(original, start, start + length);
+            if (i % 2 == 0) {
+                session.encrypt(actual, 0, length, start);
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(length).put(actual);
+                buffer.flip();
+                session.encrypt(buffer, start);
+                buffer.get(actual);
+            }
+            same &= Arrays.equals(actual, Arrays.copyOfRange(expected, start, start + length));
+        }
+        count += same ? 1 : 0;
+
+        // Streams, also with a position
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long n = session.encrypt(new ByteArrayInputStream(original), out);
+        count += n == original.length && Arrays.equals(out.toByteArray(), expected) ? 1 : 0;
+        out.reset();
+        session.encrypt(new ByteArrayInputStream(original, 17, 5000), out, 17);
+        count += Arrays.equals(out.toByteArray(), Arrays.copyOfRange(expected, 17, 5017)) ? 1 : 0;
+
+        // Many threads sharing the session
+        final AtomicInteger wrong = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            final int seed = t;
+            Thread thread = new Thread(() -> {
+                Random r = new Random(seed);
+                for (int i = 0; i < 500; ++i) {
+                    int start = r.nextInt(original.length);
+                    int length = r.nextInt(Math.min(3000, original.length - start) + 1);
+                    byte[] actual = Arrays.copyOfRange(original, start, start + length);
+                    session.encrypt(actual, 0, length, start);
+                    if (!Arrays.equals(actual, Arrays.copyOfRange(expected, start, start + length))) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        count += wrong.get() == 0 ? 1 : 0;
+
+        // Encrypting twice gives back the original
+        byte[] twice = original.clone();
+        session.encrypt(twice);
+        session.encrypt(twice);
+        count += Arrays.equals(twice, original) ? 1 : 0;
+
+        // After warming up, small objects allocate nothing
+        byte[] object = new byte[1000];
+        for (int i = 0; i < 20000; ++i) {
+            session.encrypt(object, 0, object.length, 0);
+        }
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long id = Thread.currentThread().getId();
+            long before = bean.getThreadAllocatedBytes(id);
+            for (int i = 0; i < 100000; ++i) {
+                session.encrypt(object, 0, object.length, 16 * (i % 64));
+            }
+            long allocated = bean.getThreadAllocatedBytes(id) - before;
+            // A few bytes of slack for the bean itself
+            count += allocated < 10000 ? 1 : 0;
+        } else {
+            ++count;
+        }
+
+        total += CHECKS;
+        passed += count;
+        System.out.println("SESSION: " + Integer.toString(count) + "/" + Integer.toString(CHECKS));
+    }
+
+    /**
+     * Checks the asynchronous API beyond in-place encryption: copies, many
+     * files at once, sessions and failures.
+     */
+    public static void checkAsync(ExecutorService ioPool, ExecutorService pool) throws Exception {
+
+        final int CHECKS = 6;
+        int count = 0;
+        AES256CTR ob = new AES256CTR("kryptos3dit");
+        AsyncEncryptor async = new AsyncEncryptor(ioPool, pool, 3, 4096);
+
+        // Into another file and back
+        Path src = randomFile(100003, 25);
+        Path dst = Files.createTempFile("kryptos3dit", ".bin");
+        Path back = Files.createTempFile("kryptos3dit", ".bin");
+        byte[] original = Files.readAllBytes(src);
+        byte[] expected = original.clone();
+        AES256CTR.encrypt(ob, expected);
+        long n = async.encrypt(ob, src, dst).get();
+        async.decrypt(ob, dst, back).get();
+        count += n == original.length && Arrays.equals(Files.readAllBytes(dst), expected)
+                && Arrays.equals(Files.readAllBytes(back), original) ? 1 : 0;
+
+        // Many files in flight on a small pool
+        List<Path> files = new ArrayList<>();
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            files.add(randomFile(20000 + 997 * i, i));
+        }
+        for (Path file : files) {
+            futures.add(async.encrypt(ob, file));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        boolean same = true;
+        for (int i = 0; i < files.size(); ++i) {
+            byte[] data = new byte[20000 + 997 * i];
+            new Random(i).nextBytes(data);
+            AES256CTR.encrypt(ob, data);
+            same &= Arrays.equals(Files.readAllBytes(files.get(i)), data);
+            Files.delete(files.get(i));
+        }
+        count += same ? 1 : 0;
+
+        // The same files through one session, and back
+        AES256CTRSession session = new AES256CTRSession(ob);
+        for (int i = 0; i < 10; ++i) {
+            files.set(i, randomFile(20000 + 997 * i, i));
+        }
+        futures.clear();
+        for (int i = 0; i < 10; ++i) {
+            final Path file = files.get(i);
+            futures.add(async.encrypt(session, file).thenCompose(encrypted -> async.encrypt(ob, file)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        same = true;
+        for (int i = 0; i < 10; ++i) {
+            byte[] data = new byte[20000 + 997 * i];
+            new Random(i).nextBytes(data);
+            same &= Arrays.equals(Files.readAllBytes(files.get(i)), data);
+            Files.delete(files.get(i));
+        }
+        count += same ? 1 : 0;
+
+        // A part of a channel, at a position in the stream
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(back, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            async.encrypt(ob, channel, 5000, channel, 5000, 30000, 5000).get();
+        }
+        byte[] part = Files.readAllBytes(back);
+        count += Arrays.equals(Arrays.copyOfRange(part, 5000, 35000), Arrays.copyOfRange(expected, 5000, 35000))
+                && Arrays.equals(Arrays.copyOf(part, 5000), Arrays.copyOf(original, 5000)) ? 1 : 0;
+
+        // Failures come through the future
+        try {
+            async.encrypt(ob, src.resolveSibling("missing-kryptos3dit.bin")).get();
+        } catch (ExecutionException e) {
+            count += e.getCause() instanceof NoSuchFileException ? 1 : 0;
+        }
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(src, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            async.encrypt(ob, channel, 0, channel, 0, original.length + 1, 0).get();
+        } catch (ExecutionException e) {
+            count += e.getCause() instanceof EOFException ? 1 : 0;
+        }
+
+        Files.delete(src);
+        Files.delete(dst);
+        Files.delete(back);
+
+        total += CHECKS;
+        passed += count;
+        System.out.println("ASYNC (COPIES AND FAILURES): " + Integer.toString(count) + "/" + Integer.toString(CHECKS));
+    }
+
+    /**
+     * Runs the tests and prints the output to the console.
+     * @param args None required
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        System.out.println("RUNNING TESTS...");
+
+        check("STREAMING", (ob, path) -> AES256CTR.encryptStreaming(ob, path));
+        check("STREAMING (4 KB CHUNKS)", (ob, path) -> AES256CTR.encryptStreaming(ob, path, 4096));
+        check("STREAMING (ODD CHUNKS)", (ob, path) -> AES256CTR.encryptStreaming(ob, path, 1000));
+        check("PARALLEL", (ob, path) -> AES256CTR.encryptParallel(ob, path));
+        check("PARALLEL (3 THREADS)", (ob, path) -> AES256CTR.encryptParallel(ob, path, 3));
+        check("MAPPED", (ob, path) -> AES256CTR.encryptMapped(ob, path));
+        check("MAPPED (4 KB WINDOWS)", (ob, path) -> AES256CTR.encryptMapped(ob, path, 4096));
+        check("PIPELINED", (ob, path) -> AES256CTR.encryptPipelined(ob, path));
+        check("PIPELINED (3 THREADS, ODD CHUNKS)", (ob, path) -> AES256CTR.encryptPipelined(ob, path, 3, 1000));
+        check("DIRECT", (ob, path) -> AES256CTR.encryptDirect(ob, path));
+        check("DIRECT (8 KB CHUNKS)", (ob, path) -> AES256CTR.encryptDirect(ob, path, 8192));
+        check("JOURNALED", (ob, path) -> AES256CTR.encryptJournaled(ob, path));
+        check("JOURNALED (ODD CHUNKS)", (ob, path) -> AES256CTR.encryptJournaled(ob, path, 1000, null));
+        check("BATCH", (ob, path) -> BatchEncryptor.encryptLegacy(ob,
+                BatchEncryptor.list(Paths.get(path), null), ForkJoinPool.commonPool()));
+
+        ExecutorService ioPool = Executors.newFixedThreadPool(2);
+        ExecutorService cipherPool = Executors.newFixedThreadPool(2);
+        check("ASYNC", (ob, path) -> new AsyncEncryptor(ioPool, cipherPool).encrypt(ob, Paths.get(path)).get());
+        check("ASYNC (ODD CHUNKS)", (ob, path) ->
+                new AsyncEncryptor(ioPool, cipherPool, 3, 1000).encrypt(ob, Paths.get(path)).get());
+
+        // Every engine must give the same ciphertext
+        for (AES256Engine engine : AES256Engine.values()) {
+            check("ENGINE " + engine.getName(), (ob, path) -> {
+                AES256CTR withEngine = new AES256CTR("kryptos3dit");
+                withEngine.setEngine(engine);
+                AES256CTR.encryptStreaming(withEngine, path);
+            });
+        }
+
+        checkDirectRefused();
+        checkBuffers();
+        checkProgress();
+        checkJournal();
+        checkRekey();
+        checkBatch();
+        checkSeekable();
+        checkCounter();
+        checkKeyCache();
+        checkSession();
+        checkAsync(ioPool, cipherPool);
+        ioPool.shutdown();
+        cipherPool.shutdown();
+
+        System.out.println("TOTAL: " + Integer.toString(total));
+        System.out.println("PASSED: " + Integer.toString(passed));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,222 @@
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import kryptos3dit.crypto.AES256Engine;
+import kryptos3dit.crypto.AES256GCM;
+
+/**
+ * This class checks AES256GCM against the "AES/GCM/NoPadding" cipher of the
+ * JDK, in memory and through files, one chunk at a time and in parallel,
+ * and checks that any modified byte is detected.
+ * @author Jaideep
+ */
+public final class TestAES256GCM {
+
+    /**
+     * The data sizes to test with, chosen around the block and chunk boundaries.
+     */
+    private static final int[] SIZES = { 0, 1, 15, 16, 17, 4095, 100003, (1 << 20) + 5, 3 * (1 << 20) + 77 };
+
+    private static int total = 0;
+    private static int passed = 0;
+
+    /**
+     * Makes pseudo-random bytes.
+     * @param size  The number of bytes.
+     * @param seed  The seed of the generator.
+     * @return      The bytes.
+     */
+    public static byte[] randomBytes(int size, long seed) {
+
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Prints the result of one group of checks and adds it to the totals.
+     * @param name  The name of the group.
+     * @param count The number of checks which passed.
+     * @param of    The number of checks.
+     */
+    public static void report(String name, int count, int of) {
+
+        total += of;
+        passed += count;
+        System.out.println(name + ": " + Integer.toString(count) + "/" + Integer.toString(of));
+    }
+
+    /**
+     * Encrypts with the JDK, the output is the ciphertext followed by the tag.
+     */
+    private static byte[] reference(byte[] key, byte[] iv, byte[] aad, byte[] data) throws Exception {
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher.doFinal(data);
+    }
+
+    /**
+     * Compares the in-memory encryption with the JDK for every size, with and
+     * without additional data, on every engine, and decrypts it back.
+     * @throws Exception
+     */
+    public static void checkMemory() throws Exception {
+
+        int count = 0;
+        int of = 0;
+
+        for (AES256Engine engine : AES256Engine.values()) {
+            for (int i = 0; i < SIZES.length; ++i) {
+                byte[] key = randomBytes(32, i);
+                byte[] iv = randomBytes(12, i + 100);
+                byte[] aad = i % 2 == 0 ? null : randomBytes(i * 7, i + 200);
+                byte[] plain = randomBytes(SIZES[i], i + 300);
+                byte[] expected = reference(key, iv, aad, plain);
+
+                AES256GCM gcm = new AES256GCM(key);
+                gcm.setEngine(engine);
+                byte[] data = plain.clone();
+                byte[] tag = gcm.encrypt(iv, aad, data, 0, data.length);
+
+                boolean ok = Arrays.equals(Arrays.copyOf(expected, plain.length), data)
+                        && Arrays.equals(Arrays.copyOfRange(expected, plain.length, expected.length), tag);
+                gcm.decrypt(iv, aad, data, 0, data.length, tag);
+                ok &= Arrays.equals(plain, data);
+
+                ++of;
+                if (ok) {
+                    ++count;
+                }
+            }
+        }
+        report("MEMORY (ALL ENGINES)", count, of);
+    }
+
+    /**
+     * Compares the file encryption, one chunk at a time and in parallel, with
+     * the JDK and decrypts it back both ways.
+     * @throws Exception
+     */
+    public static void checkFiles() throws Exception {
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        int count = 0;
+
+        for (int i = 0; i < SIZES.length; ++i) {
+            byte[] key = randomBytes(32, i);
+            byte[] iv = randomBytes(12, i + 100);
+            byte[] aad = randomBytes(64, i + 200);
+            byte[] plain = randomBytes(SIZES[i], i + 300);
+            byte[] expected = reference(key, iv, aad, plain);
+            byte[] expectedData = Arrays.copyOf(expected, plain.length);
+            byte[] expectedTag = Arrays.copyOfRange(expected, plain.length, expected.length);
+
+            AES256GCM gcm = new AES256GCM(key);
+            Path source = Files.createTempFile("kryptos3dit", ".bin");
+            Files.write(source, plain);
+            Path sequential = Files.createTempFile("kryptos3dit", ".gcm");
+            Path parallel = Files.createTempFile("kryptos3dit", ".gcm");
+            Path back = Files.createTempFile("kryptos3dit", ".bin");
+            boolean ok = true;
+
+            try (FileChannel src = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel a = FileChannel.open(sequential, StandardOpenOption.WRITE);
+                 FileChannel b = FileChannel.open(parallel, StandardOpenOption.WRITE)) {
+                ok &= Arrays.equals(expectedTag, gcm.encrypt(iv, aad, src, 0, a, 0, plain.length, null));
+                ok &= Arrays.equals(expectedTag, gcm.encryptParallel(iv, aad, src, 0, b, 0, plain.length, pool));
+            }
+            ok &= Arrays.equals(expectedData, Files.readAllBytes(sequential));
+            ok &= Arrays.equals(expectedData, Files.readAllBytes(parallel));
+
+            try (FileChannel src = FileChannel.open(sequential, StandardOpenOption.READ);
+                 FileChannel dst = FileChannel.open(back, StandardOpenOption.WRITE)) {
+                gcm.decryptParallel(iv, aad, src, 0, dst, 0, plain.length, expectedTag, pool);
+                ok &= Arrays.equals(plain, Files.readAllBytes(back));
+                gcm.decrypt(iv, aad, src, 0, dst, 0, plain.length, expectedTag, null);
+                ok &= Arrays.equals(plain, Files.readAllBytes(back));
+            }
+
+            if (ok) {
+                ++count;
+            }
+        }
+        pool.shutdown();
+        report("FILES", count, SIZES.length);
+    }
+
+    /**
+     * Flips single bits in the ciphertext, the additional data and the tag,
+     * and checks that decryption fails every time and leaves the data alone.
+     * @throws Exception
+     */
+    public static void checkTamper() throws Exception {
+
+        byte[] key = randomBytes(32, 1);
+        byte[] iv = randomBytes(12, 2);
+        byte[] aad = randomBytes(20, 3);
+        byte[] plain = randomBytes(5000, 4);
+        AES256GCM gcm = new AES256GCM(key);
+        byte[] data = plain.clone();
+        byte[] tag = gcm.encrypt(iv, aad, data, 0, data.length);
+        Random random = new Random(5);
+        int count = 0;
+
+        for (int i = 0; i < 30; ++i) {
+            byte[] d = data.clone();
+            byte[] a = aad.clone();
+            byte[] t = tag.clone();
+            byte[] target = i % 3 == 0 ? d : i % 3 == 1 ? a : t;
+            target[random.nextInt(target.length)] ^= 1 << random.nextInt(8);
+            try {
+                gcm.decrypt(iv, a, d, 0, d.length, t);
+            } catch (AEADBadTagException e) {
+                if (i % 3 != 0 || !Arrays.equals(plain, d)) {
+                    ++count;
+                }
+            }
+        }
+
+        // A wrong key or IV must fail as well
+        try {
+            new AES256GCM(randomBytes(32, 6)).decrypt(iv, aad, data.clone(), 0, data.length, tag);
+        } catch (AEADBadTagException e) {
+            ++count;
+        }
+        try {
+            gcm.decrypt(randomBytes(12, 7), aad, data.clone(), 0, data.length, tag);
+        } catch (AEADBadTagException e) {
+            ++count;
+        }
+
+        report("TAMPER DETECTION", count, 32);
+    }
+
+    /**
+     * Runs the tests and prints the output to the console.
+     * @param args None required
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        System.out.println("RUNNING TESTS...");
+
+        checkMemory();
+        checkFiles();
+        checkTamper();
+
+        System.out.println("TOTAL: " + Integer.toString(total));
+        System.out.println("PASSED: " + Integer.toString(passed));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,625 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import javax.crypto.AEADBadTagException;
+import kryptos3dit.crypto.AES256CTR;
+import kryptos3dit.crypto.AES256CTRChannel;
+import kryptos3dit.crypto.BatchEncryptor;
+import kryptos3dit.crypto.BatchResult;
+import kryptos3dit.crypto.Container;
+
+/**
+ * This class checks the container format: round trips through files, streams
+ * and random access, rejection of a wrong password before any data is
+ * written, detection of modified containers, password changes, and
+ * decryption of version 1 containers and of the headerless files of AES256CTR.
+ * @author Jaideep
+ */
+public final class TestContainer {
+
+    /**
+     * The file sizes to test with, chosen around the block and chunk boundaries.
+     */
+    private static final int[] SIZES = { 0, 1, 15, 16, 17, 4095, 100003, (1 << 20) + 5 };
+
+    private static final String PASSWORD = "kryptos3dit";
+
+    private static int total = 0;
+    private static int passed = 0;
+
+    /**
+     * Makes pseudo-random bytes.
+     * @param size  The number of bytes.
+     * @param seed  The seed of the generator.
+     * @return      The bytes.
+     */
+    public static byte[] randomBytes(int size, long seed) {
+
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Writes bytes to a new temporary file.
+     * @param data  The content of the file.
+     * @return      The path to the file.
+     * @throws IOException
+     */
+    public static Path tempFile(byte[] data) throws IOException {
+
+        Path path = Files.createTempFile("kryptos3dit", ".bin");
+        Files.write(path, data);
+        return path;
+    }
+
+    /**
+     * Prints the result of one group of checks and adds it to the totals.
+     * @param name  The name of the group.
+     * @param count The number of checks which passed.
+     * @param of    The number of checks.
+     */
+    public static void report(String name, int count, int of) {
+
+        total += of;
+        passed += count;
+        System.out.println(name + ": " + Integer.toString(count) + "/" + Integer.toString(of));
+    }
+
+    /**
+     * Encrypts into a new file and decrypts into another, one chunk at a
+     * time and in parallel, in every combination.
+     * @throws Exception
+     */
+    public static void checkRoundTrip() throws Exception {
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        int count = 0;
+
+        for (int i = 0; i < SIZES.length; ++i) {
+            byte[] plain = randomBytes(SIZES[i], i);
+            Path source = tempFile(plain);
+            Path sequential = Files.createTempFile("kryptos3dit", ".k3d");
+            Path parallel = Files.createTempFile("kryptos3dit", ".k3d");
+            Path back = Files.createTempFile("kryptos3dit", ".bin");
+
+            Container.encrypt(PASSWORD, source, sequential, null);
+            Container.encryptParallel(PASSWORD, source, parallel, pool);
+            final long expected = Container.HEADER_SIZE + SIZES[i] + Container.TAG_SIZE;
+            boolean ok = Files.size(sequential) == expected && Files.size(parallel) == expected
+                    && Container.readHeader(sequential).isAuthenticated();
+
+            Container.decryptParallel(PASSWORD, sequential, back, pool);
+            ok &= Arrays.equals(plain, Files.readAllBytes(back));
+            Container.decrypt(PASSWORD, parallel, back, null);
+            ok &= Arrays.equals(plain, Files.readAllBytes(back));
+
+            if (ok) {
+                ++count;
+            }
+        }
+        pool.shutdown();
+        report("ROUND TRIP", count, SIZES.length);
+    }
+
+    /**
+     * Checks that every container gets its own nonce, so the same file
+     * encrypted twice with the same password gives different bytes.
+     * @throws Exception
+     */
+    public static void checkNonce() throws Exception {
+
+        Path source = tempFile(randomBytes(4096, 1));
+        Path first = Files.createTempFile("kryptos3dit", ".k3d");
+        Path second = Files.createTempFile("kryptos3dit", ".k3d");
+        Container.encrypt(PASSWORD, source, first, null);
+        Container.encrypt(PASSWORD, source, second, null);
+
+        boolean different = !Arrays.equals(Container.readHeader(first).getNonce(),
+                Container.readHeader(second).getNonce());
+        byte[] a = Files.readAllBytes(first);
+        byte[] b = Files.readAllBytes(second);
+        different &= !Arrays.equals(Arrays.copyOfRange(a, Container.HEADER_SIZE, a.length),
+                Arrays.copyOfRange(b, Container.HEADER_SIZE, b.length));
+
+        report("RANDOM NONCE", different ? 1 : 0, 1);
+    }
+
+    /**
+     * Checks that a wrong password is rejected without writing anything, for
+     * files, in place and for streams, and that a header from a newer
+     * version is refused.
+     * @throws Exception
+     */
+    public static void checkWrongPassword() throws Exception {
+
+        byte[] plain = randomBytes(100003, 2);
+        Path container = Files.createTempFile("kryptos3dit", ".k3d");
+        Container.encrypt(PASSWORD, tempFile(plain), container, null);
+        byte[] encrypted = Files.readAllBytes(container);
+        int count = 0;
+
+        Path target = container.resolveSibling(container.getFileName() + ".out");
+        try {
+            Container.decrypt("kryptos3dIt", container, target, null);
+        } catch (InvalidKeyException e) {
+            if (!Files.exists(target)) {
+                ++count;
+            }
+        }
+
+        try {
+            Container.decrypt("kryptos3dIt", container, null);
+        } catch (InvalidKeyException e) {
+            if (Arrays.equals(encrypted, Files.readAllBytes(container))) {
+                ++count;
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            Container.decrypt("kryptos3dIt", new ByteArrayInputStream(encrypted), out);
+        } catch (InvalidKeyException e) {
+            if (out.size() == 0) {
+                ++count;
+            }
+        }
+
+        try {
+            Container.open("kryptos3dIt", container, StandardOpenOption.READ).close();
+        } catch (InvalidKeyException e) {
+            ++count;
+        }
+
+        // A newer version must not be mistaken for a headerless file
+        byte[] newer = encrypted.clone();
+        newer[4] = (byte) (Container.VERSION + 1);
+        try {
+            Container.readHeader(tempFile(newer));
+        } catch (IOException e) {
+            ++count;
+        }
+
+        report("WRONG PASSWORD", count, 5);
+    }
+
+    /**
+     * Checks that a change to the data, the header or the tag is detected,
+     * that no plain bytes are left behind for a file, and that a file
+     * decrypted in place is left as it was.
+     * @throws Exception
+     */
+    public static void checkTamper() throws Exception {
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        byte[] plain = randomBytes(100003, 7);
+        Path container = Files.createTempFile("kryptos3dit", ".k3d");
+        Container.encrypt(PASSWORD, tempFile(plain), container, null);
+        byte[] encrypted = Files.readAllBytes(container);
+
+        // A byte of the data, a reserved byte of the header, a byte of the tag
+        final int[] offsets = { Container.HEADER_SIZE + 54321, 60, encrypted.length - 1 };
+        int count = 0;
+
+        for (int offset : offsets) {
+            byte[] modified = encrypted.clone();
+            modified[offset] ^= 1;
+            Path file = tempFile(modified);
+
+            Path target = file.resolveSibling(file.getFileName() + ".out");
+            try {
+                Container.decrypt(PASSWORD, file, target, null);
+            } catch (AEADBadTagException e) {
+                if (!Files.exists(target)) {
+                    ++count;
+                }
+            }
+
+            try {
+                Container.decryptParallel(PASSWORD, file, target, pool);
+            } catch (AEADBadTagException e) {
+                if (!Files.exists(target)) {
+                    ++count;
+                }
+            }
+
+            try {
+                Container.decrypt(PASSWORD, file, null);
+            } catch (AEADBadTagException e) {
+                if (Arrays.equals(modified, Files.readAllBytes(file))) {
+                    ++count;
+                }
+            }
+
+            try {
+                Container.decrypt(PASSWORD, new ByteArrayInputStream(modified), new ByteArrayOutputStream());
+            } catch (AEADBadTagException e) {
+                ++count;
+            }
+        }
+
+        // A container cut short loses its tag
+        try {
+            Container.decrypt(PASSWORD, tempFile(Arrays.copyOf(encrypted, encrypted.length - 5)),
+                    Files.createTempFile("kryptos3dit", ".bin"), null);
+        } catch (AEADBadTagException e) {
+            ++count;
+        }
+
+        pool.shutdown();
+        report("TAMPER DETECTION", count, 4 * offsets.length + 1);
+    }
+
+    /**
+     * Checks that a version 1 container, written before containers were
+     * authenticated, is still decrypted and can still be written in place.
+     * @throws Exception
+     */
+    public static void checkVersion1() throws Exception {
+
+        // Encrypted by version 1 with PASSWORD, the plain bytes are randomBytes(5000, 9)
+        byte[] plain = randomBytes(5000, 9);
+        byte[] encrypted = Files.readAllBytes(Path.of("CONTAINER_V1.bin"));
+        Path container = tempFile(encrypted);
+        int count = 0;
+
+        Container.Header header = Container.readHeader(container);
+        if (header.getVersion() == 1 && !header.isAuthenticated()) {
+            ++count;
+        }
+
+        Path back = Files.createTempFile("kryptos3dit", ".bin");
+        Container.decrypt(PASSWORD, container, back, null);
+        if (Arrays.equals(plain, Files.readAllBytes(back))) {
+            ++count;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Container.decrypt(PASSWORD, new ByteArrayInputStream(encrypted), out);
+        if (Arrays.equals(plain, out.toByteArray())) {
+            ++count;
+        }
+
+        // Version 1 has no tag, so writing through a channel is still allowed
+        byte[] patch = randomBytes(300, 10);
+        try (AES256CTRChannel channel = Container.open(PASSWORD, container,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.position(1234);
+            channel.write(ByteBuffer.wrap(patch));
+        }
+        System.arraycopy(patch, 0, plain, 1234, patch.length);
+        Container.decrypt(PASSWORD, container, null);
+        if (Arrays.equals(plain, Files.readAllBytes(container))) {
+            ++count;
+        }
+
+        report("VERSION 1", count, 4);
+    }
+
+    /**
+     * Changes the password of version 2 and version 1 containers and of a
+     * headerless file, one chunk at a time and in parallel, and checks that
+     * a wrong old password or a modified container leaves the file as it was.
+     * @throws Exception
+     */
+    public static void checkRekey() throws Exception {
+
+        final String next = "new password";
+        ForkJoinPool pool = new ForkJoinPool(3);
+        int count = 0;
+
+        for (int i = 0; i < SIZES.length; ++i) {
+            byte[] plain = randomBytes(SIZES[i], i);
+            Path sequential = Files.createTempFile("kryptos3dit", ".k3d");
+            Path parallel = Files.createTempFile("kryptos3dit", ".k3d");
+            Container.encrypt(PASSWORD, tempFile(plain), sequential, null);
+            Container.encrypt(PASSWORD, tempFile(plain), parallel, null);
+            byte[] before = Files.readAllBytes(sequential);
+
+            Container.rekey(PASSWORD, next, sequential, null);
+            Container.rekeyParallel(PASSWORD, next, parallel, pool);
+            boolean ok = Files.size(sequential) == before.length
+                    && !Arrays.equals(Container.readHeader(sequential).getNonce(),
+                            Container.readHeader(tempFile(before)).getNonce());
+
+            Path back = Files.createTempFile("kryptos3dit", ".bin");
+            Container.decrypt(next, sequential, back, null);
+            ok &= Arrays.equals(plain, Files.readAllBytes(back));
+            Container.decryptParallel(next, parallel, back, pool);
+            ok &= Arrays.equals(plain, Files.readAllBytes(back));
+            try {
+                Container.decrypt(PASSWORD, sequential, back, null);
+                ok = false;
+            } catch (InvalidKeyException e) {
+                // The old password must not work any more
+            }
+            if (ok) {
+                ++count;
+            }
+        }
+
+        // A version 1 container and a headerless file become version 2 containers
+        byte[] plain = randomBytes(5000, 9);
+        Path version1 = tempFile(Files.readAllBytes(Path.of("CONTAINER_V1.bin")));
+        Path headerless = tempFile(plain);
+        AES256CTR.encrypt(new AES256CTR(PASSWORD), headerless.toString());
+        Container.rekey(PASSWORD, next, version1, null);
+        Container.rekeyParallel(PASSWORD, next, headerless, pool);
+        for (Path file : new Path[] { version1, headerless }) {
+            Path back = Files.createTempFile("kryptos3dit", ".bin");
+            Container.decrypt(next, file, back, null);
+            if (Container.readHeader(file).isAuthenticated() && Arrays.equals(plain, Files.readAllBytes(back))) {
+                ++count;
+            }
+        }
+
+        // Nothing may change for a wrong password or a modified container
+        Path container = Files.createTempFile("kryptos3dit", ".k3d");
+        Container.encrypt(PASSWORD, tempFile(randomBytes(100003, 11)), container, null);
+        byte[] modified = Files.readAllBytes(container);
+        modified[Container.HEADER_SIZE + 777] ^= 1;
+        Files.write(container, modified);
+        try {
+            Container.rekey("kryptos3dIt", next, container, null);
+        } catch (InvalidKeyException e) {
+            ++count;
+        }
+        try {
+            Container.rekeyParallel(PASSWORD, next, container, pool);
+        } catch (AEADBadTagException e) {
+            if (Arrays.equals(modified, Files.readAllBytes(container))) {
+                ++count;
+            }
+        }
+        try (Stream<Path> siblings = Files.list(container.toAbsolutePath().getParent())) {
+            if (siblings.noneMatch(p -> p.getFileName().toString().startsWith(container.getFileName() + "."))) {
+                ++count;
+            }
+        }
+
+        pool.shutdown();
+        report("REKEY", count, SIZES.length + 5);
+    }
+
+    /**
+     * Checks that files written by the original AES256CTR, which have no
+     * header, are still decrypted through the container API.
+     * @throws Exception
+     */
+    public static void checkLegacy() throws Exception {
+
+        AES256CTR ob = new AES256CTR(PASSWORD);
+        int count = 0;
+
+        for (int i = 0; i < SIZES.length; ++i) {
+            byte[] plain = randomBytes(SIZES[i], i);
+            Path legacy = tempFile(plain);
+            AES256CTR.encrypt(ob, legacy.toString());
+            byte[] encrypted = Files.readAllBytes(legacy);
+            boolean ok = Container.readHeader(legacy) == null;
+
+            Path back = Files.createTempFile("kryptos3dit", ".bin");
+            Container.decrypt(PASSWORD, legacy, back, null);
+            ok &= Arrays.equals(plain, Files.readAllBytes(back));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Container.decrypt(PASSWORD, new ByteArrayInputStream(encrypted), out);
+            ok &= Arrays.equals(plain, out.toByteArray());
+
+            Container.decrypt(PASSWORD, legacy, null);
+            ok &= Arrays.equals(plain, Files.readAllBytes(legacy));
+
+            if (ok) {
+                ++count;
+            }
+        }
+        report("LEGACY FILES", count, SIZES.length);
+    }
+
+    /**
+     * Checks that a batch turns every file into a container with a nonce of
+     * its own, small files and those large enough to be shared by the whole
+     * pool alike, that it decrypts and rekeys them again, and that a wrong
+     * password is reported per file and leaves the files unchanged.
+     * @throws Exception
+     */
+    public static void checkBatch() throws Exception {
+
+        int[] sizes = { 0, 17, 100003, (int) BatchEncryptor.LARGE_FILE_SIZE + 33 };
+        Path root = Files.createTempDirectory("kryptos3dit");
+        byte[][] plain = new byte[sizes.length][];
+        long bytes = 0;
+        for (int i = 0; i < sizes.length; ++i) {
+            plain[i] = randomBytes(sizes[i], i);
+            Files.write(root.resolve(i + ".bin"), plain[i]);
+            bytes += sizes[i];
+        }
+        List<Path> files = BatchEncryptor.list(root, "*.bin");
+        ForkJoinPool pool = new ForkJoinPool(3);
+        int count = 0;
+
+        BatchResult result = BatchEncryptor.encrypt(PASSWORD, files, pool);
+        if (result.getFiles() == sizes.length && result.getBytes() == bytes && result.getFailures().isEmpty()) {
+            ++count;
+        }
+
+        Set<String> nonces = new HashSet<>();
+        for (Path file : files) {
+            Container.Header header = Container.readHeader(file);
+            if (header != null) {
+                nonces.add(Arrays.toString(header.getNonce()));
+            }
+        }
+        if (nonces.size() == sizes.length) {
+            ++count;
+        }
+
+        byte[][] encrypted = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; ++i) {
+            encrypted[i] = Files.readAllBytes(files.get(i));
+        }
+        result = BatchEncryptor.decrypt("wrong", files, pool);
+        boolean unchanged = result.getFiles() == 0 && result.getFailures().size() == sizes.length
+                && result.getFailures().values().stream().allMatch(e -> e instanceof InvalidKeyException);
+        for (int i = 0; i < sizes.length; ++i) {
+            unchanged &= Arrays.equals(encrypted[i], Files.readAllBytes(files.get(i)));
+        }
+        if (unchanged) {
+            ++count;
+        }
+
+        result = BatchEncryptor.rekey(PASSWORD, "new password", files, pool);
+        boolean rekeyed = result.getFailures().isEmpty();
+        result = BatchEncryptor.decrypt("new password", files, pool);
+        rekeyed &= result.getFailures().isEmpty();
+        for (int i = 0; i < sizes.length; ++i) {
+            rekeyed &= Arrays.equals(plain[i], Files.readAllBytes(files.get(i)));
+            Files.delete(files.get(i));
+        }
+        if (rekeyed) {
+            ++count;
+        }
+        Files.delete(root);
+        pool.shutdown();
+
+        report("BATCH", count, 4);
+    }
+
+    /**
+     * Checks in place encryption and decryption, streams, and that cancelling
+     * leaves the file as it was.
+     * @throws Exception
+     */
+    public static void checkInPlaceAndStreams() throws Exception {
+
+        final int size = 3 * AES256CTR.DEFAULT_CHUNK_SIZE + 7;
+        byte[] plain = randomBytes(size, 3);
+        Path file = tempFile(plain);
+        int count = 0;
+
+        Container.encrypt(PASSWORD, file, null);
+        if (Container.readHeader(file) != null
+                && Files.size(file) == Container.HEADER_SIZE + size + Container.TAG_SIZE) {
+            ++count;
+        }
+
+        // The stream decryption reads the container written in place
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Container.decrypt(PASSWORD, Files.newInputStream(file), out);
+        if (Arrays.equals(plain, out.toByteArray())) {
+            ++count;
+        }
+
+        byte[] encrypted = Files.readAllBytes(file);
+        try {
+            Container.decrypt(PASSWORD, file, (processed, length) -> processed < 2 * AES256CTR.DEFAULT_CHUNK_SIZE);
+        } catch (CancellationException e) {
+            if (Arrays.equals(encrypted, Files.readAllBytes(file))) {
+                ++count;
+            }
+        }
+
+        Container.decrypt(PASSWORD, file, null);
+        if (Arrays.equals(plain, Files.readAllBytes(file))) {
+            ++count;
+        }
+
+        // A container written to a stream is read back from a file
+        out.reset();
+        Container.encrypt(PASSWORD, new ByteArrayInputStream(plain), out);
+        Path streamed = tempFile(out.toByteArray());
+        Path back = Files.createTempFile("kryptos3dit", ".bin");
+        Container.decrypt(PASSWORD, streamed, back, null);
+        if (Arrays.equals(plain, Files.readAllBytes(back))) {
+            ++count;
+        }
+
+        report("IN PLACE AND STREAMS", count, 5);
+    }
+
+    /**
+     * Reads ranges of a container through a channel, position 0 being the
+     * first byte after the header and the tag being out of reach, and
+     * checks that an authenticated container cannot be opened for writing.
+     * @throws Exception
+     */
+    public static void checkRandomAccess() throws Exception {
+
+        byte[] plain = randomBytes(100003, 4);
+        Path container = Files.createTempFile("kryptos3dit", ".k3d");
+        Container.encrypt(PASSWORD, tempFile(plain), container, null);
+        Random random = new Random(5);
+        int count = 0;
+
+        try (AES256CTRChannel channel = Container.open(PASSWORD, container, StandardOpenOption.READ)) {
+
+            boolean ok = channel.size() == plain.length;
+            for (int i = 0; i < 20; ++i) {
+                final int position = random.nextInt(plain.length);
+                final int length = Math.min(1 + random.nextInt(5000), plain.length - position);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                channel.position(position);
+                while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                }
+                ok &= Arrays.equals(Arrays.copyOfRange(plain, position, position + length), buffer.array());
+            }
+            if (ok) {
+                ++count;
+            }
+
+            // A read across the end stops before the tag
+            ByteBuffer tail = ByteBuffer.allocate(100);
+            channel.position(plain.length - 10);
+            if (channel.read(tail) == 10 && channel.read(tail) == -1
+                    && Arrays.equals(Arrays.copyOfRange(plain, plain.length - 10, plain.length),
+                            Arrays.copyOf(tail.array(), 10))) {
+                ++count;
+            }
+        }
+
+        try {
+            Container.open(PASSWORD, container, StandardOpenOption.READ, StandardOpenOption.WRITE).close();
+        } catch (IOException e) {
+            ++count;
+        }
+
+        report("RANDOM ACCESS", count, 3);
+    }
+
+    /**
+     * Runs the tests and prints the output to the console.
+     * @param args None required
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+
+        System.out.println("RUNNING TESTS...");
+
+        checkRoundTrip();
+        checkNonce();
+        checkWrongPassword();
+        checkTamper();
+        checkVersion1();
+        checkRekey();
+        checkLegacy();
+        checkInPlaceAndStreams();
+        checkBatch();
+        checkRandomAccess();
+
+        System.out.println("TOTAL: " + Integer.toString(total));
+        System.out.println("PASSED: " + Integer.toString(passed));
+    }
+}
\ No newline at end of file